@@ -0,0 +1,45 @@
+# Copyright (C) 2017 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+# Runs on the build host, so only the classes of the app that don't need the framework are
+# built in, along with stand-ins for the few framework classes they use.
+LOCAL_MODULE := RetailDemoBenchmarks
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    $(addprefix ../src/com/android/retaildemo/, \
+        BackgroundScheduler.java \
+        ChunkManifest.java \
+        ContentChunker.java \
+        DownloadStats.java \
+        DownloadStatsLog.java \
+        HttpDownloader.java \
+        Metrics.java \
+        MirrorSelector.java \
+        StateStore.java \
+        TokenBucket.java \
+        ValidatorCache.java \
+        VideoInstaller.java)
+
+LOCAL_STATIC_JAVA_LIBRARIES := jmh-core
+LOCAL_ANNOTATION_PROCESSORS := jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+
+LOCAL_JAR_MANIFEST := manifest.txt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads, verifies and installs the demo video from a {@link LoopbackHttpServer}, the way
+ * {@link DownloadVideoTask} does, for several file sizes and segment counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"1048576", "16777216", "67108864"})
+    public int fileSize;
+
+    @Param({"1", "4", "8"})
+    public int segmentCount;
+
+    /**
+     * Counts the downloaded bytes, so that throughput is also reported in bytes.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    private LoopbackHttpServer mServer;
+    private File mDir;
+    private VideoInstaller mInstaller;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LoopbackHttpServer(fileSize);
+        mDir = Files.createTempDirectory("RetailDemoBenchmarks").toFile();
+        mInstaller = new VideoInstaller(new File(mDir, "demo.mp4"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop();
+        mInstaller.cleanUpStaging();
+        mInstaller.getInstalledFile().delete();
+        new File(mDir, VideoInstaller.STAGING_DIR_NAME).delete();
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void downloadVerifyInstall(Bytes bytes) throws IOException {
+        final HttpDownloader downloader = new HttpDownloader(mServer.getConnectionFactory(),
+                mServer.getUrl(), mInstaller.getStagingFile());
+        downloader.setSegmentCount(segmentCount);
+        downloader.setSegmentExecutor(
+                BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.NETWORK));
+        downloader.setExpectedSha256(mServer.getSha256());
+        downloader.setMaxAttempts(1);
+        downloader.download();
+        mInstaller.install(downloader.getDestination());
+        bytes.bytes += fileSize;
+    }
+}
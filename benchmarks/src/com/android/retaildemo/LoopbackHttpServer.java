@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a single file of random bytes on the loopback interface, the way the download
+ * server does: with a strong ETag, a SHA-256 {@code Digest} and support for range requests.
+ */
+class LoopbackHttpServer {
+    private static final String PATH = "/demo.mp4";
+    private static final String ETAG = "\"v1\"";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] mContent;
+    private final String mSha256;
+    private final String mDigest;
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+
+    LoopbackHttpServer(int size) throws IOException {
+        mContent = new byte[size];
+        new Random(size).nextBytes(mContent);
+        final byte[] sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256").digest(mContent);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        mSha256 = ChunkManifest.toHex(sha256);
+        mDigest = "SHA-256=" + Base64.getEncoder().encodeToString(sha256);
+        mServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(PATH, this::handle);
+        // Enough for every segment of a download at once.
+        mExecutor = Executors.newFixedThreadPool(HttpDownloader.MAX_SEGMENTS);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    String getUrl() {
+        return "http://" + mServer.getAddress().getHostString() + ":"
+                + mServer.getAddress().getPort() + PATH;
+    }
+
+    String getSha256() {
+        return mSha256;
+    }
+
+    HttpDownloader.ConnectionFactory getConnectionFactory() {
+        return url -> (HttpURLConnection) new URL(url).openConnection();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Digest", mDigest);
+            int start = 0;
+            int end = mContent.length - 1;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            final boolean partial = range != null && range.startsWith("bytes=")
+                    && (ifRange == null || ETAG.equals(ifRange));
+            if (partial) {
+                final String spec = range.substring("bytes=".length());
+                final int dash = spec.indexOf('-');
+                start = Integer.parseInt(spec.substring(0, dash));
+                if (dash < spec.length() - 1) {
+                    end = Math.min(end, Integer.parseInt(spec.substring(dash + 1)));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes */" + mContent.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + mContent.length);
+            }
+            final int length = end - start + 1;
+            final boolean head = "HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(
+                    partial ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK,
+                    head ? -1 : length);
+            if (head) {
+                return;
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int pos = start; pos <= end; pos += BUFFER_SIZE) {
+                    out.write(mContent, pos, Math.min(BUFFER_SIZE, end + 1 - pos));
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
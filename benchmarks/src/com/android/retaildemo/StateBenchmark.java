@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes the {@link StateStore} the download state is kept in, through the validators
+ * of the video and the stats of the last downloads. Every change is written and synced to disk
+ * right away, as if it didn't share its write with any other, so the results mostly tell how
+ * often the app can afford to save its state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+
+    private File mDir;
+    private File mStateFile;
+    private ValidatorCache mValidatorCache;
+    private DownloadStatsLog mStatsLog;
+    private DownloadStats mStats;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("RetailDemoBenchmarks").toFile();
+        mStateFile = new File(mDir, StateStore.FILE_NAME);
+        final StateStore store = new StateStore(mStateFile, Runnable::run);
+
+        // Validators as sent by the server.
+        final LoopbackHttpServer server = new LoopbackHttpServer(1024);
+        try {
+            final HttpURLConnection conn =
+                    server.getConnectionFactory().openConnection(server.getUrl());
+            conn.setRequestMethod("HEAD");
+            conn.getResponseCode();
+            mValidatorCache = new ValidatorCache(store);
+            mValidatorCache.update(conn, System.currentTimeMillis());
+            conn.disconnect();
+        } finally {
+            server.stop();
+        }
+        mValidatorCache.save();
+
+        // A full log, so that every record also drops one.
+        mStatsLog = new DownloadStatsLog(store);
+        mStats = new DownloadStats(System.nanoTime());
+        mStats.onBytes(1024 * 1024, System.nanoTime());
+        mStats.finish(System.nanoTime());
+        for (int i = 0; i < DownloadStatsLog.MAX_RECORDS; ++i) {
+            mStatsLog.record("http://127.0.0.1/demo.mp4", mStats, true, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void saveValidators() {
+        mValidatorCache.save();
+    }
+
+    @Benchmark
+    public String loadValidators() {
+        final ValidatorCache validators =
+                new ValidatorCache(new StateStore(mStateFile, Runnable::run));
+        validators.load();
+        return validators.getETag();
+    }
+
+    @Benchmark
+    public void recordDownloadStats() {
+        mStatsLog.record("http://127.0.0.1/demo.mp4", mStats, true, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public List<DownloadStatsLog.Record> loadDownloadStats() {
+        return new DownloadStatsLog(new StateStore(mStateFile, Runnable::run)).getRecords();
+    }
+}
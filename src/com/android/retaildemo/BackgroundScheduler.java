@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads all background work of the app runs on, in a few pools bounded by the kind of
+ * work: {@link #NETWORK} for downloads, {@link #DISK} for reading and writing small files,
+ * {@link #HASHING} for hashing local files, and {@link #MEDIA} for opening the videos to play,
+ * which must not wait behind the rest.
+ *
+ * The pools only exist while there is work for them: they are started when work is queued,
+ * and shut down once all the queued work is done, so nothing keeps a thread alive after the
+ * tasks using them are finished.
+ */
+class BackgroundScheduler {
+    private static final String TAG = "BackgroundScheduler";
+    private static final boolean DEBUG = false;
+
+    static final int NETWORK = 0;
+    static final int DISK = 1;
+    static final int HASHING = 2;
+    static final int MEDIA = 3;
+
+    private static final String[] POOL_NAMES = { "network", "disk", "hashing", "media" };
+
+    private static final int NETWORK_THREADS = 4;
+    // Small files are written one at a time, so that writes to the same file keep their order.
+    private static final int DISK_THREADS = 1;
+    private static final int MAX_HASHING_THREADS = 4;
+    // The video playing and the one prepared to take over at the end of the loop.
+    private static final int MEDIA_THREADS = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static BackgroundScheduler sInstance;
+
+    private final int[] mThreadCounts;
+    private final AtomicLong[] mCompletedTasks = new AtomicLong[POOL_NAMES.length];
+
+    @GuardedBy("this")
+    private ThreadPoolExecutor[] mPools;
+    // Work queued or running on any of the pools.
+    @GuardedBy("this")
+    private int mPendingTasks;
+
+    static synchronized BackgroundScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new BackgroundScheduler(NETWORK_THREADS, DISK_THREADS,
+                    Math.max(1, Math.min(MAX_HASHING_THREADS,
+                            Runtime.getRuntime().availableProcessors())), MEDIA_THREADS);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    BackgroundScheduler(int networkThreads, int diskThreads, int hashingThreads,
+            int mediaThreads) {
+        mThreadCounts = new int[] { networkThreads, diskThreads, hashingThreads, mediaThreads };
+        for (int i = 0; i < mCompletedTasks.length; ++i) {
+            mCompletedTasks[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the given pool, starting the pools if they were shut down.
+     */
+    void execute(int pool, Runnable task) {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            if (mPools == null) {
+                if (DEBUG) Log.d(TAG, "Starting the pools");
+                mPools = new ThreadPoolExecutor[POOL_NAMES.length];
+                for (int i = 0; i < mPools.length; ++i) {
+                    mPools[i] = createPool(POOL_NAMES[i], mThreadCounts[i]);
+                }
+            }
+            executor = mPools[pool];
+            mPendingTasks++;
+        }
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                mCompletedTasks[pool].incrementAndGet();
+                onTaskDone();
+            }
+        });
+    }
+
+    /**
+     * @return an executor running tasks on the given pool.
+     */
+    Executor getExecutor(int pool) {
+        return task -> execute(pool, task);
+    }
+
+    /**
+     * @return an executor running tasks on the given pool one at a time, in the order they
+     *         were queued.
+     */
+    Executor newSerialExecutor(int pool) {
+        return new SerialExecutor(getExecutor(pool));
+    }
+
+    private synchronized void onTaskDone() {
+        if (--mPendingTasks > 0) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "No more work, shutting down the pools");
+        // The threads are idle, or about to be, so they exit right away.
+        for (ThreadPoolExecutor pool : mPools) {
+            pool.shutdown();
+        }
+        mPools = null;
+    }
+
+    /**
+     * @return whether the pools are running, that is whether any work is queued or running.
+     */
+    synchronized boolean isRunning() {
+        return mPools != null;
+    }
+
+    /**
+     * @return the number of tasks of the given pool waiting for a thread.
+     */
+    synchronized int getQueueDepth(int pool) {
+        return mPools != null ? mPools[pool].getQueue().size() : 0;
+    }
+
+    /**
+     * @return the number of threads of the given pool running a task.
+     */
+    synchronized int getActiveThreads(int pool) {
+        return mPools != null ? mPools[pool].getActiveCount() : 0;
+    }
+
+    /**
+     * @return the number of tasks the given pool ran since the app started.
+     */
+    long getCompletedTasks(int pool) {
+        return mCompletedTasks[pool].get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BackgroundScheduler{");
+        for (int i = 0; i < POOL_NAMES.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(POOL_NAMES[i])
+                    .append(": active=").append(getActiveThreads(i))
+                    .append(" queued=").append(getQueueDepth(i))
+                    .append(" completed=").append(getCompletedTasks(i));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static ThreadPoolExecutor createPool(String name, int threads) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamedThreadFactory(name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "RetailDemo-" + mName + "-"
+                    + mCount.incrementAndGet());
+            // Maps to THREAD_PRIORITY_BACKGROUND, so that playback isn't starved.
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    /**
+     * Runs one task at a time on another executor.
+     */
+    private static final class SerialExecutor implements Executor {
+        private final Executor mExecutor;
+        @GuardedBy("this")
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        @GuardedBy("this")
+        private boolean mRunning;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            mTasks.add(task);
+            if (!mRunning) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            final Runnable task = mTasks.poll();
+            mRunning = task != null;
+            if (task != null) {
+                mExecutor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                });
+            }
+        }
+    }
+}
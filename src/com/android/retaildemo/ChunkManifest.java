@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The list of content-defined chunks that make up the published video, as produced by
+ * {@link ContentChunker}. It is a text file with one entry per line:
+ *
+ * <pre>
+ * chunker gear-sha256 &lt;min size&gt; &lt;average size&gt; &lt;max size&gt;
+ * &lt;sha256 in hex&gt; &lt;length&gt;
+ * &lt;sha256 in hex&gt; &lt;length&gt;
+ * ...
+ * </pre>
+ *
+ * Chunks are listed in file order, so the offset of each is the sum of the lengths before it.
+ */
+class ChunkManifest {
+    static final String CHUNKER_ALGORITHM = "gear-sha256";
+
+    static final class Chunk {
+        final long offset;
+        final int length;
+        final String sha256;
+
+        Chunk(long offset, int length, String sha256) {
+            this.offset = offset;
+            this.length = length;
+            this.sha256 = sha256;
+        }
+    }
+
+    final int minChunkSize;
+    final int avgChunkSize;
+    final int maxChunkSize;
+    final List<Chunk> chunks;
+
+    private ChunkManifest(int minChunkSize, int avgChunkSize, int maxChunkSize,
+            List<Chunk> chunks) {
+        this.minChunkSize = minChunkSize;
+        this.avgChunkSize = avgChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.chunks = Collections.unmodifiableList(chunks);
+    }
+
+    long getLength() {
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+        final Chunk last = chunks.get(chunks.size() - 1);
+        return last.offset + last.length;
+    }
+
+    /**
+     * @return a chunker with the same parameters the manifest was produced with.
+     */
+    ContentChunker newChunker() {
+        return new ContentChunker(minChunkSize, avgChunkSize, maxChunkSize);
+    }
+
+    static ChunkManifest parse(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.US_ASCII));
+        final String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("Empty chunk manifest");
+        }
+        final String[] params = header.trim().split("\\s+");
+        if (params.length != 5 || !"chunker".equals(params[0])
+                || !CHUNKER_ALGORITHM.equals(params[1])) {
+            throw new IOException("Unsupported chunk manifest: " + header);
+        }
+        try {
+            final int minSize = Integer.parseInt(params[2]);
+            final int avgSize = Integer.parseInt(params[3]);
+            final int maxSize = Integer.parseInt(params[4]);
+            if (!ContentChunker.isValid(minSize, avgSize, maxSize)) {
+                throw new IOException("Invalid chunker parameters: " + header);
+            }
+            final List<Chunk> chunks = new ArrayList<>();
+            long offset = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("\\s+");
+                if (fields.length != 2 || fields[0].length() != 64) {
+                    throw new IOException("Malformed chunk entry: " + line);
+                }
+                final int length = Integer.parseInt(fields[1]);
+                if (length <= 0 || length > maxSize) {
+                    throw new IOException("Invalid chunk length: " + line);
+                }
+                chunks.add(new Chunk(offset, length, fields[0].toLowerCase()));
+                offset += length;
+            }
+            return new ChunkManifest(minSize, avgSize, maxSize, chunks);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk manifest", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
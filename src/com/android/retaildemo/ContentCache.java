@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The downloaded clips, bounded to a number of bytes on disk.
+ *
+ * Clips are stored by asset id, along with the version that was downloaded. When the clips take
+ * more than the quota, the least recently used ones are deleted; a clip is used when it is
+ * downloaded, or found in the cache by {@link #get}. The quota shrinks while the device is low
+ * on storage.
+ *
+ * The index of the cache is saved next to it, in least recently used order, so that it doesn't
+ * need to look at the files on disk when loaded.
+ */
+class ContentCache {
+    private static final String TAG = "ContentCache";
+    private static final boolean DEBUG = false;
+
+    private static final int VERSION = 1;
+
+    /** The part of the quota that is kept while storage is low. */
+    private static final int LOW_STORAGE_QUOTA_DIVISOR = 4;
+
+    private static final class Clip {
+        final String version;
+        final long size;
+
+        Clip(String version, long size) {
+            this.version = version;
+            this.size = size;
+        }
+    }
+
+    private final File mDir;
+    private final File mIndexFile;
+    private final long mQuotaBytes;
+    // Ordered from least to most recently used.
+    private final LinkedHashMap<String, Clip> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mMaxBytes;
+    private long mSize;
+    private boolean mDirty;
+
+    ContentCache(File dir, File indexFile, long quotaBytes) {
+        mDir = dir;
+        mIndexFile = indexFile;
+        mQuotaBytes = quotaBytes;
+        mMaxBytes = quotaBytes;
+    }
+
+    /**
+     * Loads the saved index. If it can't be read, the clips on disk can't be accounted for, so
+     * they are deleted.
+     */
+    synchronized void load() {
+        mEntries.clear();
+        mSize = 0;
+        mDirty = false;
+        if (mIndexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(mIndexFile))) {
+                if (in.readInt() == VERSION) {
+                    for (int count = in.readInt(); count > 0; --count) {
+                        final String id = in.readUTF();
+                        final Clip clip = new Clip(in.readUTF(), in.readLong());
+                        mEntries.put(id, clip);
+                        mSize += clip.size;
+                    }
+                    trim();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read " + mIndexFile, e);
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+        deleteFiles(mDir);
+        mDirty = true;
+    }
+
+    /**
+     * Saves the index, if it changed since it was last loaded or saved.
+     */
+    synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        final File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Clip> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue().version);
+                out.writeLong(entry.getValue().size);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tempFile.renameTo(mIndexFile)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + mIndexFile);
+        }
+        mDirty = false;
+    }
+
+    File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * @return where the clip with the given id is, or is installed to.
+     */
+    File getFile(String id) {
+        return new File(mDir, id);
+    }
+
+    /**
+     * @return the clip, if the cache has the given version of it, and marks it as used.
+     */
+    synchronized File get(String id, String version) {
+        final Clip clip = mEntries.get(id);
+        if (clip == null) {
+            return null;
+        }
+        final File file = getFile(id);
+        if (!clip.version.equals(version) || file.length() != clip.size) {
+            if (DEBUG) Log.d(TAG, "Dropping " + id + ", version " + clip.version);
+            remove(id);
+            return null;
+        }
+        mDirty = true;
+        return file;
+    }
+
+    /**
+     * Adds a clip that was installed at {@link #getFile}, replacing the previous version, and
+     * deletes the least recently used clips if the cache is now over its quota.
+     *
+     * @return false if the clip is bigger than the whole quota, in which case it is deleted.
+     */
+    synchronized boolean put(String id, String version) {
+        final File file = getFile(id);
+        final Clip previous = mEntries.remove(id);
+        if (previous != null) {
+            mSize -= previous.size;
+            mDirty = true;
+        }
+        final long size = file.length();
+        if (size > mMaxBytes) {
+            file.delete();
+            return false;
+        }
+        mEntries.put(id, new Clip(version, size));
+        mSize += size;
+        mDirty = true;
+        trim();
+        return true;
+    }
+
+    /**
+     * Shrinks the quota while the device is low on storage, deleting clips to fit it, and
+     * restores it once there is enough storage again.
+     */
+    synchronized void setLowStorage(boolean lowStorage) {
+        mMaxBytes = lowStorage ? mQuotaBytes / LOW_STORAGE_QUOTA_DIVISOR : mQuotaBytes;
+        trim();
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Clip>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && it.hasNext()) {
+            final Map.Entry<String, Clip> entry = it.next();
+            if (DEBUG) Log.d(TAG, "Evicting " + entry.getKey() + ", over " + mMaxBytes + " bytes");
+            mSize -= entry.getValue().size;
+            it.remove();
+            getFile(entry.getKey()).delete();
+            mDirty = true;
+        }
+    }
+
+    private void remove(String id) {
+        final Clip clip = mEntries.remove(id);
+        if (clip != null) {
+            mSize -= clip.size;
+            getFile(id).delete();
+            mDirty = true;
+        }
+    }
+
+    private static void deleteFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
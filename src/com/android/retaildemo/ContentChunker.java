@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Splits a stream into content-defined chunks, so that an edit in one part of a file only
+ * changes the chunks around it, and hashes every chunk with SHA-256.
+ *
+ * Boundaries are found with a gear rolling hash: {@code hash = (hash << 1) + GEAR[byte]}, and a
+ * chunk ends where the top bits of the hash are all zero. Below the average size a stricter
+ * mask with one extra bit is used and above it a looser one with one bit less, which keeps
+ * chunk sizes close to the average. Chunks are never shorter than the minimum size, except for
+ * the last one, or longer than the maximum size. The gear table is generated with splitmix64
+ * from a zero seed; the tool that publishes {@link ChunkManifest}s must use the same
+ * parameters.
+ */
+class ContentChunker {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0;
+        for (int i = 0; i < GEAR.length; ++i) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    interface Callback {
+        void onChunk(long offset, int length, byte[] sha256) throws IOException;
+    }
+
+    private final int mMinSize;
+    private final int mAvgSize;
+    private final int mMaxSize;
+    private final long mStrictMask;
+    private final long mLooseMask;
+
+    ContentChunker(int minSize, int avgSize, int maxSize) {
+        if (!isValid(minSize, avgSize, maxSize)) {
+            throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/" + avgSize
+                    + "/" + maxSize);
+        }
+        mMinSize = minSize;
+        mAvgSize = avgSize;
+        mMaxSize = maxSize;
+        final int bits = Integer.numberOfTrailingZeros(avgSize);
+        mStrictMask = topBits(bits + 1);
+        mLooseMask = topBits(bits - 1);
+    }
+
+    /**
+     * @return whether a chunker can be made with these sizes: the average must be a power of
+     *         two, between the minimum and the maximum.
+     */
+    static boolean isValid(int minSize, int avgSize, int maxSize) {
+        return minSize > 0 && minSize <= avgSize && avgSize <= maxSize
+                && Integer.bitCount(avgSize) == 1;
+    }
+
+    /**
+     * Reads the stream to the end, reporting every chunk in order.
+     */
+    void chunk(InputStream in, Callback callback) throws IOException {
+        final MessageDigest digest = newSha256();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long chunkOffset = 0;
+        int chunkLength = 0;
+        long hash = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < read; ++i) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                ++chunkLength;
+                if (chunkLength < mMinSize) {
+                    continue;
+                }
+                final long mask = chunkLength < mAvgSize ? mStrictMask : mLooseMask;
+                if ((hash & mask) == 0 || chunkLength >= mMaxSize) {
+                    digest.update(buffer, start, i + 1 - start);
+                    callback.onChunk(chunkOffset, chunkLength, digest.digest());
+                    start = i + 1;
+                    chunkOffset += chunkLength;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, start, read - start);
+        }
+        if (chunkLength > 0) {
+            callback.onChunk(chunkOffset, chunkLength, digest.digest());
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long topBits(int count) {
+        return count <= 0 ? 0 : -1L << (64 - count);
+    }
+}
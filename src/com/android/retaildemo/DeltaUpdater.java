@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Builds the latest version of the video from the chunks of the local copies that are still
+ * current, and fetches only the missing chunks with range requests. Runs of consecutive
+ * missing chunks are fetched with a single request.
+ */
+class DeltaUpdater {
+    static final String TEMP_SUFFIX = ".delta";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HttpDownloader.ConnectionFactory mConnectionFactory;
+    private final String mUrl;
+    private final ChunkManifest mManifest;
+
+    private TokenBucket mThrottle;
+    private Executor mHashingExecutor;
+    private String mExpectedSha256;
+    private String mSha256;
+    private long mBytesReused;
+    private long mBytesFetched;
+    private volatile boolean mCancelled;
+    // Of the range request in flight, disconnected to cancel it.
+    private volatile HttpURLConnection mConnection;
+
+    private static final class LocalChunk {
+        final File file;
+        final long offset;
+
+        LocalChunk(File file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+
+    DeltaUpdater(HttpDownloader.ConnectionFactory connectionFactory, String url,
+            ChunkManifest manifest) {
+        mConnectionFactory = connectionFactory;
+        mUrl = url;
+        mManifest = manifest;
+    }
+
+    static ChunkManifest fetchManifest(HttpDownloader.ConnectionFactory connectionFactory,
+            String manifestUrl) throws IOException {
+        final HttpURLConnection conn = connectionFactory.openConnection(manifestUrl);
+        try {
+            final int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + responseCode + " for "
+                        + manifestUrl);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return ChunkManifest.parse(in);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Limits the speed at which missing chunks are fetched.
+     */
+    void setThrottle(TokenBucket throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Hashes the local copies at the same time on {@code executor}, rather than one after the
+     * other on the calling thread.
+     */
+    void setHashingExecutor(Executor executor) {
+        mHashingExecutor = executor;
+    }
+
+    /**
+     * Sets the SHA-256 the whole video must have, in hex.
+     */
+    void setExpectedSha256(String sha256) {
+        mExpectedSha256 = sha256;
+    }
+
+    /**
+     * Stops the update, from any thread: {@link #update} then throws, leaving {@code output}
+     * untouched.
+     */
+    void cancel() {
+        mCancelled = true;
+        final HttpURLConnection conn = mConnection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the rebuilt video in hex, once {@link #update} succeeded.
+     */
+    String getSha256() {
+        return mSha256;
+    }
+
+    long getBytesReused() {
+        return mBytesReused;
+    }
+
+    long getBytesFetched() {
+        return mBytesFetched;
+    }
+
+    /**
+     * Writes the video described by the manifest to {@code output}, reusing chunks found in
+     * {@code sources}. Every chunk, local or fetched, is checked against its hash, and the
+     * whole video against the expected hash if one was set.
+     *
+     * @throws IOException if the video could not be rebuilt; {@code output} is left untouched.
+     */
+    void update(List<File> sources, File output) throws IOException {
+        mBytesReused = 0;
+        mBytesFetched = 0;
+        mSha256 = null;
+        final Map<String, LocalChunk> localChunks = indexLocalChunks(sources);
+        final File tempFile = new File(output.getPath() + TEMP_SUFFIX);
+        final Map<File, RandomAccessFile> openSources = new HashMap<>();
+        final MessageDigest fileDigest = ContentChunker.newSha256();
+        try (OutputStream out = new DigestOutputStream(new FileOutputStream(tempFile),
+                fileDigest)) {
+            final List<ChunkManifest.Chunk> chunks = mManifest.chunks;
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int i = 0;
+            while (i < chunks.size()) {
+                checkCancelled();
+                final LocalChunk local = localChunks.get(chunks.get(i).sha256);
+                if (local != null) {
+                    RandomAccessFile source = openSources.get(local.file);
+                    if (source == null) {
+                        source = new RandomAccessFile(local.file, "r");
+                        openSources.put(local.file, source);
+                    }
+                    copyLocalChunk(source, local.offset, chunks.get(i), out, buffer);
+                    mBytesReused += chunks.get(i).length;
+                    ++i;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < chunks.size() && !localChunks.containsKey(chunks.get(end).sha256)) {
+                    ++end;
+                }
+                fetchChunks(chunks.subList(i, end), out, buffer);
+                i = end;
+            }
+            mSha256 = ChunkManifest.toHex(fileDigest.digest());
+            if (mExpectedSha256 != null && !mExpectedSha256.equalsIgnoreCase(mSha256)) {
+                throw new IOException("SHA-256 of the rebuilt video is " + mSha256
+                        + ", expected " + mExpectedSha256);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            for (RandomAccessFile source : openSources.values()) {
+                source.close();
+            }
+        }
+        if (!tempFile.renameTo(output)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + output);
+        }
+    }
+
+    private Map<String, LocalChunk> indexLocalChunks(List<File> sources) throws IOException {
+        final List<FutureTask<Map<String, LocalChunk>>> tasks = new ArrayList<>();
+        for (File source : sources) {
+            if (!source.exists()) {
+                continue;
+            }
+            final FutureTask<Map<String, LocalChunk>> task =
+                    new FutureTask<>(() -> indexLocalChunks(source));
+            if (mHashingExecutor != null) {
+                mHashingExecutor.execute(task);
+            } else {
+                task.run();
+            }
+            tasks.add(task);
+        }
+        // A chunk found in several sources is read from the first one.
+        final Map<String, LocalChunk> localChunks = new HashMap<>();
+        for (FutureTask<Map<String, LocalChunk>> task : tasks) {
+            for (Map.Entry<String, LocalChunk> entry : getIndex(task).entrySet()) {
+                if (!localChunks.containsKey(entry.getKey())) {
+                    localChunks.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return localChunks;
+    }
+
+    private Map<String, LocalChunk> indexLocalChunks(File source) throws IOException {
+        final Map<String, LocalChunk> localChunks = new HashMap<>();
+        final ContentChunker chunker = mManifest.newChunker();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            chunker.chunk(in, (offset, length, sha256) -> {
+                checkCancelled();
+                final String key = ChunkManifest.toHex(sha256);
+                if (!localChunks.containsKey(key)) {
+                    localChunks.put(key, new LocalChunk(source, offset));
+                }
+            });
+        }
+        return localChunks;
+    }
+
+    private static Map<String, LocalChunk> getIndex(FutureTask<Map<String, LocalChunk>> task)
+            throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing the local copies");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void copyLocalChunk(RandomAccessFile source, long offset, ChunkManifest.Chunk chunk,
+            OutputStream out, byte[] buffer) throws IOException {
+        final MessageDigest digest = ContentChunker.newSha256();
+        source.seek(offset);
+        int remaining = chunk.length;
+        while (remaining > 0) {
+            final int read = source.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Local chunk at " + offset + " is truncated");
+            }
+            digest.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        checkDigest(digest, chunk);
+    }
+
+    private void fetchChunks(List<ChunkManifest.Chunk> chunks, OutputStream out, byte[] buffer)
+            throws IOException {
+        final long start = chunks.get(0).offset;
+        final ChunkManifest.Chunk last = chunks.get(chunks.size() - 1);
+        final long end = last.offset + last.length - 1;
+        final HttpURLConnection conn = mConnectionFactory.openConnection(mUrl);
+        mConnection = conn;
+        try {
+            // Cancelled before the connection could be disconnected.
+            checkCancelled();
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            final int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL || HttpDownloader
+                    .parseContentRangeStart(conn.getHeaderField("Content-Range")) != start) {
+                throw new IOException("Range request not honored for " + mUrl);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                final MessageDigest digest = ContentChunker.newSha256();
+                for (ChunkManifest.Chunk chunk : chunks) {
+                    checkCancelled();
+                    int remaining = chunk.length;
+                    while (remaining > 0) {
+                        final int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("Connection closed while fetching chunks");
+                        }
+                        if (mThrottle != null) {
+                            mThrottle.acquire(read);
+                        }
+                        digest.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    checkDigest(digest, chunk);
+                    mBytesFetched += chunk.length;
+                }
+            }
+        } finally {
+            mConnection = null;
+            conn.disconnect();
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Update of " + mUrl + " cancelled");
+        }
+    }
+
+    private static void checkDigest(MessageDigest digest, ChunkManifest.Chunk chunk)
+            throws IOException {
+        if (!chunk.sha256.equals(ChunkManifest.toHex(digest.digest()))) {
+            throw new IOException("Hash mismatch for the chunk at " + chunk.offset);
+        }
+    }
+}
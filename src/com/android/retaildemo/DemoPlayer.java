@@ -24,23 +24,33 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
+import android.media.MediaDataSource;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.StrictMode;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.WindowManager;
-import android.widget.VideoView;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This is the activity for playing the retail demo video. This will also try to keep
@@ -49,8 +59,23 @@ import java.io.File;
  * This will check for the demo video in {@link Environment#getDataPreloadsDemoDirectory()} or
  * {@link Context#getObbDir()}. If the demo video is not present, it will run a task to download it
  * from the specified url.
+ *
+ * Nothing that reads the disk or the network runs on the main thread: the video is looked for,
+ * and its download checked, on the {@link BackgroundScheduler#DISK} pool while the layout is
+ * inflated, and it starts preparing as soon as it is found. Debuggable builds log any violation
+ * with {@link StrictMode}.
+ *
+ * Once downloaded, the clips of the playlist are played in turn after the demo video. Updates
+ * of the demo video are downloaded by {@link UpdateCheckJobService}, and played once installed.
+ *
+ * While the device is too hot, or on battery, the {@link PlaybackGovernor} steps playback down
+ * to a lower bitrate copy of the video, a lower refresh rate, and finally a still frame.
+ *
+ * {@code adb shell dumpsys activity com.android.retaildemo} prints the {@link Metrics}: how long
+ * the demo took to start and to show its first frame, how often it failed, and the downloads,
+ * followed by the last downloads recorded by {@link DownloadStatsLog}, across reboots.
  */
-public class DemoPlayer extends Activity implements DownloadVideoTask.ResultListener {
+public class DemoPlayer extends Activity implements DownloadVideoTask.PlaylistListener {
 
     private static final String TAG = "DemoPlayer";
     private static final boolean DEBUG = false;
@@ -60,20 +85,65 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
      * After it the user can tap the screen to exit
      */
     private static final long READY_TO_TAP_MAX_DELAY_MS = 60 * 1000; // 1 min
+    // Refresh rate the display is capped at while the device is too hot.
+    private static final float LOW_FRAME_RATE = 30f;
+
+    // From the start of the process to the first resumed activity.
+    private static final Metrics.Gauge sColdStartMillis = Metrics.gauge("cold_start_ms");
+    // From the creation of the activity to the first frame of video rendered.
+    private static final Metrics.Gauge sTimeToFirstFrameMillis =
+            Metrics.gauge("time_to_first_frame_ms");
+    // From the start of the process to the first frame of video rendered.
+    private static final Metrics.Gauge sColdStartToFirstFrameMillis =
+            Metrics.gauge("cold_start_to_first_frame_ms");
+    private static final Metrics.Counter sPlaybackErrors = Metrics.counter("playback_errors");
+    private static final Metrics.Counter sFallbackViews = Metrics.counter("fallback_views");
+    // Only used on the UI thread.
+    private static boolean sColdStartRecorded;
+    private static boolean sFirstFrameRecorded;
 
     private PowerManager mPowerManager;
 
-    private VideoView mVideoView;
+    private LoopingVideoView mVideoView;
     private String mDownloadPath;
+    private boolean mStreamingVideo;
+    private MediaDataSource mStreamingDataSource;
     private boolean mUsingDownloadedVideo;
     private Handler mHandler;
     private boolean mReadyToTap;
     private SettingsObserver mSettingsObserver;
     private File mPreloadedVideoFile;
+    // Whether the preloaded video was there when the activity started, to fall back on.
+    private boolean mPreloadedVideoExists;
+    // Lower bitrate copy of the preloaded video, or null if there is none.
+    private String mLowBitrateVideoPath;
+    // Set on the video view, or null if it plays a data source.
+    private String mVideoPathPlaying;
+    private PlaybackGovernor mGovernor;
+    private PlaybackWatchdog mWatchdog;
+    // Paths of the videos to play in turn, by position in the playlist. Only used on the UI
+    // thread.
+    private final TreeMap<Integer, String> mPlaylist = new TreeMap<>();
+    private int mPlayingPosition;
+    private long mCreateMillis;
+    private boolean mFirstFrameRendered;
+    private DownloadVideoTask mDownloadVideoTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        Trace.beginSection("DemoPlayer.onCreate");
+        if (Build.IS_DEBUGGABLE) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+        }
         super.onCreate(savedInstanceState);
+        mCreateMillis = SystemClock.uptimeMillis();
+        // Runs in parallel with the rest of the startup.
+        loadVideo();
 
         // Keep screen on
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
@@ -83,32 +153,64 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
 
         mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mHandler = new Handler();
-        final String preloadedFileName = getString(R.string.retail_demo_video_file_name);
-        mPreloadedVideoFile = new File(Environment.getDataPreloadsDemoDirectory(),
-                preloadedFileName);
-        mDownloadPath = getObbDir().getPath() + File.separator + preloadedFileName;
-        mVideoView = (VideoView) findViewById(R.id.video_content);
+        mGovernor = new PlaybackGovernor(this, mHandler, this::onTierChanged);
+        mVideoView = (LoopingVideoView) findViewById(R.id.video_content);
+        mVideoView.setGaplessLooping(
+                getResources().getBoolean(R.bool.retail_demo_gapless_looping));
+        mWatchdog = new PlaybackWatchdog(mVideoView, mHandler, this::onStall);
 
         // Start playing the video when it is ready
         mVideoView.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
             @Override
             public void onPrepared(MediaPlayer mediaPlayer) {
-                mediaPlayer.setLooping(true);
-                mVideoView.start();
+                startPlayback();
+            }
+        });
+
+        // Only called when there is more than one video to play, otherwise the video loops.
+        mVideoView.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                playNextVideo();
+            }
+        });
+
+        mVideoView.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+            @Override
+            public boolean onInfo(MediaPlayer mp, int what, int extra) {
+                if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START && !mFirstFrameRendered) {
+                    mFirstFrameRendered = true;
+                    final long now = SystemClock.uptimeMillis();
+                    sTimeToFirstFrameMillis.set(now - mCreateMillis);
+                    if (!sFirstFrameRecorded) {
+                        sFirstFrameRecorded = true;
+                        sColdStartToFirstFrameMillis.set(now - Process.getStartUptimeMillis());
+                    }
+                }
+                return false;
             }
         });
 
         mVideoView.setOnErrorListener(new MediaPlayer.OnErrorListener() {
             @Override
             public boolean onError(MediaPlayer mp, int what, int extra) {
-                if (mUsingDownloadedVideo && mPreloadedVideoFile.exists()) {
+                sPlaybackErrors.increment();
+                if (mPlayingPosition != 0) {
+                    final String path = mPlaylist.remove(mPlayingPosition);
+                    Log.w(TAG, "Error playing " + path + ", removing it from the playlist");
+                    // Downloaded again next time.
+                    deleteInBackground(path);
+                    updateLooping();
+                    playNextVideo();
+                } else if (mUsingDownloadedVideo && mPreloadedVideoExists) {
                     if (DEBUG) Log.d(TAG, "Error using the downloaded video, "
                             + "falling back to the preloaded video at " + mPreloadedVideoFile);
                     mUsingDownloadedVideo = false;
-                    setVideoPath(mPreloadedVideoFile.getPath());
+                    mStreamingVideo = false;
+                    setMainVideoPath(mPreloadedVideoFile.getPath());
                     // And delete the downloaded video so that we don't try to use it
                     // again next time.
-                    new File(mDownloadPath).delete();
+                    deleteInBackground(mDownloadPath);
                 } else {
                     displayFallbackView();
                 }
@@ -116,6 +218,9 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
             }
         });
 
+        // Updates are downloaded in the background, and only swapped in here.
+        UpdateCheckJobService.setUpdateListener(this);
+
         mReadyToTap = isUserSetupComplete();
         if (!mReadyToTap) {
             // Wait for setup to finish
@@ -126,72 +231,169 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
                 mReadyToTap = true;
             }, READY_TO_TAP_MAX_DELAY_MS);
         }
+        Trace.endSection();
+    }
 
-        loadVideo();
+    private static void deleteInBackground(String path) {
+        BackgroundScheduler.getInstance().execute(BackgroundScheduler.DISK,
+                () -> new File(path).delete());
     }
 
     private void displayFallbackView() {
         if (DEBUG) Log.d(TAG, "Showing the fallback view");
+        sFallbackViews.increment();
         findViewById(R.id.fallback_layout).setVisibility(View.VISIBLE);
         findViewById(R.id.video_layout).setVisibility(View.GONE);
+        // The fallback view is drawn over the wallpaper.
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_SHOW_WALLPAPER);
     }
 
     private void displayVideoView() {
         if (DEBUG) Log.d(TAG, "Showing the video view");
         findViewById(R.id.video_layout).setVisibility(View.VISIBLE);
         findViewById(R.id.fallback_layout).setVisibility(View.GONE);
+        // Hidden by the video anyway, one layer less to compose at every frame.
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_SHOW_WALLPAPER);
     }
 
+    /**
+     * Looks for the video to play, and checks whether it may be downloaded, off the main thread.
+     * The video is played as soon as it is found, while the rest is checked.
+     */
     private void loadVideo() {
-        // If the video is already downloaded, then use that and check for an update.
-        // Otherwise check if the video is preloaded, if not download the video from the
-        // specified url.
-        boolean isVideoSet = false;
-        if (new File(mDownloadPath).exists()) {
-            if (DEBUG) Log.d(TAG, "Using the already existing video at " + mDownloadPath);
-            setVideoPath(mDownloadPath);
-            isVideoSet = true;
-        } else if (mPreloadedVideoFile.exists()) {
-            if (DEBUG) Log.d(TAG, "Using the preloaded video at " + mPreloadedVideoFile);
-            setVideoPath(mPreloadedVideoFile.getPath());
-            isVideoSet = true;
-        }
-
+        final String fileName = getString(R.string.retail_demo_video_file_name);
+        final String lowBitrateFileName =
+                getString(R.string.retail_demo_low_bitrate_video_file_name);
         final String downloadUrl = getString(R.string.retail_demo_video_download_url);
-        // If the download url is empty, then no need to start the download task.
-        if (TextUtils.isEmpty(downloadUrl)) {
-            if (!isVideoSet) {
-                displayFallbackView();
+        BackgroundScheduler.getInstance().execute(BackgroundScheduler.DISK, () -> {
+            Trace.beginSection("DemoPlayer.loadVideo");
+            try {
+                final File preloadedVideoFile =
+                        new File(Environment.getDataPreloadsDemoDirectory(), fileName);
+                final String downloadPath = getObbDir().getPath() + File.separator + fileName;
+                // If the video is already downloaded, then use that and check for an update.
+                // Otherwise check if the video is preloaded, if not download the video from
+                // the specified url.
+                final boolean preloadedVideoExists = preloadedVideoFile.exists();
+                final String videoPath;
+                if (new File(downloadPath).exists()) {
+                    videoPath = downloadPath;
+                } else if (preloadedVideoExists && isPlayable(preloadedVideoFile)) {
+                    videoPath = preloadedVideoFile.getPath();
+                } else {
+                    videoPath = null;
+                }
+                final File lowBitrateVideoFile = TextUtils.isEmpty(lowBitrateFileName) ? null
+                        : new File(Environment.getDataPreloadsDemoDirectory(),
+                                lowBitrateFileName);
+                final String lowBitrateVideoPath =
+                        lowBitrateVideoFile != null && lowBitrateVideoFile.exists()
+                                ? lowBitrateVideoFile.getPath() : null;
+                // If the download url is empty, then no need to start the download task.
+                final boolean canDownload = !TextUtils.isEmpty(downloadUrl);
+                runOnUiThread(() -> onVideoFound(preloadedVideoFile, preloadedVideoExists,
+                        downloadPath, videoPath, lowBitrateVideoPath, canDownload));
+                if (canDownload) {
+                    final boolean downloadingAllowed = checkIfDownloadingAllowed();
+                    // Made here since it opens the state of the downloads, in the OBB dir.
+                    final DownloadVideoTask task = downloadingAllowed ? new DownloadVideoTask(
+                            this, downloadPath, preloadedVideoFile, this) : null;
+                    runOnUiThread(() -> onDownloadingChecked(task, videoPath != null));
+                }
+            } finally {
+                Trace.endSection();
             }
+        });
+    }
+
+    /**
+     * @param videoPath the video to play, or null if there is none yet.
+     */
+    private void onVideoFound(File preloadedVideoFile, boolean preloadedVideoExists,
+            String downloadPath, String videoPath, String lowBitrateVideoPath,
+            boolean canDownload) {
+        if (isDestroyed()) {
             return;
         }
-        if (!checkIfDownloadingAllowed()) {
-            if (DEBUG) Log.d(TAG, "Downloading not allowed, neither starting download nor checking"
-                    + " for an update.");
-            if (!isVideoSet) {
+        mPreloadedVideoFile = preloadedVideoFile;
+        mPreloadedVideoExists = preloadedVideoExists;
+        mDownloadPath = downloadPath;
+        mLowBitrateVideoPath = lowBitrateVideoPath;
+        if (videoPath != null) {
+            if (DEBUG) Log.d(TAG, "Using the video at " + videoPath);
+            setMainVideoPath(videoPath);
+        } else if (!canDownload) {
+            displayFallbackView();
+        }
+    }
+
+    /**
+     * @param task the task downloading the video, or null if downloading is not allowed.
+     */
+    private void onDownloadingChecked(DownloadVideoTask task, boolean videoFound) {
+        if (isDestroyed()) {
+            return;
+        }
+        if (task == null) {
+            if (DEBUG) Log.d(TAG, "Downloading not allowed, neither starting download"
+                    + " nor checking for an update.");
+            if (!videoFound) {
                 displayFallbackView();
             }
             return;
         }
-        new DownloadVideoTask(this, mDownloadPath, mPreloadedVideoFile, this).run();
+        mDownloadVideoTask = task;
+        mDownloadVideoTask.run(videoFound);
     }
 
+    /**
+     * Checks the structure of a video that wasn't checked before it was installed. The result
+     * is saved, so that the video is only checked again once it changes, rather than on every
+     * start.
+     *
+     * @return false if the video is a malformed MP4 file, that the player would fail on.
+     */
+    @WorkerThread
+    private boolean isPlayable(File videoFile) {
+        final StateStore state = StateStore.getInstance(getObbDir());
+        final String path = videoFile.getPath();
+        final long length = videoFile.length();
+        final long lastModified = videoFile.lastModified();
+        final Boolean playable = state.isVideoPlayable(path, length, lastModified);
+        if (playable != null) {
+            return playable;
+        }
+        try {
+            final Mp4Validator.Layout layout = Mp4Validator.validate(videoFile);
+            if (layout != null && layout.needsFastStart()) {
+                Log.w(TAG, videoFile + " has its moov box after the media data, it will be"
+                        + " slow to prepare");
+            }
+            state.setVideoPlayable(path, length, lastModified, true);
+            return true;
+        } catch (Mp4Validator.InvalidMp4Exception e) {
+            Log.e(TAG, "Not playing the malformed video " + videoFile, e);
+            state.setVideoPlayable(path, length, lastModified, false);
+            return false;
+        } catch (IOException e) {
+            // Up to the player then.
+            Log.w(TAG, "Unable to check " + videoFile, e);
+            return true;
+        }
+    }
+
+    @WorkerThread
     private boolean checkIfDownloadingAllowed() {
-        final int lastBootCount = DataReaderWriter.readLastBootCount(this);
+        final StateStore state = StateStore.getInstance(getObbDir());
         final int bootCount = Settings.Global.getInt(getContentResolver(),
                 Settings.Global.BOOT_COUNT, -1);
         // Something went wrong, don't do anything.
         if (bootCount == -1) {
             return false;
         }
-        // Error reading the last boot count, just write the current boot count.
-        if (lastBootCount == -1) {
-            DataReaderWriter.writeLastBootCount(this, bootCount);
-            return false;
-        }
         // We need to download the video atmost once after every boot.
-        if (lastBootCount != bootCount) {
-            DataReaderWriter.writeLastBootCount(this, bootCount);
+        if (state.getLastBootCount() != bootCount) {
+            state.setLastBootCount(bootCount);
             return true;
         }
         return false;
@@ -203,14 +405,83 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                setVideoPath(filePath);
+                if (mStreamingVideo && filePath.equals(mDownloadPath)) {
+                    // The data source being streamed keeps reading from the completed file,
+                    // and is released by its player once the file takes over at the loop.
+                    if (DEBUG) Log.d(TAG, "Finished downloading the video being played");
+                    mStreamingDataSource = null;
+                }
+                mStreamingVideo = false;
+                final boolean playing = mVideoView.isPlaying();
+                if (mPlayingPosition != 0 || (playing && mPlaylist.size() > 1)) {
+                    // Picked up when the demo video comes around again.
+                    mPlaylist.put(0, filePath);
+                    return;
+                }
+                if (playing) {
+                    // Swapped in at the end of the loop, without interrupting the video.
+                    mPlaylist.put(0, filePath);
+                    mVideoPathPlaying = filePath;
+                    mVideoView.setVideoPathAtLoop(filePath);
+                    return;
+                }
+                setMainVideoPath(filePath);
+            }
+        });
+    }
+
+    @Override
+    public void onStreamingAvailable(final MediaDataSource dataSource) {
+        mUsingDownloadedVideo = true;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (DEBUG) Log.d(TAG, "Playing the video while it is being downloaded");
+                mStreamingVideo = true;
+                mStreamingDataSource = dataSource;
+                mPlaylist.put(0, mDownloadPath);
+                mPlayingPosition = 0;
+                updateLooping();
+                mVideoPathPlaying = null;
+                mVideoView.setDataSource(dataSource);
+                displayVideoView();
             }
         });
     }
 
     @Override
     public void onError() {
-        displayFallbackView();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                displayFallbackView();
+            }
+        });
+    }
+
+    @Override
+    public void onAssetDownloaded(final int position, final String filePath) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (DEBUG) Log.d(TAG, "Adding " + filePath + " to the playlist at " + position);
+                mPlaylist.put(position, filePath);
+                updateLooping();
+            }
+        });
+    }
+
+    @Override
+    public void onAssetError(final int position) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (position != mPlayingPosition) {
+                    mPlaylist.remove(position);
+                    updateLooping();
+                }
+            }
+        });
     }
 
     @Override
@@ -248,6 +519,9 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
 
     @Override
     public void onPause() {
+        Trace.beginSection("DemoPlayer.onPause");
+        mGovernor.stop();
+        mWatchdog.stop();
         if (mVideoView != null) {
             mVideoView.pause();
         }
@@ -256,26 +530,55 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
             forceTurnOnScreen();
         }
         super.onPause();
+        Trace.endSection();
     }
 
     @Override
     public void onResume() {
+        Trace.beginSection("DemoPlayer.onResume");
         super.onResume();
+        // May change the tier the video plays at, before it is resumed.
+        mGovernor.start();
         // Resume video playing
         if (mVideoView != null) {
-            mVideoView.start();
+            startPlayback();
+        }
+        mWatchdog.start();
+        if (!sColdStartRecorded) {
+            sColdStartRecorded = true;
+            sColdStartMillis.set(SystemClock.uptimeMillis() - Process.getStartUptimeMillis());
         }
+        Trace.endSection();
     }
 
     @Override
     protected void onDestroy() {
+        UpdateCheckJobService.removeUpdateListener(this);
         if (mSettingsObserver != null) {
             mSettingsObserver.unregister();
             mSettingsObserver = null;
         }
+        if (mDownloadVideoTask != null) {
+            // The clips left are downloaded on the next boot.
+            mDownloadVideoTask.cancel();
+            mDownloadVideoTask = null;
+        }
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Metrics:");
+        Metrics.dump(prefix + "  ", writer);
+        writer.print(prefix);
+        writer.println("Downloads:");
+        new DownloadStatsLog(StateStore.getInstance(getObbDir())).dump(prefix + "  ", writer);
+        writer.print(prefix);
+        writer.println(BackgroundScheduler.getInstance());
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         if (hasFocus) {
@@ -293,9 +596,48 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
         }
     }
 
+    /**
+     * Plays the demo video, which is always first in the playlist.
+     */
+    private void setMainVideoPath(String videoPath) {
+        mPlaylist.put(0, videoPath);
+        mPlayingPosition = 0;
+        updateLooping();
+        setVideoPath(videoPath);
+    }
+
+    private void playNextVideo() {
+        if (mPlaylist.isEmpty()) {
+            displayFallbackView();
+            return;
+        }
+        Map.Entry<Integer, String> next = mPlaylist.higherEntry(mPlayingPosition);
+        if (next == null) {
+            next = mPlaylist.firstEntry();
+        }
+        if (DEBUG) Log.d(TAG, "Playing " + next.getValue());
+        mPlayingPosition = next.getKey();
+        if (mPlayingPosition == 0 && mStreamingVideo) {
+            // Still being downloaded.
+            mVideoPathPlaying = null;
+            mVideoView.setDataSource(mStreamingDataSource);
+        } else {
+            setVideoPath(next.getValue());
+        }
+    }
+
+    /**
+     * A single video loops by itself, without going through the end of the playback.
+     */
+    private void updateLooping() {
+        mVideoView.setLooping(mPlaylist.size() <= 1);
+    }
+
     private void setVideoPath(String videoPath) {
+        videoPath = getPathForTier(videoPath);
         // Load the video from resource
         try {
+            mVideoPathPlaying = videoPath;
             mVideoView.setVideoPath(videoPath);
             displayVideoView();
         } catch (Exception e) {
@@ -304,6 +646,83 @@ public class DemoPlayer extends Activity implements DownloadVideoTask.ResultList
         }
     }
 
+    /**
+     * @return the lower bitrate copy of the video instead of it, if there is one and the tier
+     *         calls for it.
+     */
+    private String getPathForTier(String videoPath) {
+        // Only the preloaded demo video has a copy, updates don't.
+        if (mGovernor.getTier() >= PlaybackTierPolicy.TIER_LOW_BITRATE
+                && mPlayingPosition == 0 && !mUsingDownloadedVideo
+                && mLowBitrateVideoPath != null) {
+            return mLowBitrateVideoPath;
+        }
+        return videoPath;
+    }
+
+    private void onTierChanged(int tier) {
+        mVideoView.setFrameRateCap(tier >= PlaybackTierPolicy.TIER_LOW_FRAME_RATE
+                ? LOW_FRAME_RATE : 0);
+        if (tier >= PlaybackTierPolicy.TIER_POSTER) {
+            // The current frame stays on screen as a still.
+            mVideoView.pause();
+            return;
+        }
+        final String videoPath = mPlaylist.get(mPlayingPosition);
+        if (mVideoPathPlaying != null && videoPath != null
+                && !getPathForTier(videoPath).equals(mVideoPathPlaying)) {
+            setVideoPath(videoPath);
+        }
+        startPlayback();
+    }
+
+    /**
+     * Plays the video, unless the tier calls for a still frame.
+     */
+    private void startPlayback() {
+        if (mGovernor.getTier() < PlaybackTierPolicy.TIER_POSTER) {
+            mVideoView.start();
+        }
+    }
+
+    /**
+     * Tries to get a stalled video playing again, a bit harder at every stall.
+     *
+     * @param recovery one of the {@code StallDetector.RECOVERY_} constants.
+     */
+    private void onStall(int recovery) {
+        if (mStreamingVideo && mPlayingPosition == 0) {
+            // Waiting for the download, which reports its own errors.
+            return;
+        }
+        switch (recovery) {
+            case StallDetector.RECOVERY_SEEK:
+                mVideoView.seekTo(Math.max(0, mVideoView.getCurrentPosition()));
+                return;
+            case StallDetector.RECOVERY_PREPARE:
+                mVideoView.reopenVideo();
+                return;
+            case StallDetector.RECOVERY_PRELOADED:
+                if (mPlayingPosition != 0) {
+                    // Kept in the playlist, it may play fine next time.
+                    playNextVideo();
+                    return;
+                } else if (mUsingDownloadedVideo && mPreloadedVideoExists) {
+                    Log.w(TAG, "The downloaded video keeps stalling, "
+                            + "falling back to the preloaded video at " + mPreloadedVideoFile);
+                    mUsingDownloadedVideo = false;
+                    setMainVideoPath(mPreloadedVideoFile.getPath());
+                    return;
+                }
+                // Already playing the preloaded video.
+                displayFallbackView();
+                return;
+            case StallDetector.RECOVERY_FALLBACK:
+                displayFallbackView();
+                return;
+        }
+    }
+
     private void forceTurnOnScreen() {
         final PowerManager.WakeLock wakeLock = mPowerManager.newWakeLock(
                 PowerManager.FULL_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, TAG);
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast a download is going, or went: bytes transferred, duration, throughput and retries.
+ *
+ * Throughput is sampled once a second over all the connections of the download, so that the
+ * samples tell how steady it was, and the recent samples how long the rest should take. Only
+ * counts the bytes transferred by this download, not those resumed from an earlier one.
+ */
+class DownloadStats {
+    private static final long SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Weight of the latest sample in the recent throughput.
+    private static final double RECENT_WEIGHT = 0.3;
+
+    private final long mStartNanos;
+    private long mEndNanos = -1;
+    private long mBytes;
+    private int mRetries;
+
+    private long mSampleStartNanos;
+    private long mSampleBytes;
+    private long[] mSamples = new long[16];
+    private int mSampleCount;
+    private double mRecentBytesPerSecond = -1;
+
+    DownloadStats(long startNanos) {
+        mStartNanos = startNanos;
+        mSampleStartNanos = startNanos;
+    }
+
+    /**
+     * Counts {@code bytes} more bytes transferred, at {@code nowNanos}.
+     */
+    synchronized void onBytes(int bytes, long nowNanos) {
+        mBytes += bytes;
+        mSampleBytes += bytes;
+        final long elapsedNanos = nowNanos - mSampleStartNanos;
+        if (elapsedNanos >= SAMPLE_NANOS) {
+            addSample(mSampleBytes * SAMPLE_NANOS / elapsedNanos);
+            mSampleStartNanos = nowNanos;
+            mSampleBytes = 0;
+        }
+    }
+
+    private void addSample(long bytesPerSecond) {
+        if (mSampleCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mSamples.length * 2);
+        }
+        mSamples[mSampleCount++] = bytesPerSecond;
+        mRecentBytesPerSecond = mRecentBytesPerSecond < 0 ? bytesPerSecond
+                : RECENT_WEIGHT * bytesPerSecond + (1 - RECENT_WEIGHT) * mRecentBytesPerSecond;
+    }
+
+    synchronized void onRetry() {
+        mRetries++;
+    }
+
+    synchronized void finish(long nowNanos) {
+        mEndNanos = nowNanos;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized int getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * @return how long the download took, or has been running.
+     */
+    synchronized long getDurationMillis(long nowNanos) {
+        return TimeUnit.NANOSECONDS.toMillis((mEndNanos >= 0 ? mEndNanos : nowNanos)
+                - mStartNanos);
+    }
+
+    synchronized long getMeanBytesPerSecond(long nowNanos) {
+        final long nanos = (mEndNanos >= 0 ? mEndNanos : nowNanos) - mStartNanos;
+        return nanos > 0 ? mBytes * SAMPLE_NANOS / nanos : 0;
+    }
+
+    /**
+     * @return the 95th percentile of the throughput samples, that the download only went
+     *         faster than 5% of the time, or -1 if it didn't last a second.
+     */
+    synchronized long getP95BytesPerSecond() {
+        if (mSampleCount == 0) {
+            return -1;
+        }
+        final long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(0.95 * mSampleCount) - 1];
+    }
+
+    /**
+     * @return the throughput of the last few seconds, or -1 if not known yet.
+     */
+    synchronized long getRecentBytesPerSecond() {
+        return (long) mRecentBytesPerSecond;
+    }
+
+    /**
+     * @return how long the remaining bytes should take at the recent throughput, or -1 if not
+     *         known yet.
+     */
+    synchronized long getEtaMillis(long remainingBytes) {
+        if (mRecentBytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) (remainingBytes * 1000 / mRecentBytesPerSecond);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long nowNanos = System.nanoTime();
+        return "DownloadStats{bytes=" + mBytes + ", durationMillis=" + getDurationMillis(nowNanos)
+                + ", meanBytesPerSecond=" + getMeanBytesPerSecond(nowNanos)
+                + ", p95BytesPerSecond=" + getP95BytesPerSecond()
+                + ", retries=" + mRetries + "}";
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * The stats of the last downloads, kept across reboots so that slow stores can be told apart.
+ * Every download is also logged as it is recorded, and the stats are printed by dumpsys. They
+ * are kept in the {@link StateStore}.
+ */
+class DownloadStatsLog {
+    private static final String TAG = "DownloadStatsLog";
+
+    @VisibleForTesting
+    static final int MAX_RECORDS = 32;
+
+    static final class Record {
+        final long timeMillis;
+        final String name;
+        final boolean success;
+        final long bytes;
+        final long durationMillis;
+        final long meanBytesPerSecond;
+        final long p95BytesPerSecond;
+        final int retries;
+
+        Record(long timeMillis, String name, boolean success, long bytes, long durationMillis,
+                long meanBytesPerSecond, long p95BytesPerSecond, int retries) {
+            this.timeMillis = timeMillis;
+            this.name = name;
+            this.success = success;
+            this.bytes = bytes;
+            this.durationMillis = durationMillis;
+            this.meanBytesPerSecond = meanBytesPerSecond;
+            this.p95BytesPerSecond = p95BytesPerSecond;
+            this.retries = retries;
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" + name + (success ? "" : " failed") + ", at " + timeMillis
+                    + ", bytes=" + bytes + ", durationMillis=" + durationMillis
+                    + ", meanBytesPerSecond=" + meanBytesPerSecond
+                    + ", p95BytesPerSecond=" + p95BytesPerSecond + ", retries=" + retries + "}";
+        }
+    }
+
+    private final StateStore mStore;
+
+    DownloadStatsLog(StateStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Records the stats of a finished download, dropping the oldest record if there are too
+     * many.
+     *
+     * @param name the url the bytes were downloaded from.
+     */
+    void record(String name, DownloadStats stats, boolean success, long timeMillis) {
+        final long nowNanos = System.nanoTime();
+        final Record record = new Record(timeMillis, name, success, stats.getBytes(),
+                stats.getDurationMillis(nowNanos), stats.getMeanBytesPerSecond(nowNanos),
+                stats.getP95BytesPerSecond(), stats.getRetries());
+        Log.i(TAG, "Download " + record);
+        mStore.addDownloadRecord(record, MAX_RECORDS);
+    }
+
+    /**
+     * @return the recorded downloads, oldest first.
+     */
+    List<Record> getRecords() {
+        return mStore.getDownloadRecords();
+    }
+
+    /**
+     * Prints the recorded downloads, oldest first, one per line.
+     */
+    void dump(String prefix, PrintWriter pw) {
+        for (Record record : getRecords()) {
+            pw.print(prefix);
+            pw.println(record);
+        }
+    }
+}
@@ -16,61 +16,144 @@
 
 package com.android.retaildemo;
 
-import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
+import android.database.ContentObserver;
+import android.media.MediaDataSource;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.provider.Settings;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
+import android.view.Display;
+import android.view.WindowManager;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Downloads the video from the specified url. If the video is previously downloaded, then uses
  * that but checks if there is a more recent version of the video available.
+ *
+ * Downloads run one at a time on the {@link BackgroundScheduler}, using {@link HttpDownloader},
+ * so an interrupted download is resumed from where it stopped rather than started over. The
+ * first download can be played while it is still in progress, see
+ * {@link ResultListener#onStreamingAvailable}. Downloads are checked against the SHA-256 the
+ * server publishes in its {@code Digest} header as they are written, and a video that doesn't
+ * match is never handed to the player. Verified videos are checked by {@link Mp4Validator},
+ * which also moves their {@code moov} box ahead of the media data if needed, and installed over
+ * the current one by {@link VideoInstaller}.
+ *
+ * When variants of the video are published, the one the hardware decoders and the display of
+ * the device are best suited to is downloaded instead of the download url, see
+ * {@link VideoVariantSelector}.
  */
 class DownloadVideoTask {
     private static final String TAG = "DownloadVideoTask";
     private static final boolean DEBUG = false;
 
     static final int MSG_CHECK_FOR_UPDATE = 1;
-    static final int MSG_DOWNLOAD_COMPLETE = 2;
-    static final int MSG_CLEANUP_DOWNLOAD_DIR = 3;
+    static final int MSG_DOWNLOAD_VIDEO = 2;
+    static final int MSG_CLEANUP_STAGING_DIR = 3;
+    static final int MSG_DOWNLOAD_PLAYLIST = 4;
+
+    // Indexed by message.
+    private static final String[] MSG_SECTION_NAMES = {
+            null,
+            "DownloadVideoTask.checkForUpdate",
+            "DownloadVideoTask.downloadVideo",
+            "DownloadVideoTask.cleanUpStagingDir",
+            "DownloadVideoTask.downloadPlaylist"};
+    private static final Metrics.Histogram[] MSG_MILLIS = {
+            null,
+            Metrics.histogram("check_for_update_ms"),
+            Metrics.histogram("download_video_ms"),
+            Metrics.histogram("cleanup_staging_dir_ms"),
+            Metrics.histogram("download_playlist_ms")};
+
+    private static final String MIRROR_RANKING_FILE_NAME = "mirror_ranking";
 
-    private static final int CLEANUP_DELAY_MILLIS = 2 * 1000; // 2 seconds
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * Global setting overriding the bandwidth limit of update downloads, in bytes per second,
+     * so that it can be tuned for a store without a new build. 0 means no limit.
+     */
+    @VisibleForTesting
+    static final String UPDATE_BANDWIDTH_LIMIT_SETTING = "retail_demo_update_bandwidth_limit";
+
+    // By download path, see Injector#getExecutor.
+    @GuardedBy("sExecutors")
+    private static final Map<String, Executor> sExecutors = new HashMap<>();
 
     private final Injector mInjector;
     private final Context mContext;
-    private final DownloadManager mDlm;
     private final File mDownloadFile;
     private final ResultListener mListener;
+    private final StateStore mStateStore;
+    private final ValidatorCache mValidatorCache;
+    private final VideoInstaller mInstaller;
+    private final Executor mMainExecutor;
+    private final AtomicLong mProgressShownAtNanos = new AtomicLong();
 
-    private Handler mHandler;
+    private Executor mExecutor;
 
-    private ProgressDialog mProgressDialog;
-    private DownloadResultReceiver mDownloadReceiver;
+    private volatile ProgressDialog mProgressDialog;
+    @GuardedBy("this")
     private NetworkChangeReceiver mNetworkChangeReceiver;
+    // Kept once the playlist is done, so that it isn't downloaded again.
+    @GuardedBy("this")
+    private PlaylistDownloader mPlaylistDownloader;
+    // Registered while the playlist downloads.
+    @GuardedBy("this")
+    private BroadcastReceiver mStorageReceiver;
+    @GuardedBy("this")
+    private ContentObserver mPlaylistLimitObserver;
+    // Selected on the executor of the task, see selectDownloadUrl().
     private String mDownloadUrl;
-    private long mVideoDownloadId;
-    private long mVideoUpdateDownloadId;
-    private String mDownloadedPath;
+    private MirrorSelector mMirrorSelector;
     private boolean mVideoAlreadySet;
     private File mPreloadVideoFile;
+    private volatile boolean mCancelled;
+    private volatile HttpDownloader mUpdateDownloader;
+    private volatile DeltaUpdater mDeltaUpdater;
 
+    /**
+     * Opens the state of the downloads, so is best made off the main thread.
+     */
     public DownloadVideoTask(Context context, String downloadPath, File preloadVideoFile,
             ResultListener listener) {
         this(context, downloadPath, preloadVideoFile, listener, new Injector(context));
@@ -84,173 +167,553 @@ class DownloadVideoTask {
         mDownloadFile = new File(downloadPath);
         mListener = listener;
         mPreloadVideoFile = preloadVideoFile;
-        mDlm = injector.getDownloadManager();
-        mDownloadUrl = injector.getDownloadUrl();
+        mStateStore = injector.getStateStore();
+        mValidatorCache = injector.getValidatorCache();
+        mInstaller = new VideoInstaller(mDownloadFile);
+        mMainExecutor = injector.getMainExecutor();
     }
 
     public void run() {
-        mDownloadReceiver = new DownloadResultReceiver();
-        mContext.registerReceiver(mDownloadReceiver,
-                new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        run(mDownloadFile.exists() || mPreloadVideoFile.exists());
+    }
 
-        mHandler = mInjector.getHandler(this);
+    /**
+     * Like {@link #run()}, for callers on the main thread that already know, from the disk,
+     * whether the video exists.
+     */
+    void run(boolean videoExists) {
+        mExecutor = mInjector.getExecutor(mDownloadFile);
+        // Handled before anything else is downloaded.
+        sendMessage(MSG_CLEANUP_STAGING_DIR);
 
-        mVideoAlreadySet =
-                mDownloadFile.exists() || mPreloadVideoFile.exists();
+        mVideoAlreadySet = videoExists;
         // If file already exists, no need to download it again.
         if (mVideoAlreadySet) {
             if (DEBUG) Log.d(TAG, "Video already exists at either " + mDownloadFile.getPath()
-                    + " or " + mPreloadVideoFile + ", checking for an update... ");
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_CHECK_FOR_UPDATE));
+                    + " or " + mPreloadVideoFile + ", checking for an update later... ");
+            // Not while the video is playing, but when the update doesn't compete with it.
+            mInjector.scheduleUpdateCheck();
+            sendMessage(MSG_DOWNLOAD_PLAYLIST);
         } else {
             if (!isConnectedToNetwork()) {
                 mListener.onError();
-                mNetworkChangeReceiver = new NetworkChangeReceiver();
-                mContext.registerReceiver(mNetworkChangeReceiver,
-                        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                registerNetworkChangeReceiver();
                 return;
             }
             startDownload();
         }
     }
 
+    /**
+     * Checks for an updated video and downloads it, without showing progress nor waiting for
+     * the network, as {@link UpdateCheckJobService} does when its constraints are met.
+     *
+     * @param onDone run on the executor of the task once the check is done.
+     */
+    void checkForUpdate(Runnable onDone) {
+        mExecutor = mInjector.getExecutor(mDownloadFile);
+        sendMessage(MSG_CHECK_FOR_UPDATE);
+        mExecutor.execute(onDone);
+    }
+
+    /**
+     * Stops the download of an update and of the playlist, and stops waiting for the network.
+     * What was downloaded so far is kept and resumed next time.
+     */
+    void cancel() {
+        mCancelled = true;
+        stopPlaylist();
+        unregisterNetworkChangeReceiver();
+        final HttpDownloader downloader = mUpdateDownloader;
+        if (downloader != null) {
+            downloader.cancel();
+        }
+        final DeltaUpdater updater = mDeltaUpdater;
+        if (updater != null) {
+            updater.cancel();
+        }
+    }
+
     private void startDownload() {
-        final DownloadManager.Request request = createDownloadRequest();
-        mVideoDownloadId = mDlm.enqueue(request);
-        if (DEBUG) Log.d(TAG, "Started downloading the video at " + mDownloadUrl
-                + " to " + mDownloadFile.getPath());
         showProgressDialog();
+        sendMessage(MSG_DOWNLOAD_VIDEO);
     }
 
-    private DownloadManager.Request createDownloadRequest() {
-        final DownloadManager.Request request = new DownloadManager.Request(
-                Uri.parse(mDownloadUrl));
-        request.setDestinationUri(Uri.fromFile(mDownloadFile));
-        return request;
+    private void sendMessage(int what) {
+        mExecutor.execute(() -> handleMessage(what));
     }
 
-    private class DownloadResultReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (!DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(intent.getAction())) {
-                return;
-            }
+    /**
+     * Handles one of the {@code MSG_*} messages, on the executor of the task.
+     */
+    @VisibleForTesting
+    void handleMessage(int what) {
+        final long startMillis = SystemClock.uptimeMillis();
+        Trace.beginSection(MSG_SECTION_NAMES[what]);
+        try {
+            dispatchMessage(what);
+        } finally {
+            Trace.endSection();
+            MSG_MILLIS[what].record(SystemClock.uptimeMillis() - startMillis);
+        }
+    }
 
-            final long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0);
-            if (id == mVideoDownloadId) {
-                final int status = checkDownloadsAndSetVideo(id);
-                if (status == DownloadManager.STATUS_SUCCESSFUL ||
-                        status == DownloadManager.STATUS_FAILED) {
-                    if (mProgressDialog != null) {
-                        mProgressDialog.dismiss();
+    private void dispatchMessage(int what) {
+        switch (what) {
+            case MSG_CHECK_FOR_UPDATE:
+                if (mCancelled || !isConnectedToNetwork()) {
+                    return;
+                }
+                selectDownloadUrl();
+                mValidatorCache.load();
+                final File currentVideo =
+                        mDownloadFile.exists() ? mDownloadFile : mPreloadVideoFile;
+                // The validators are only worth anything while we still have the video
+                // they were sent for.
+                final boolean hasValidators = mValidatorCache.matches(currentVideo);
+                if (!hasValidators) {
+                    mValidatorCache.clear();
+                }
+                final long now = System.currentTimeMillis();
+                if (mValidatorCache.isFresh(now)) {
+                    if (DEBUG) Log.d(TAG, "Video is still fresh, not checking for an update");
+                    return;
+                }
+                HttpURLConnection conn = null;
+                final String expectedSha256;
+                try {
+                    conn = openConditionalRequest("HEAD");
+                    int responseCode = conn.getResponseCode();
+                    if (responseCode == HttpURLConnection.HTTP_BAD_METHOD
+                            || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                        // Server doesn't do HEAD, a conditional GET tells us the same.
+                        conn.disconnect();
+                        conn = openConditionalRequest("GET");
+                        responseCode = conn.getResponseCode();
                     }
-                    if (mDownloadReceiver != null) {
-                        mContext.unregisterReceiver(mDownloadReceiver);
-                        mDownloadReceiver = null;
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                            || (responseCode == HttpURLConnection.HTTP_OK
+                                    && !mValidatorCache.isModified(conn))) {
+                        mValidatorCache.refresh(conn, now);
+                        mValidatorCache.save();
+                        return;
                     }
-                    if (status == DownloadManager.STATUS_FAILED) {
-                        mListener.onError();
+                    if (responseCode != HttpURLConnection.HTTP_OK) {
+                        Log.w(TAG, "Unexpected response " + responseCode
+                                + " while checking for an updated video");
+                        return;
                     }
-                }
-            } else if (id == mVideoUpdateDownloadId) {
-                mHandler.sendMessage(mHandler.obtainMessage(MSG_DOWNLOAD_COMPLETE));
-            }
-        }
-    };
-
-    final class ThreadHandler extends Handler {
-        public ThreadHandler(Looper looper) {
-            super(looper);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_CHECK_FOR_UPDATE:
-                    if (!isConnectedToNetwork()) {
-                        mNetworkChangeReceiver = new NetworkChangeReceiver();
-                        mContext.registerReceiver(mNetworkChangeReceiver,
-                                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                    // Only saved once the updated video is downloaded, or if we already
+                    // have it.
+                    mValidatorCache.update(conn, now);
+                    expectedSha256 =
+                            HttpDownloader.parseSha256Digest(conn.getHeaderField("Digest"));
+                    if (expectedSha256 != null && expectedSha256.equalsIgnoreCase(
+                            getContentHash(currentVideo))) {
+                        // Republished under new validators, or never downloaded, as the
+                        // preloaded video, but we already have it.
+                        if (DEBUG) Log.d(TAG, "Video has new validators but the same content");
+                        mValidatorCache.save();
+                        return;
+                    }
+                    if (expectedSha256 == null && !hasValidators
+                            && currentVideo == mPreloadVideoFile
+                            && ValidatorCache.isSameVideo(conn, mPreloadVideoFile)) {
+                        // Without a hash, the length and modification time of the preloaded
+                        // video are all there is to tell.
+                        if (DEBUG) Log.d(TAG, "Preloaded video is up to date");
+                        mValidatorCache.save();
                         return;
                     }
-                    HttpURLConnection conn = null;
-                    try {
-                        conn = mInjector.openConnection(mDownloadUrl);
-                        final long lastModified = mDownloadFile.lastModified();
-                        conn.setIfModifiedSince(lastModified);
-                        conn.connect();
-                        if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                } catch (IOException e) {
+                    Log.e(TAG, "Error while checking for an updated video", e);
+                    return;
+                } finally {
+                    if (conn != null) {
+                        conn.disconnect();
+                    }
+                }
+                if (DEBUG) Log.d(TAG, "Started downloading the updated video at "
+                        + mDownloadUrl);
+                final File updateFile;
+                try {
+                    updateFile = mInstaller.getStagingFile();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error preparing to download the updated video", e);
+                    return;
+                }
+                // The current video keeps playing meanwhile, so there is no hurry; leave
+                // bandwidth for the rest of the store.
+                final TokenBucket throttle = mInjector.getUpdateThrottle();
+                final ContentObserver limitObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        throttle.setRate(mInjector.getUpdateBandwidthLimit());
+                    }
+                };
+                mInjector.registerBandwidthLimitObserver(limitObserver);
+                String sha256;
+                try {
+                    sha256 = downloadDeltaUpdate(updateFile, throttle, expectedSha256);
+                    if (sha256 == null) {
+                        final HttpDownloader downloader =
+                                mInjector.getDownloader(mDownloadUrl, updateFile);
+                        setUpMirrors(downloader);
+                        downloader.setThrottle(throttle);
+                        downloader.setExpectedSha256(expectedSha256);
+                        mUpdateDownloader = downloader;
+                        if (mCancelled) {
                             return;
                         }
-                        final DownloadManager.Request request = createDownloadRequest();
-                        mVideoUpdateDownloadId = mDlm.enqueue(request);
-                        if (DEBUG) Log.d(TAG, "Started downloading the updated video at "
-                                + mDownloadUrl);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error while checking for an updated video", e);
-                    } finally {
-                        if (conn != null) {
-                            conn.disconnect();
+                        downloader.download();
+                        sha256 = downloader.getSha256();
+                    }
+                } catch (IOException e) {
+                    // The partial update is kept and resumed on the next check.
+                    Log.e(TAG, "Error while downloading the updated video", e);
+                    return;
+                } finally {
+                    mUpdateDownloader = null;
+                    mInjector.unregisterBandwidthLimitObserver(limitObserver);
+                }
+                // Installed even if the task was cancelled meanwhile: the update is complete
+                // and verified, installing it only costs a sync and a rename, and a staged
+                // update is deleted rather than reused by the next check.
+                installVideo(updateFile, sha256, true);
+                break;
+            case MSG_DOWNLOAD_VIDEO:
+                selectDownloadUrl();
+                final File stagingFile;
+                try {
+                    stagingFile = mInstaller.getStagingFile();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error preparing to download the video", e);
+                    dismissProgressDialog();
+                    mListener.onError();
+                    return;
+                }
+                final HttpDownloader downloader =
+                        mInjector.getDownloader(mDownloadUrl, stagingFile);
+                setUpMirrors(downloader);
+                downloader.setResponseListener(response -> {
+                    // Mirrors have validators of their own, updates are checked against the
+                    // main url.
+                    if (mDownloadUrl.equals(downloader.getCurrentUrl())) {
+                        mValidatorCache.update(response, System.currentTimeMillis());
+                    }
+                });
+                final GrowingFileDataSource dataSource =
+                        mInjector.isProgressivePlaybackEnabled()
+                                ? new GrowingFileDataSource(downloader, mDownloadFile) : null;
+                final AtomicBoolean streaming = new AtomicBoolean();
+                downloader.setProgressListener((downloadedBytes, totalBytes) -> {
+                    if (dataSource != null) {
+                        dataSource.onProgress();
+                        if (!streaming.get() && isReadyToPlay(dataSource)
+                                && streaming.compareAndSet(false, true)) {
+                            if (DEBUG) Log.d(TAG, "Playing the video while downloading, "
+                                    + downloadedBytes + " of " + totalBytes + " bytes");
+                            dismissProgressDialog();
+                            mListener.onStreamingAvailable(dataSource);
                         }
                     }
-                    break;
-                case MSG_DOWNLOAD_COMPLETE:
-                    checkDownloadsAndSetVideo(mVideoUpdateDownloadId);
-                    break;
-                case MSG_CLEANUP_DOWNLOAD_DIR:
-                    // If the video was downloaded to the same location as we needed, then
-                    // nothing else to do.
-                    if (mDownloadFile.getPath().equals(mDownloadedPath)) {
-                        return;
+                    updateProgressDialog(downloader.getStats(), downloadedBytes, totalBytes);
+                });
+                try {
+                    downloader.download();
+                    if (dataSource != null) {
+                        dataSource.onDownloadFinished();
                     }
-                    if (mDownloadFile.exists()) {
-                        mDownloadFile.delete();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error while downloading the video", e);
+                    if (dataSource != null) {
+                        dataSource.onDownloadFailed(e);
                     }
-                    if (new File(mDownloadedPath).renameTo(mDownloadFile)) {
-                        mListener.onFileDownloaded(mDownloadFile.getPath());
-                        final String downloadFileName = getFileBaseName(mDownloadFile.getName());
-                        // Delete other files in the directory
-                        for (File file : mDownloadFile.getParentFile().listFiles()) {
-                            if (getFileBaseName(file.getName()).startsWith(downloadFileName)
-                                    && !file.getPath().equals(mDownloadFile.getPath())) {
-                                file.delete();
-                            }
-                        }
+                    dismissProgressDialog();
+                    mListener.onError();
+                    // Whatever was downloaded so far is kept, so resume once the network
+                    // is back, or on the next boot otherwise.
+                    if (!isConnectedToNetwork()) {
+                        registerNetworkChangeReceiver();
                     }
-                    break;
+                    return;
+                }
+                dismissProgressDialog();
+                // The video being streamed keeps reading the file as it was downloaded.
+                if (!installVideo(stagingFile, downloader.getSha256(), !streaming.get())) {
+                    mListener.onError();
+                    return;
+                }
+                mInjector.scheduleUpdateCheck();
+                // The rest of the playlist only competes for bandwidth once the first clip
+                // is playing.
+                sendMessage(MSG_DOWNLOAD_PLAYLIST);
+                break;
+            case MSG_CLEANUP_STAGING_DIR:
+                mInstaller.cleanUpStaging();
+                break;
+            case MSG_DOWNLOAD_PLAYLIST:
+                downloadPlaylist();
+                break;
+        }
+    }
+
+    /**
+     * Picks the url to download, and its mirrors, the first time they are needed. Selecting
+     * the variant of the video queries the codecs and the display, which is too slow for the
+     * main thread the task is made on.
+     */
+    private void selectDownloadUrl() {
+        if (mDownloadUrl == null) {
+            mDownloadUrl = mInjector.getDownloadUrl();
+            mMirrorSelector = mInjector.getMirrorSelector();
+        }
+    }
+
+    /**
+     * Queues the download of the clips played after the main video, if the listener plays a
+     * playlist.
+     */
+    private void downloadPlaylist() {
+        if (!(mListener instanceof PlaylistListener)) {
+            return;
+        }
+        final PlaylistDownloader playlistDownloader;
+        synchronized (this) {
+            if (mCancelled || mPlaylistDownloader != null) {
+                return;
             }
+            playlistDownloader = startPlaylist();
         }
+        // The main video is always played first.
+        playlistDownloader.download(
+                playlistDownloader.getAssets(mInjector.getPlaylistUrls(), 1));
     }
 
-    private int checkDownloadsAndSetVideo(long downloadId) {
-        final DownloadManager.Query query =
-                new DownloadManager.Query().setFilterById(downloadId);
-        Cursor cursor = mDlm.query(query);
+    /**
+     * Creates the downloader of the playlist and registers the receivers it uses until
+     * {@link #stopPlaylist()}.
+     */
+    @GuardedBy("this")
+    private PlaylistDownloader startPlaylist() {
+        final PlaylistListener listener = (PlaylistListener) mListener;
+        final ContentCache cache = mInjector.getContentCache();
+        final BroadcastReceiver storageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final boolean lowStorage =
+                        Intent.ACTION_DEVICE_STORAGE_LOW.equals(intent.getAction());
+                // Trimming the cache deletes files.
+                mInjector.getDiskExecutor().execute(() -> cache.setLowStorage(lowStorage));
+            }
+        };
+        final TokenBucket throttle = mInjector.getUpdateThrottle();
+        final ContentObserver limitObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                throttle.setRate(mInjector.getUpdateBandwidthLimit());
+            }
+        };
+        mPlaylistDownloader = mInjector.getPlaylistDownloader(cache,
+                new PlaylistDownloader.Listener() {
+            @Override
+            public void onAssetReady(PlaylistDownloader.Asset asset) {
+                listener.onAssetDownloaded(asset.priority, asset.file.getPath());
+            }
+
+            @Override
+            public void onAssetFailed(PlaylistDownloader.Asset asset) {
+                listener.onAssetError(asset.priority);
+            }
+
+            @Override
+            public void onPlaylistFinished() {
+                stopPlaylist();
+            }
+        });
+        mPlaylistDownloader.setThrottle(throttle);
+        mInjector.registerBandwidthLimitObserver(limitObserver);
+        mPlaylistLimitObserver = limitObserver;
+        final IntentFilter storageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
+        storageFilter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
+        // The low storage broadcast is sticky, so this also tells if storage is low right now.
+        final Intent storageState =
+                mContext.registerReceiver(storageReceiver, storageFilter);
+        mStorageReceiver = storageReceiver;
+        if (storageState != null) {
+            storageReceiver.onReceive(mContext, storageState);
+        }
+        return mPlaylistDownloader;
+    }
+
+    /**
+     * Stops the downloads of the playlist, if any, and the receivers they use.
+     */
+    private synchronized void stopPlaylist() {
+        if (mStorageReceiver == null) {
+            return;
+        }
+        mContext.unregisterReceiver(mStorageReceiver);
+        mStorageReceiver = null;
+        mInjector.unregisterBandwidthLimitObserver(mPlaylistLimitObserver);
+        mPlaylistLimitObserver = null;
+        mPlaylistDownloader.shutdown();
+    }
+
+    /**
+     * @return the SHA-256 in hex of the downloaded or the preloaded video, or null if not
+     *         known. The preloaded video is hashed on the hashing pool the first time, and the
+     *         hash saved.
+     */
+    private String getContentHash(File video) {
+        if (video == mDownloadFile) {
+            return mStateStore.getContentHash(mDownloadFile.getName());
+        }
+        if (!video.exists()) {
+            return null;
+        }
+        // With the length and modification time, so that a preloaded video replaced by an
+        // OTA is hashed again.
+        final String key = video.getPath() + ":" + video.length() + ":" + video.lastModified();
+        final String savedSha256 = mStateStore.getContentHash(key);
+        if (savedSha256 != null) {
+            return savedSha256;
+        }
+        final FutureTask<String> task = new FutureTask<>(() -> hashFile(video));
+        mInjector.getHashingExecutor().execute(task);
+        final String sha256;
         try {
-            if (cursor != null & cursor.moveToFirst()) {
-                final int columnIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-                final int status = cursor.getInt(columnIndex);
-                if (status == DownloadManager.STATUS_SUCCESSFUL) {
-                    final String fileUri = cursor.getString(
-                            cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI));
-                    mDownloadedPath = Uri.parse(fileUri).getPath();
-                    if (DEBUG) Log.d(TAG, "Video successfully downloaded at " + mDownloadedPath);
-                    mListener.onFileDownloaded(mDownloadedPath);
-                    mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_CLEANUP_DOWNLOAD_DIR),
-                            CLEANUP_DELAY_MILLIS);
-                }
-                return status;
+            sha256 = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Could not hash " + video, e.getCause());
+            return null;
+        }
+        mStateStore.setContentHash(key, sha256);
+        return sha256;
+    }
+
+    private static String hashFile(File file) throws IOException {
+        final MessageDigest digest = ContentChunker.newSha256();
+        final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+        return ChunkManifest.toHex(digest.digest());
+    }
+
+    private HttpURLConnection openConditionalRequest(String method) throws IOException {
+        final HttpURLConnection conn = mInjector.openConnection(mDownloadUrl);
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        mValidatorCache.addConditions(conn);
+        return conn;
+    }
+
+    /**
+     * Makes the download go to the fastest mirror, if there are mirrors, probing them first if
+     * they haven't been lately.
+     */
+    private void setUpMirrors(HttpDownloader downloader) {
+        if (mMirrorSelector == null) {
+            return;
+        }
+        mMirrorSelector.load();
+        final long now = System.currentTimeMillis();
+        if (mMirrorSelector.needsProbe(now)) {
+            mMirrorSelector.probe(mInjector::openConnection, now);
+        }
+        downloader.setMirrors(mMirrorSelector, mInjector.getMirrorMinThroughput());
+    }
+
+    /**
+     * Builds the updated video from the chunks of the local copies that haven't changed, if
+     * the server publishes a chunk manifest.
+     *
+     * @return the SHA-256 of the update written to {@code updateFile}, or null if it wasn't.
+     */
+    private String downloadDeltaUpdate(File updateFile, TokenBucket throttle,
+            String expectedSha256) {
+        final String manifestUrl = mInjector.getChunkManifestUrl();
+        if (TextUtils.isEmpty(manifestUrl)) {
+            return null;
+        }
+        try {
+            final ChunkManifest manifest =
+                    DeltaUpdater.fetchManifest(mInjector::openConnection, manifestUrl);
+            final DeltaUpdater updater =
+                    new DeltaUpdater(mInjector::openConnection, mDownloadUrl, manifest);
+            updater.setThrottle(throttle);
+            updater.setHashingExecutor(mInjector.getHashingExecutor());
+            updater.setExpectedSha256(expectedSha256);
+            mDeltaUpdater = updater;
+            if (mCancelled) {
+                return null;
             }
-            if (mNetworkChangeReceiver != null) {
-                mContext.unregisterReceiver(mNetworkChangeReceiver);
-                mNetworkChangeReceiver = null;
+            updater.update(Arrays.asList(mDownloadFile, mPreloadVideoFile), updateFile);
+            if (DEBUG) Log.d(TAG, "Delta update reused " + updater.getBytesReused()
+                    + " bytes and fetched " + updater.getBytesFetched() + " bytes");
+            return updater.getSha256();
+        } catch (IOException e) {
+            if (!mCancelled) {
+                Log.w(TAG, "Delta update failed, downloading the whole video", e);
             }
+            return null;
+        } finally {
+            mDeltaUpdater = null;
+        }
+    }
+
+    private static boolean isReadyToPlay(GrowingFileDataSource dataSource) {
+        try {
+            return dataSource.isReadyToPlay();
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading the partially downloaded video", e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks the downloaded video and moves it over the installed one, and only then saves its
+     * validators and hash, and tells the listener.
+     *
+     * @param sha256 the SHA-256 of the video as downloaded, or null if not known.
+     * @param fastStart whether to move the moov box of the video ahead of its media data.
+     * @return false if the video could not be installed.
+     */
+    private boolean installVideo(File stagedFile, String sha256, boolean fastStart) {
+        try {
+            mInstaller.install(Mp4Validator.checkVideo(stagedFile, fastStart));
+        } catch (IOException e) {
+            Log.e(TAG, "Error installing the downloaded video", e);
+            stagedFile.delete();
+            return false;
+        }
+        mValidatorCache.save();
+        mStateStore.setContentHash(mDownloadFile.getName(), sha256);
+        if (DEBUG) Log.d(TAG, "Video successfully installed at " + mDownloadFile);
+        mListener.onFileDownloaded(mDownloadFile.getPath());
+        return true;
+    }
+
+    private synchronized void registerNetworkChangeReceiver() {
+        if (mNetworkChangeReceiver == null && !mCancelled) {
+            mNetworkChangeReceiver = new NetworkChangeReceiver();
+            mContext.registerReceiver(mNetworkChangeReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    private synchronized void unregisterNetworkChangeReceiver() {
+        if (mNetworkChangeReceiver != null) {
+            mContext.unregisterReceiver(mNetworkChangeReceiver);
+            mNetworkChangeReceiver = null;
         }
-        return -1;
     }
 
     private class NetworkChangeReceiver extends BroadcastReceiver {
@@ -258,11 +721,8 @@ class DownloadVideoTask {
         public void onReceive(Context context, Intent intent) {
             if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())
                     && isConnectedToNetwork()) {
-                if (mVideoAlreadySet) {
-                    mHandler.sendMessage(mHandler.obtainMessage(MSG_CHECK_FOR_UPDATE));
-                } else {
-                    startDownload();
-                }
+                unregisterNetworkChangeReceiver();
+                startDownload();
             }
         }
     };
@@ -272,20 +732,71 @@ class DownloadVideoTask {
         mProgressDialog.show();
     }
 
+    /**
+     * Shows how much of the video was downloaded, how fast, and how long the rest should take.
+     * Called from the download threads, but only updates the dialog a few times a second.
+     */
+    private void updateProgressDialog(DownloadStats stats, long downloadedBytes,
+            long totalBytes) {
+        final long nowNanos = System.nanoTime();
+        final long shownAtNanos = mProgressShownAtNanos.get();
+        final boolean done = totalBytes >= 0 && downloadedBytes >= totalBytes;
+        if ((!done && nowNanos - shownAtNanos < PROGRESS_INTERVAL_NANOS)
+                || !mProgressShownAtNanos.compareAndSet(shownAtNanos, nowNanos)) {
+            return;
+        }
+        final long bytesPerSecond = stats.getRecentBytesPerSecond();
+        final long etaMillis =
+                totalBytes < 0 ? -1 : stats.getEtaMillis(totalBytes - downloadedBytes);
+        mMainExecutor.execute(() -> {
+            final ProgressDialog dialog = mProgressDialog;
+            if (dialog == null) {
+                return;
+            }
+            if (totalBytes > 0) {
+                dialog.setIndeterminate(false);
+                dialog.setProgress((int) (downloadedBytes * 100 / totalBytes));
+            }
+            dialog.setMessage(mInjector.getProgressMessage(downloadedBytes, totalBytes,
+                    bytesPerSecond, etaMillis));
+        });
+    }
+
+    private void dismissProgressDialog() {
+        if (mProgressDialog != null) {
+            mProgressDialog.dismiss();
+            mProgressDialog = null;
+        }
+    }
+
     private boolean isConnectedToNetwork() {
         ConnectivityManager cm = mInjector.getConnectivityManager();
         NetworkInfo info = cm.getActiveNetworkInfo();
         return info != null && info.isConnected();
     }
 
-    private String getFileBaseName(String fileName) {
-        final int pos = fileName.lastIndexOf(".");
-        return pos > 0 ? fileName.substring(0, pos) : fileName;
-    }
-
     interface ResultListener {
         void onFileDownloaded(String downloadedFilePath);
         void onError();
+
+        /**
+         * Called from the download thread once enough of the video has been downloaded to
+         * start playing it. {@link #onFileDownloaded} is still called when the download is
+         * complete.
+         */
+        void onStreamingAvailable(MediaDataSource dataSource);
+    }
+
+    /**
+     * Listener of a task that also downloads the clips played in rotation after the main video,
+     * listed in {@code retail_demo_playlist_urls}. Clips are identified by their position in
+     * the playlist, the main video being 0.
+     *
+     * Called from download threads, as soon as each clip is ready, in no particular order.
+     */
+    interface PlaylistListener extends ResultListener {
+        void onAssetDownloaded(int position, String filePath);
+        void onAssetError(int position);
     }
 
     /**
@@ -294,17 +805,41 @@ class DownloadVideoTask {
     @VisibleForTesting
     static class Injector {
         private final Context mContext;
+        private boolean mVariantSelected;
+        private VideoVariantSelector.Variant mVariant;
 
         Injector(Context context) {
             mContext = context;
         }
 
-        DownloadManager getDownloadManager() {
-            return (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+        String getDownloadUrl() {
+            final VideoVariantSelector.Variant variant = getVideoVariant();
+            return variant != null ? variant.url
+                    : mContext.getString(R.string.retail_demo_video_download_url);
         }
 
-        String getDownloadUrl() {
-            return mContext.getString(R.string.retail_demo_video_download_url);
+        /**
+         * @return the variant of the video to download, or null if there are none the device
+         *         can decode in hardware.
+         */
+        VideoVariantSelector.Variant getVideoVariant() {
+            if (mVariantSelected) {
+                return mVariant;
+            }
+            mVariantSelected = true;
+            final List<VideoVariantSelector.Variant> variants = VideoVariantSelector.parse(
+                    mContext.getResources().getStringArray(R.array.retail_demo_video_variants));
+            if (variants.isEmpty()) {
+                return null;
+            }
+            final Display.Mode mode =
+                    mContext.getSystemService(WindowManager.class).getDefaultDisplay().getMode();
+            mVariant = VideoVariantSelector.select(variants,
+                    VideoVariantSelector.getHardwareDecoders(), mode.getPhysicalWidth(),
+                    mode.getPhysicalHeight());
+            Log.i(TAG, "Selected " + mVariant + " for a " + mode.getPhysicalWidth() + "x"
+                    + mode.getPhysicalHeight() + " display");
+            return mVariant;
         }
 
         ConnectivityManager getConnectivityManager() {
@@ -312,25 +847,180 @@ class DownloadVideoTask {
                     Context.CONNECTIVITY_SERVICE);
         }
 
-        Handler getHandler(DownloadVideoTask task) {
-            // Initialize handler
-            HandlerThread thread = new HandlerThread(TAG);
-            thread.start();
-            return task.new ThreadHandler(thread.getLooper());
+        /**
+         * @return the executor the messages of the task are handled on, one at a time. Tasks
+         *         downloading to the same file share it, so that one never cleans up the
+         *         staging directory while the other downloads into it.
+         */
+        Executor getExecutor(File downloadFile) {
+            synchronized (sExecutors) {
+                Executor executor = sExecutors.get(downloadFile.getPath());
+                if (executor == null) {
+                    executor = BackgroundScheduler.getInstance().newSerialExecutor(
+                            BackgroundScheduler.NETWORK);
+                    sExecutors.put(downloadFile.getPath(), executor);
+                }
+                return executor;
+            }
+        }
+
+        Executor getDiskExecutor() {
+            return BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.DISK);
+        }
+
+        Executor getHashingExecutor() {
+            return BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.HASHING);
         }
 
         ProgressDialog getProgressDialog() {
             final ProgressDialog dialog = new ProgressDialog(
                     new ContextThemeWrapper(mContext, android.R.style.Theme_Material_Light_Dialog));
             dialog.setMessage(mContext.getString(R.string.downloading_video_msg));
-            dialog.setIndeterminate(false);
+            // Until the length of the video is known.
+            dialog.setIndeterminate(true);
             dialog.setCancelable(false);
-            dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.setMax(100);
+            // The sizes are in the message.
+            dialog.setProgressNumberFormat(null);
             return dialog;
         }
 
+        /**
+         * @return the message of the progress dialog, with the sizes, speed and time left if
+         *         they are known.
+         */
+        String getProgressMessage(long downloadedBytes, long totalBytes, long bytesPerSecond,
+                long etaMillis) {
+            if (totalBytes < 0 || bytesPerSecond <= 0 || etaMillis < 0) {
+                return mContext.getString(R.string.downloading_video_msg);
+            }
+            return mContext.getString(R.string.downloading_video_progress_msg,
+                    Formatter.formatShortFileSize(mContext, downloadedBytes),
+                    Formatter.formatShortFileSize(mContext, totalBytes),
+                    Formatter.formatShortFileSize(mContext, bytesPerSecond),
+                    DateUtils.formatElapsedTime(TimeUnit.MILLISECONDS.toSeconds(etaMillis)));
+        }
+
+        /**
+         * @return the executor of the UI thread.
+         */
+        Executor getMainExecutor() {
+            return new Handler(Looper.getMainLooper())::post;
+        }
+
         HttpURLConnection openConnection(String downloadUri) throws IOException {
-            return (HttpURLConnection) new URL(downloadUri).openConnection();
+            final HttpURLConnection conn =
+                    (HttpURLConnection) new URL(downloadUri).openConnection();
+            // A host that is down shouldn't hold up the move to the next mirror.
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+            return conn;
+        }
+
+        String getChunkManifestUrl() {
+            if (getVideoVariant() != null) {
+                // Only describes the video of the download url.
+                return "";
+            }
+            return mContext.getString(R.string.retail_demo_video_chunk_manifest_url);
+        }
+
+        int getDownloadSegmentCount() {
+            return mContext.getResources().getInteger(R.integer.retail_demo_download_segments);
+        }
+
+        long getUpdateBandwidthLimit() {
+            return Settings.Global.getLong(mContext.getContentResolver(),
+                    UPDATE_BANDWIDTH_LIMIT_SETTING, mContext.getResources().getInteger(
+                            R.integer.retail_demo_update_bandwidth_limit));
+        }
+
+        TokenBucket getUpdateThrottle() {
+            return new TokenBucket(getUpdateBandwidthLimit(), mContext.getResources().getInteger(
+                    R.integer.retail_demo_update_burst_bytes));
+        }
+
+        void registerBandwidthLimitObserver(ContentObserver observer) {
+            mContext.getContentResolver().registerContentObserver(
+                    Settings.Global.getUriFor(UPDATE_BANDWIDTH_LIMIT_SETTING), false, observer);
+        }
+
+        void unregisterBandwidthLimitObserver(ContentObserver observer) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+
+        boolean isProgressivePlaybackEnabled() {
+            return mContext.getResources().getBoolean(R.bool.retail_demo_progressive_playback);
+        }
+
+        String[] getPlaylistUrls() {
+            return mContext.getResources().getStringArray(R.array.retail_demo_playlist_urls);
+        }
+
+        ContentCache getContentCache() {
+            return new ContentCache(
+                    new File(mContext.getObbDir(), PlaylistDownloader.PLAYLIST_DIR_NAME),
+                    new File(mContext.getObbDir(), PlaylistDownloader.INDEX_FILE_NAME),
+                    mContext.getResources().getInteger(R.integer.retail_demo_content_cache_quota_mb)
+                            * 1024L * 1024L);
+        }
+
+        PlaylistDownloader getPlaylistDownloader(ContentCache cache,
+                PlaylistDownloader.Listener listener) {
+            return new PlaylistDownloader(cache,
+                    BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.NETWORK),
+                    mContext.getResources().getInteger(
+                            R.integer.retail_demo_playlist_download_threads),
+                    this::getDownloader, listener);
+        }
+
+        /**
+         * @return the ranking of the download url and its mirrors, or null if there are no
+         *         mirrors.
+         */
+        MirrorSelector getMirrorSelector() {
+            final String[] mirrors = mContext.getResources().getStringArray(
+                    R.array.retail_demo_video_mirror_urls);
+            // Mirrors only have the video of the download url.
+            if (mirrors.length == 0 || getVideoVariant() != null) {
+                return null;
+            }
+            final List<String> urls = new ArrayList<>();
+            urls.add(getDownloadUrl());
+            urls.addAll(Arrays.asList(mirrors));
+            return new MirrorSelector(urls,
+                    new File(mContext.getObbDir(), MIRROR_RANKING_FILE_NAME));
+        }
+
+        long getMirrorMinThroughput() {
+            return mContext.getResources().getInteger(R.integer.retail_demo_mirror_min_throughput);
+        }
+
+        void scheduleUpdateCheck() {
+            UpdateCheckJobService.schedule(mContext);
+        }
+
+        StateStore getStateStore() {
+            return StateStore.getInstance(mContext.getObbDir());
+        }
+
+        ValidatorCache getValidatorCache() {
+            return new ValidatorCache(getStateStore());
+        }
+
+        DownloadStatsLog getDownloadStatsLog() {
+            return new DownloadStatsLog(getStateStore());
+        }
+
+        HttpDownloader getDownloader(String downloadUri, File destination) {
+            final HttpDownloader downloader =
+                    new HttpDownloader(this::openConnection, downloadUri, destination);
+            downloader.setSegmentCount(getDownloadSegmentCount());
+            downloader.setSegmentExecutor(
+                    BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.NETWORK));
+            downloader.setStatsLog(getDownloadStatsLog());
+            return downloader;
         }
     }
 }
\ No newline at end of file
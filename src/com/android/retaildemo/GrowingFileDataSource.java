@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lets {@link android.media.MediaPlayer} play the video while {@link HttpDownloader} is still
+ * writing it. Reads of bytes that haven't arrived yet block until they do, or until the
+ * download fails.
+ */
+class GrowingFileDataSource extends MediaDataSource {
+    /** How much of the start of the file to have before playback is worth starting. */
+    private static final long PREBUFFER_BYTES = 4 * 1024 * 1024; // 4 MB
+    private static final long WAIT_MILLIS = 1000;
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
+    private final HttpDownloader mDownloader;
+    private final File mInstalledFile;
+
+    private RandomAccessFile mFile;
+    private boolean mFinished;
+    private IOException mError;
+    // Bumped by close() so that reads blocked on behalf of a released player give up.
+    private int mGeneration;
+
+    /**
+     * @param installedFile where the video ends up once the download is complete and has been
+     *        installed.
+     */
+    GrowingFileDataSource(HttpDownloader downloader, File installedFile) {
+        mDownloader = downloader;
+        mInstalledFile = installedFile;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        final int generation = mGeneration;
+        long available;
+        while ((available = getAvailableBytes(position)) == 0) {
+            if (mError != null) {
+                throw mError;
+            }
+            if (mFinished || generation != mGeneration) {
+                return -1;
+            }
+            try {
+                wait(WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + position);
+            }
+        }
+        final RandomAccessFile file = openFile();
+        file.seek(position);
+        return file.read(buffer, offset, (int) Math.min(size, available));
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return mDownloader.getTotalLength();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ++mGeneration;
+        notifyAll();
+        if (mFile != null) {
+            mFile.close();
+            mFile = null;
+        }
+    }
+
+    synchronized void onProgress() {
+        notifyAll();
+    }
+
+    synchronized void onDownloadFinished() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    synchronized void onDownloadFailed(IOException error) {
+        mError = error;
+        notifyAll();
+    }
+
+    /**
+     * @return true once the {@code moov} box and the first few megabytes of the video are on
+     *         disk, so that the player can prepare and play for a while without stalling.
+     */
+    synchronized boolean isReadyToPlay() throws IOException {
+        final long total = getSize();
+        final long prebuffer = total >= 0 ? Math.min(total, PREBUFFER_BYTES) : PREBUFFER_BYTES;
+        if (!mFinished && mDownloader.getAvailableBytes(0) < prebuffer) {
+            return false;
+        }
+        // Walk the top level boxes until the moov box is found; it's either before or after
+        // the media data.
+        final byte[] header = new byte[LARGE_BOX_HEADER_SIZE];
+        long position = 0;
+        while (total < 0 || position < total) {
+            if (!isRangeAvailable(position, BOX_HEADER_SIZE)) {
+                return false;
+            }
+            final RandomAccessFile file = openFile();
+            file.seek(position);
+            file.readFully(header, 0, BOX_HEADER_SIZE);
+            long boxSize = readUint32(header, 0);
+            final String type = new String(header, 4, 4, StandardCharsets.US_ASCII);
+            if (boxSize == 1) {
+                // 64-bit size following the type.
+                if (!isRangeAvailable(position, LARGE_BOX_HEADER_SIZE)) {
+                    return false;
+                }
+                file.readFully(header, BOX_HEADER_SIZE, LARGE_BOX_HEADER_SIZE - BOX_HEADER_SIZE);
+                boxSize = (readUint32(header, 8) << 32) | readUint32(header, 12);
+            } else if (boxSize == 0) {
+                // The box extends to the end of the file.
+                boxSize = total < 0 ? -1 : total - position;
+            }
+            if (boxSize < BOX_HEADER_SIZE) {
+                // Not something we understand, let the player decide.
+                return true;
+            }
+            if ("moov".equals(type)) {
+                return isRangeAvailable(position, boxSize);
+            }
+            position += boxSize;
+        }
+        return false;
+    }
+
+    private long getAvailableBytes(long position) {
+        if (mFinished) {
+            return Math.max(0, mDownloader.getTotalLength() - position);
+        }
+        return mDownloader.getAvailableBytes(position);
+    }
+
+    private boolean isRangeAvailable(long position, long length) {
+        final long end = position + length;
+        while (position < end) {
+            final long available = getAvailableBytes(position);
+            if (available == 0) {
+                return false;
+            }
+            position += available;
+        }
+        return true;
+    }
+
+    private RandomAccessFile openFile() throws FileNotFoundException {
+        if (mFile != null) {
+            return mFile;
+        }
+        // Once complete, the partial file is renamed to the downloader's destination, which
+        // is then moved to where the video is installed.
+        final File[] files = { mDownloader.getPartialFile(), mDownloader.getDestination(),
+                mInstalledFile };
+        FileNotFoundException error = null;
+        for (File file : files) {
+            try {
+                mFile = new RandomAccessFile(file, "r");
+                return mFile;
+            } catch (FileNotFoundException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    private static long readUint32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xffL) << 24) | ((buffer[offset + 1] & 0xffL) << 16)
+                | ((buffer[offset + 2] & 0xffL) << 8) | (buffer[offset + 3] & 0xffL);
+    }
+}
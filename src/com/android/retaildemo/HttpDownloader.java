@@ -0,0 +1,1094 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Downloads a url into a partial file next to the destination and renames it once complete.
+ *
+ * The validator of the response and the progress of every segment are saved alongside the
+ * partial file, so a failed download, whether in this process or after a reboot, is resumed
+ * with {@code Range} requests guarded by {@code If-Range} instead of being started over.
+ *
+ * When more than one segment is requested and the server supports byte ranges, the file is
+ * split into that many ranges which are fetched in parallel and written straight to their
+ * offsets in the partial file, on the executor set with {@link #setSegmentExecutor}.
+ *
+ * The SHA-256 of the file is computed as it is written, and checked against the expected hash
+ * if there is one, either set by the caller or sent by the server in a {@code Digest} header.
+ * A file that doesn't match is discarded rather than renamed to the destination.
+ *
+ * With a {@link MirrorSelector}, the file is downloaded from the fastest mirror, and from the
+ * next one when a mirror fails or its throughput drops below a threshold, the other segments
+ * being stopped right away. Ranges fetched from
+ * another mirror than the one the download started with are only kept when they are known to
+ * be from the same file: same length, and the same SHA-256 or validator.
+ */
+class HttpDownloader {
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String STATE_SUFFIX = ".state";
+
+    /** Ranges smaller than this are not worth a connection of their own. */
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024; // 1 MB
+    static final int MAX_SEGMENTS = 8;
+
+    private static final int STATE_VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PERSIST_INTERVAL_BYTES = 4 * 1024 * 1024; // 4 MB
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 2 * 1000; // 2 seconds
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final Metrics.Histogram sDownloadMillis = Metrics.histogram("download_ms");
+    private static final Metrics.Histogram sDownloadBytesPerSecond =
+            Metrics.histogram("download_bytes_per_second");
+    private static final Metrics.Counter sDownloadRetries = Metrics.counter("download_retries");
+    private static final Metrics.Counter sDownloadFailures = Metrics.counter("download_failures");
+
+    // How much reading time the throughput of a connection is measured over.
+    private static final long THROUGHPUT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Shorter connections are too noisy to tell how fast a mirror is.
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 1024 * 1024;
+
+    /** Fetches one segment of the file. */
+    private interface SegmentFetch {
+        void run() throws IOException;
+    }
+
+    interface ConnectionFactory {
+        HttpURLConnection openConnection(String url) throws IOException;
+    }
+
+    /**
+     * Notified of every response whose body is about to be written to the file, possibly from
+     * several threads at once.
+     */
+    interface ResponseListener {
+        void onResponse(HttpURLConnection conn);
+    }
+
+    /**
+     * Notified every time a buffer has been written to the partial file, possibly from several
+     * threads at once.
+     */
+    interface ProgressListener {
+        /**
+         * @param totalBytes the length of the file, or -1 if not known yet.
+         */
+        void onProgress(long downloadedBytes, long totalBytes);
+    }
+
+    /**
+     * Thrown when a mirror delivers slower than the minimum throughput, to move on to the next
+     * one.
+     */
+    private static final class SlowMirrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SlowMirrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a mirror has another version of the file than the partial file, which is
+     * then discarded, to start over from the same mirror.
+     */
+    private static final class MirrorMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MirrorMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A byte range of the file and how much of it has been written so far.
+     */
+    @VisibleForTesting
+    static final class Segment {
+        final long start;
+        // -1 until the end of the stream if the server didn't send a length.
+        volatile long length;
+        volatile long written;
+
+        Segment(long start, long length, long written) {
+            this.start = start;
+            this.length = length;
+            this.written = written;
+        }
+
+        long position() {
+            return start + written;
+        }
+
+        boolean isComplete() {
+            return length >= 0 && written >= length;
+        }
+    }
+
+    private final ConnectionFactory mConnectionFactory;
+    private final String mUrl;
+    private final File mDestination;
+    private final File mPartialFile;
+    private final File mStateFile;
+
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mRetryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private int mSegmentCount = 1;
+    private ResponseListener mResponseListener;
+    private ProgressListener mProgressListener;
+    private TokenBucket mThrottle;
+    private String mExpectedSha256;
+    private MirrorSelector mMirrors;
+    private Executor mSegmentExecutor;
+    private long mMinThroughput;
+    private volatile boolean mCancelled;
+    private volatile DownloadStats mStats;
+    private DownloadStatsLog mStatsLog;
+
+    // The first error of a segment in the current attempt, that stops the other segments.
+    private volatile IOException mSegmentError;
+    // Of the segments streaming right now, disconnected to stop them.
+    @GuardedBy("mConnections")
+    private final Set<HttpURLConnection> mConnections = new HashSet<>();
+    private final AtomicInteger mActiveStreams = new AtomicInteger();
+
+    private List<String> mMirrorUrls;
+    private int mMirrorIndex;
+    private volatile String mCurrentUrl;
+
+    // Persisted along with the partial file.
+    private String mValidator;
+    // The url the validator was sent by; other mirrors may not send the same one.
+    private String mValidatorUrl;
+    private String mServerSha256;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    // Hash of the contiguous prefix of the partial file, extended as segments are written.
+    private final ReentrantLock mDigestLock = new ReentrantLock();
+    private MessageDigest mDigest;
+    private volatile long mDigestedBytes;
+    private ByteBuffer mDigestBuffer;
+    private String mSha256;
+
+    HttpDownloader(ConnectionFactory connectionFactory, String url, File destination) {
+        mConnectionFactory = connectionFactory;
+        mUrl = url;
+        mCurrentUrl = url;
+        mDestination = destination;
+        mPartialFile = new File(destination.getPath() + PARTIAL_SUFFIX);
+        mStateFile = new File(mPartialFile.getPath() + STATE_SUFFIX);
+    }
+
+    void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    void setRetryDelayMillis(long retryDelayMillis) {
+        mRetryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Sets the number of ranges to fetch in parallel. Only applies to downloads that have not
+     * been started yet; a resumed download keeps the segments it was started with.
+     */
+    void setSegmentCount(int segmentCount) {
+        mSegmentCount = Math.max(1, Math.min(segmentCount, MAX_SEGMENTS));
+    }
+
+    /**
+     * Sets the executor the segments after the first one are fetched on. Without one, or while
+     * its threads are busy, they are fetched one after the other by the thread downloading.
+     */
+    void setSegmentExecutor(Executor executor) {
+        mSegmentExecutor = executor;
+    }
+
+    void setResponseListener(ResponseListener listener) {
+        mResponseListener = listener;
+    }
+
+    void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Limits the download speed, across all segments. Downloads are not throttled by default.
+     */
+    void setThrottle(TokenBucket throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * Sets the SHA-256 the file must have, in hex, taking precedence over the hash sent by the
+     * server.
+     */
+    void setExpectedSha256(String sha256) {
+        mExpectedSha256 = sha256;
+    }
+
+    /**
+     * Records the stats of every call to {@link #download()} in {@code statsLog}.
+     */
+    void setStatsLog(DownloadStatsLog statsLog) {
+        mStatsLog = statsLog;
+    }
+
+    /**
+     * Downloads from the mirrors ranked by {@code mirrors} instead of the url, and records how
+     * they perform. A mirror slower than {@code minBytesPerSecond} is left for the next one, as
+     * long as there is another one.
+     */
+    void setMirrors(MirrorSelector mirrors, long minBytesPerSecond) {
+        mMirrors = mirrors;
+        mMinThroughput = minBytesPerSecond;
+    }
+
+    /**
+     * @return the url requests currently go to.
+     */
+    String getCurrentUrl() {
+        return mCurrentUrl;
+    }
+
+    /**
+     * @return the SHA-256 of the downloaded file in hex, once {@link #download()} succeeded.
+     */
+    String getSha256() {
+        return mSha256;
+    }
+
+    /**
+     * @return how fast the download is going, or went, once {@link #download()} was called.
+     */
+    DownloadStats getStats() {
+        return mStats;
+    }
+
+    File getDestination() {
+        return mDestination;
+    }
+
+    File getPartialFile() {
+        return mPartialFile;
+    }
+
+    /**
+     * Stops the download at the next buffer boundary. The partial file is kept so that the
+     * download can be resumed later.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Downloads the url, resuming any partial download left behind earlier, and retrying with
+     * a linear backoff when connections fail midway.
+     *
+     * @throws IOException if the download could not be completed within the allowed attempts.
+     *         Whatever was downloaded so far is kept for the next call.
+     */
+    void download() throws IOException {
+        mStats = new DownloadStats(System.nanoTime());
+        readState();
+        resetDigest();
+        mMirrorUrls = mMirrors != null ? mMirrors.getRankedUrls() : null;
+        mMirrorIndex = 0;
+        mCurrentUrl = mMirrorUrls != null ? mMirrorUrls.get(0) : mUrl;
+        IOException lastError = null;
+        boolean complete = false;
+        try {
+            for (int attempt = 1; attempt <= mMaxAttempts && !mCancelled; ++attempt) {
+                if (attempt > 1) {
+                    mStats.onRetry();
+                    sDownloadRetries.increment();
+                }
+                boolean slowMirror = false;
+                mSegmentError = null;
+                try {
+                    if (mSegments.isEmpty()) {
+                        start();
+                    } else {
+                        resume();
+                    }
+                    if (isComplete()) {
+                        finish();
+                        complete = true;
+                        return;
+                    }
+                } catch (SlowMirrorException e) {
+                    lastError = e;
+                    slowMirror = true;
+                } catch (MirrorMismatchException e) {
+                    // Not the mirror's fault.
+                    lastError = e;
+                    continue;
+                } catch (IOException e) {
+                    lastError = e;
+                }
+                if (mMirrorUrls != null && mMirrorUrls.size() > 1) {
+                    if (!slowMirror) {
+                        mMirrors.recordFailure(mCurrentUrl);
+                    }
+                    mMirrorIndex = (mMirrorIndex + 1) % mMirrorUrls.size();
+                    mCurrentUrl = mMirrorUrls.get(mMirrorIndex);
+                    if (slowMirror) {
+                        // The next mirror is tried right away, there is nothing to wait for.
+                        continue;
+                    }
+                }
+                if (attempt < mMaxAttempts) {
+                    sleep(mRetryDelayMillis * attempt);
+                }
+            }
+        } finally {
+            final long endNanos = System.nanoTime();
+            mStats.finish(endNanos);
+            if (complete) {
+                sDownloadMillis.record(mStats.getDurationMillis(endNanos));
+                sDownloadBytesPerSecond.record(mStats.getMeanBytesPerSecond(endNanos));
+            } else if (!mCancelled) {
+                sDownloadFailures.increment();
+            }
+            if (mStatsLog != null) {
+                // Recorded under the url that was used last, to tell slow mirrors apart.
+                mStatsLog.record(mCurrentUrl, mStats, complete, System.currentTimeMillis());
+            }
+            if (mMirrors != null) {
+                try {
+                    mMirrors.save();
+                } catch (IOException e) {
+                    // Only costs a probe next time.
+                }
+            }
+        }
+        if (mCancelled) {
+            throw new IOException("Download of " + mUrl + " cancelled");
+        }
+        throw lastError != null ? lastError
+                : new IOException("Download of " + mUrl + " did not complete");
+    }
+
+    /**
+     * Starts a fresh download. With more than one segment requested, the first request asks
+     * for an open ended range: a 206 response, or a 200 response advertising
+     * {@code Accept-Ranges: bytes}, tells us ranges are supported and then carries the first
+     * segment. Anything else falls back to a single stream.
+     */
+    private void start() throws IOException {
+        final String url = mCurrentUrl;
+        final HttpURLConnection conn = mConnectionFactory.openConnection(url);
+        try {
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (mSegmentCount > 1) {
+                conn.setRequestProperty("Range", "bytes=0-");
+            }
+            final int responseCode = conn.getResponseCode();
+            final long totalLength;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                final String contentRange = conn.getHeaderField("Content-Range");
+                if (parseContentRangeStart(contentRange) != 0) {
+                    throw new IOException("Unexpected Content-Range for " + url);
+                }
+                totalLength = parseContentRangeTotal(contentRange);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                totalLength = conn.getContentLengthLong();
+            } else {
+                throw new IOException("Unexpected response " + responseCode + " for " + url);
+            }
+            mValidator = getStrongValidator(conn);
+            mValidatorUrl = url;
+            mServerSha256 = parseSha256Digest(conn.getHeaderField("Digest"));
+            final boolean acceptsRanges = responseCode == HttpURLConnection.HTTP_PARTIAL
+                    || "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+            // Ranges fetched separately can only be stitched together if they are known to
+            // come from the same version of the file.
+            final boolean segmented = acceptsRanges && mValidator != null && totalLength >= 0;
+            notifyResponse(conn);
+            synchronized (this) {
+                mSegments.clear();
+                mSegments.addAll(planSegments(totalLength, segmented ? mSegmentCount : 1));
+            }
+            resetDigest();
+            writeState();
+
+            try (FileChannel channel = openChannel(true)) {
+                final Segment first = mSegments.get(0);
+                fetchSegments(() -> stream(conn, first, channel, url),
+                        new ArrayList<>(mSegments.subList(1, mSegments.size())), channel);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private void resume() throws IOException {
+        final List<Segment> incomplete = new ArrayList<>();
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                incomplete.add(segment);
+            }
+        }
+        if (incomplete.isEmpty()) {
+            return;
+        }
+        try (FileChannel channel = openChannel(false)) {
+            final Segment first = incomplete.get(0);
+            fetchSegments(() -> fetch(first, channel), incomplete.subList(1, incomplete.size()),
+                    channel);
+        }
+    }
+
+    /**
+     * Runs {@code first} and fetches the {@code others} segments in parallel, and waits for all
+     * of them. As soon as one of them fails, the others are stopped, and the first error is
+     * thrown.
+     */
+    private void fetchSegments(SegmentFetch first, List<Segment> others, FileChannel channel)
+            throws IOException {
+        final List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (Segment segment : others) {
+            final FutureTask<Void> task = new FutureTask<>(() -> {
+                runSegment(() -> fetch(segment, channel));
+                return null;
+            });
+            tasks.add(task);
+            if (mSegmentExecutor != null) {
+                mSegmentExecutor.execute(task);
+            }
+        }
+        try {
+            runSegment(first);
+        } catch (IOException e) {
+            // Already in mSegmentError.
+        }
+        // Segments no thread has picked up yet are fetched here rather than waited for, so
+        // that downloads sharing the threads can't all end up waiting on each other.
+        for (FutureTask<Void> task : tasks) {
+            task.run();
+        }
+        awaitAll(tasks);
+        final IOException error = mSegmentError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void runSegment(SegmentFetch fetch) throws IOException {
+        try {
+            fetch.run();
+        } catch (IOException e) {
+            failSegments(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the segments still streaming, by disconnecting them, once one of them failed.
+     */
+    private void failSegments(IOException error) {
+        synchronized (mConnections) {
+            if (mSegmentError == null) {
+                mSegmentError = error;
+            }
+            for (HttpURLConnection conn : mConnections) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Fetches the rest of a segment with a range request.
+     */
+    private void fetch(Segment segment, FileChannel channel) throws IOException {
+        if (mSegmentError != null) {
+            // Another segment failed before this one was started.
+            return;
+        }
+        final boolean singleStream = mSegments.size() == 1;
+        if (singleStream && mValidator == null) {
+            // Can't tell whether the bytes we have still belong to the same file.
+            segment.written = 0;
+            resetDigest();
+            // Nor how long the file is now, a shorter one would leave the old tail behind.
+            channel.truncate(0);
+        }
+        final long position = segment.position();
+        final String url = mCurrentUrl;
+        final boolean sameMirror = url.equals(mValidatorUrl);
+        final HttpURLConnection conn = mConnectionFactory.openConnection(url);
+        try {
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (position > 0 || !singleStream) {
+                conn.setRequestProperty("Range", "bytes=" + position + "-"
+                        + (segment.length >= 0 ? segment.start + segment.length - 1 : ""));
+                if (mValidator != null && sameMirror) {
+                    conn.setRequestProperty("If-Range", mValidator);
+                }
+            }
+            final int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                if (parseContentRangeStart(conn.getHeaderField("Content-Range")) != position) {
+                    throw new IOException("Unexpected Content-Range for " + url);
+                }
+                if (!sameMirror && !isSameFile(conn)) {
+                    discardPartial();
+                    throw new MirrorMismatchException(url + " has another version of " + mUrl);
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // The file changed on the server since the partial file was written, and
+                // If-Range gave us the whole thing again.
+                if (!singleStream) {
+                    discardPartial();
+                    throw new IOException(url + " changed while downloading");
+                }
+                mValidator = getStrongValidator(conn);
+                mValidatorUrl = url;
+                mServerSha256 = parseSha256Digest(conn.getHeaderField("Digest"));
+                segment.written = 0;
+                segment.length = conn.getContentLengthLong();
+                resetDigest();
+                channel.truncate(0);
+                writeState();
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                discardPartial();
+                throw new IOException("Saved range no longer valid for " + url);
+            } else {
+                throw new IOException("Unexpected response " + responseCode + " for " + url);
+            }
+            notifyResponse(conn);
+            stream(conn, segment, channel, url);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return true if a range response from a mirror other than the one the download started
+     *         with is part of the same file. When the SHA-256 of the file is known, a matching
+     *         length is enough, since the whole file is checked against it in the end.
+     */
+    private boolean isSameFile(HttpURLConnection conn) {
+        if (parseContentRangeTotal(conn.getHeaderField("Content-Range")) != getTotalLength()) {
+            return false;
+        }
+        final String sha256 = parseSha256Digest(conn.getHeaderField("Digest"));
+        if (mServerSha256 != null && sha256 != null) {
+            return mServerSha256.equalsIgnoreCase(sha256);
+        }
+        if (mServerSha256 != null || mExpectedSha256 != null) {
+            return true;
+        }
+        return mValidator != null && mValidator.equals(getStrongValidator(conn));
+    }
+
+    /**
+     * Writes the stream to the segment's position in the partial file until the segment is
+     * complete, saving the progress every few megabytes and when the stream ends.
+     *
+     * The throughput of the connection is measured over the time spent reading, so that time
+     * spent throttled or writing doesn't count against the mirror.
+     */
+    private void stream(HttpURLConnection conn, Segment segment, FileChannel channel,
+            String url) throws IOException {
+        synchronized (mConnections) {
+            if (mSegmentError != null) {
+                return;
+            }
+            mConnections.add(conn);
+        }
+        mActiveStreams.incrementAndGet();
+        try {
+            streamSegment(conn.getInputStream(), segment, channel, url);
+        } finally {
+            mActiveStreams.decrementAndGet();
+            synchronized (mConnections) {
+                mConnections.remove(conn);
+            }
+        }
+    }
+
+    private void streamSegment(InputStream in, Segment segment, FileChannel channel, String url)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final byte[] array = buffer.array();
+        long unsaved = 0;
+        long windowBytes = 0;
+        long windowNanos = 0;
+        boolean endOfStream = false;
+        try {
+            while (!mCancelled && mSegmentError == null && !segment.isComplete()) {
+                final int maxRead = segment.length < 0 ? BUFFER_SIZE
+                        : (int) Math.min(BUFFER_SIZE, segment.length - segment.written);
+                final long readStartNanos = System.nanoTime();
+                final int read = in.read(array, 0, maxRead);
+                final long readEndNanos = System.nanoTime();
+                windowNanos += readEndNanos - readStartNanos;
+                if (read == -1) {
+                    endOfStream = true;
+                    break;
+                }
+                mStats.onBytes(read, readEndNanos);
+                windowBytes += read;
+                if (windowNanos >= THROUGHPUT_WINDOW_NANOS) {
+                    checkThroughput(url, windowBytes, windowNanos);
+                    windowBytes = 0;
+                    windowNanos = 0;
+                }
+                if (mThrottle != null) {
+                    mThrottle.acquire(read);
+                }
+                buffer.position(0).limit(read);
+                final long start = segment.position();
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                segment.written += read;
+                updateDigest(channel, array, start, read);
+                unsaved += read;
+                if (mProgressListener != null) {
+                    mProgressListener.onProgress(getDownloadedBytes(), getTotalLength());
+                }
+                if (unsaved >= PERSIST_INTERVAL_BYTES) {
+                    saveProgress(channel);
+                    unsaved = 0;
+                }
+            }
+            if (endOfStream && segment.length < 0) {
+                segment.length = segment.written;
+            }
+            if (mMirrors != null && windowBytes >= MIN_THROUGHPUT_SAMPLE_BYTES) {
+                mMirrors.recordThroughput(url,
+                        getDownloadThroughput(windowBytes, Math.max(1, windowNanos)));
+            }
+        } finally {
+            in.close();
+            saveProgress(channel);
+        }
+        if (!mCancelled && !segment.isComplete()) {
+            throw new IOException("Connection closed after " + segment.written + " of "
+                    + segment.length + " bytes at offset " + segment.start + " for " + url);
+        }
+    }
+
+    private void checkThroughput(String url, long bytes, long nanos) throws IOException {
+        if (mMirrors == null) {
+            return;
+        }
+        final long bytesPerSecond = getDownloadThroughput(bytes, nanos);
+        mMirrors.recordThroughput(url, bytesPerSecond);
+        if (bytesPerSecond < mMinThroughput && mMirrorUrls.size() > 1) {
+            throw new SlowMirrorException(url + " is down to " + bytesPerSecond + " bytes/s");
+        }
+    }
+
+    /**
+     * @return the throughput of the whole download, estimated from that of one of its
+     *         connections, since the connections of all the segments share the bandwidth.
+     */
+    private long getDownloadThroughput(long bytes, long nanos) {
+        return bytes * TimeUnit.SECONDS.toNanos(1) / nanos
+                * Math.max(1, mActiveStreams.get());
+    }
+
+    private void resetDigest() {
+        mDigestLock.lock();
+        try {
+            mDigest = ContentChunker.newSha256();
+            mDigestedBytes = 0;
+        } finally {
+            mDigestLock.unlock();
+        }
+    }
+
+    /**
+     * Hashes a buffer just written at {@code position} if it extends the hashed prefix.
+     * Buffers written further ahead by other segments are hashed later by reading them back,
+     * while they are still in the page cache, by whichever thread gets to it first.
+     */
+    private void updateDigest(FileChannel channel, byte[] data, long position, int length)
+            throws IOException {
+        if (position == mDigestedBytes) {
+            // Only the thread writing right after the hashed prefix gets here, the lock is
+            // there for the catch up.
+            mDigestLock.lock();
+        } else if (!mDigestLock.tryLock()) {
+            return;
+        }
+        try {
+            if (position == mDigestedBytes) {
+                mDigest.update(data, 0, length);
+                mDigestedBytes += length;
+            }
+            catchUpDigest(channel);
+        } finally {
+            mDigestLock.unlock();
+        }
+    }
+
+    /**
+     * Hashes what was written after the hashed prefix by other segments, or before the
+     * download was resumed.
+     */
+    private void catchUpDigest(FileChannel channel) throws IOException {
+        long available = getAvailableBytes(mDigestedBytes);
+        if (available == 0) {
+            return;
+        }
+        if (mDigestBuffer == null) {
+            mDigestBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        while (available > 0) {
+            mDigestBuffer.clear();
+            mDigestBuffer.limit((int) Math.min(BUFFER_SIZE, available));
+            final int read = channel.read(mDigestBuffer, mDigestedBytes);
+            if (read <= 0) {
+                throw new IOException("Unexpected end of " + mPartialFile);
+            }
+            mDigest.update(mDigestBuffer.array(), 0, read);
+            mDigestedBytes += read;
+            available -= read;
+        }
+    }
+
+    /**
+     * Completes the hash of the partial file and checks it against the expected one.
+     */
+    private void verify() throws IOException {
+        mDigestLock.lock();
+        try (FileChannel channel = FileChannel.open(mPartialFile.toPath(),
+                StandardOpenOption.READ)) {
+            catchUpDigest(channel);
+            if (mDigestedBytes != getTotalLength()) {
+                throw new IOException("Only " + mDigestedBytes + " bytes of " + mUrl
+                        + " were hashed");
+            }
+            if (channel.size() != getTotalLength()) {
+                // Left over from another version of the file, there is no telling what else.
+                discardPartial();
+                throw new IOException("Partial file of " + mUrl + " has " + channel.size()
+                        + " bytes, expected " + getTotalLength());
+            }
+            mSha256 = ChunkManifest.toHex(mDigest.digest());
+        } finally {
+            mDigestLock.unlock();
+        }
+        final String expectedSha256 = mExpectedSha256 != null ? mExpectedSha256 : mServerSha256;
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(mSha256)) {
+            // Corrupted somewhere along the way, there is no telling which bytes are wrong.
+            discardPartial();
+            throw new IOException("SHA-256 of " + mUrl + " is " + mSha256 + ", expected "
+                    + expectedSha256);
+        }
+    }
+
+    private void notifyResponse(HttpURLConnection conn) {
+        if (mResponseListener != null) {
+            mResponseListener.onResponse(conn);
+        }
+    }
+
+    /**
+     * Makes sure the bytes are on disk before the state claims them.
+     */
+    private void saveProgress(FileChannel channel) throws IOException {
+        channel.force(false);
+        writeState();
+    }
+
+    private void awaitAll(List<FutureTask<Void>> tasks) {
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                // IOExceptions are already in mSegmentError.
+                if (!(e.getCause() instanceof IOException)) {
+                    failSegments(new IOException(e.getCause()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mCancelled = true;
+            }
+        }
+    }
+
+    private FileChannel openChannel(boolean truncate) throws IOException {
+        // Readable too, for hashing what other segments wrote.
+        if (truncate) {
+            return FileChannel.open(mPartialFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        return FileChannel.open(mPartialFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the number of bytes written so far, across all segments.
+     */
+    synchronized long getDownloadedBytes() {
+        long downloaded = 0;
+        for (Segment segment : mSegments) {
+            downloaded += segment.written;
+        }
+        return downloaded;
+    }
+
+    /**
+     * @return the length of the file, or -1 if not known yet.
+     */
+    synchronized long getTotalLength() {
+        long total = 0;
+        for (Segment segment : mSegments) {
+            if (segment.length < 0) {
+                return -1;
+            }
+            total += segment.length;
+        }
+        return mSegments.isEmpty() ? -1 : total;
+    }
+
+    /**
+     * @return how many contiguous bytes starting at {@code position} have already been written
+     *         to the partial file.
+     */
+    synchronized long getAvailableBytes(long position) {
+        long available = 0;
+        // Segments are in file order, so carry on into the next one while they are complete.
+        for (Segment segment : mSegments) {
+            if (position >= segment.start && position < segment.position()) {
+                available += segment.position() - position;
+                if (!segment.isComplete()) {
+                    break;
+                }
+                position = segment.position();
+            }
+        }
+        return available;
+    }
+
+    private synchronized boolean isComplete() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        return !mSegments.isEmpty();
+    }
+
+    private void finish() throws IOException {
+        verify();
+        if (mDestination.exists() && !mDestination.delete()) {
+            throw new IOException("Could not delete " + mDestination);
+        }
+        if (!mPartialFile.renameTo(mDestination)) {
+            throw new IOException("Could not rename " + mPartialFile + " to " + mDestination);
+        }
+        mStateFile.delete();
+    }
+
+    private synchronized void discardPartial() {
+        mPartialFile.delete();
+        mStateFile.delete();
+        mValidator = null;
+        mValidatorUrl = null;
+        mServerSha256 = null;
+        mSegments.clear();
+    }
+
+    private synchronized void readState() {
+        mValidator = null;
+        mValidatorUrl = null;
+        mServerSha256 = null;
+        mSegments.clear();
+        if (!mStateFile.exists() || !mPartialFile.exists()) {
+            // Without a validator there is no way to tell if the bytes are still current.
+            discardPartial();
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mStateFile))) {
+            if (in.readInt() != STATE_VERSION) {
+                throw new IOException("Unknown state version");
+            }
+            final String validator = in.readUTF();
+            mValidator = validator.isEmpty() ? null : validator;
+            final String validatorUrl = in.readUTF();
+            mValidatorUrl = validatorUrl.isEmpty() ? null : validatorUrl;
+            final String serverSha256 = in.readUTF();
+            mServerSha256 = serverSha256.isEmpty() ? null : serverSha256;
+            final int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                mSegments.add(new Segment(in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            discardPartial();
+        }
+    }
+
+    private synchronized void writeState() throws IOException {
+        if (mSegments.isEmpty()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mStateFile))) {
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(mValidator != null ? mValidator : "");
+            out.writeUTF(mValidatorUrl != null ? mValidatorUrl : "");
+            out.writeUTF(mServerSha256 != null ? mServerSha256 : "");
+            out.writeInt(mSegments.size());
+            for (Segment segment : mSegments) {
+                out.writeLong(segment.start);
+                out.writeLong(segment.length);
+                out.writeLong(segment.written);
+            }
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCancelled = true;
+        }
+    }
+
+    /**
+     * Splits the file into at most {@code count} ranges of at least {@link #MIN_SEGMENT_SIZE}
+     * bytes each, the last one taking the remainder.
+     */
+    @VisibleForTesting
+    static List<Segment> planSegments(long totalLength, int count) {
+        final List<Segment> segments = new ArrayList<>();
+        if (totalLength < 0) {
+            segments.add(new Segment(0, -1, 0));
+            return segments;
+        }
+        count = (int) Math.max(1, Math.min(count, totalLength / MIN_SEGMENT_SIZE));
+        final long segmentLength = totalLength / count;
+        for (int i = 0; i < count; ++i) {
+            final long start = i * segmentLength;
+            final long length = i == count - 1 ? totalLength - start : segmentLength;
+            segments.add(new Segment(start, length, 0));
+        }
+        return segments;
+    }
+
+    /**
+     * If-Range only accepts strong validators, so weak ETags fall back to Last-Modified.
+     */
+    @VisibleForTesting
+    static String getStrongValidator(HttpURLConnection conn) {
+        final String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * @return the SHA-256 in hex of a {@code Digest: SHA-256=<base64>} header, or null.
+     */
+    @VisibleForTesting
+    static String parseSha256Digest(String digest) {
+        if (digest == null) {
+            return null;
+        }
+        for (String instanceDigest : digest.split(",")) {
+            final int equals = instanceDigest.indexOf('=');
+            if (equals < 0 || !"SHA-256".equalsIgnoreCase(
+                    instanceDigest.substring(0, equals).trim())) {
+                continue;
+            }
+            try {
+                final byte[] sha256 = Base64.getDecoder().decode(
+                        instanceDigest.substring(equals + 1).trim());
+                return sha256.length == 32 ? ChunkManifest.toHex(sha256) : null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first byte position of a "bytes start-end/total" header, or -1.
+     */
+    @VisibleForTesting
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the complete length of a "bytes start-end/total" header, or -1 if unknown.
+     */
+    @VisibleForTesting
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        final int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" means the length is unknown.
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,650 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.WorkerThread;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays the demo video on a {@link SurfaceView}, like {@link android.widget.VideoView} but
+ * with support for playing from a {@link MediaDataSource}, so that the video can be played
+ * while it is still being downloaded.
+ *
+ * Videos are prepared as soon as they are set, without waiting for the surface, which is only
+ * needed to show the first frame. Files are opened off the main thread.
+ *
+ * Looping video files are looped gaplessly by default: a second player of the same file is
+ * prepared while the first one plays, and chained to it with
+ * {@link MediaPlayer#setNextMediaPlayer}, so that it starts on the first frame as soon as the
+ * first one reaches the end, instead of the stall {@link MediaPlayer#setLooping} gives on some
+ * devices at every loop. Videos played from a {@link MediaDataSource} can't be opened twice and
+ * are looped with {@link MediaPlayer#setLooping}.
+ *
+ * An updated video is swapped in the same way with {@link #setVideoPathAtLoop}: it is prepared
+ * on the second player while the current one keeps playing, and takes over at the end of the
+ * loop. If it can't be prepared, the current video keeps looping as if nothing happened.
+ *
+ * The video is decoded straight to the surface of its own layer, that the hardware composer
+ * can show without the GPU, and the frame rate of video files is set on the surface so that
+ * the display refreshes at a rate the video plays smoothly at.
+ */
+public class LoopingVideoView extends SurfaceView implements SurfaceHolder.Callback {
+    private static final String TAG = "LoopingVideoView";
+    private static final boolean DEBUG = false;
+
+    private static final Metrics.Histogram sPrepareMillis = Metrics.histogram("video_prepare_ms");
+    // From the end of the video to the first frame of the next loop, with gapless looping.
+    private static final Metrics.Histogram sLoopTransitionMillis =
+            Metrics.histogram("loop_transition_ms");
+    // Loops where the next player wasn't ready in time, and the video was seeked back instead.
+    private static final Metrics.Counter sLoopFallbacks = Metrics.counter("loop_fallbacks");
+    private static final Metrics.Counter sVideoSwaps = Metrics.counter("video_swaps");
+    private static final Metrics.Counter sVideoSwapFailures =
+            Metrics.counter("video_swap_failures");
+
+    private final Executor mMediaExecutor =
+            BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.MEDIA);
+
+    private MediaPlayer mMediaPlayer;
+    private SurfaceHolder mSurfaceHolder;
+    private String mVideoPath;
+    private MediaDataSource mDataSource;
+    private boolean mPrepared;
+    private boolean mStartWhenPrepared;
+    private int mSeekWhenPrepared;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private boolean mLooping = true;
+    private boolean mGaplessLooping = true;
+    private long mPrepareStartMillis;
+    // Of the video file, or 0 if not known.
+    private float mFrameRate;
+    // Or 0 for none.
+    private float mFrameRateCap;
+    // The player that takes over at the end of the video, with gapless looping or to swap in
+    // another video.
+    private MediaPlayer mNextPlayer;
+    private String mNextVideoPath;
+    private boolean mNextPlayerPrepared;
+    private boolean mNextPlayerChained;
+    // Whether the next player plays another video, set with setVideoPathAtLoop().
+    private boolean mSwapPending;
+    // When the video last reached its end, or 0 if the next loop already rendered.
+    private long mLoopStartMillis;
+
+    private MediaPlayer.OnPreparedListener mOnPreparedListener;
+    private MediaPlayer.OnCompletionListener mOnCompletionListener;
+    private MediaPlayer.OnErrorListener mOnErrorListener;
+    private MediaPlayer.OnInfoListener mOnInfoListener;
+
+    public LoopingVideoView(Context context) {
+        this(context, null);
+    }
+
+    public LoopingVideoView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        getHolder().addCallback(this);
+    }
+
+    public void setOnPreparedListener(MediaPlayer.OnPreparedListener listener) {
+        mOnPreparedListener = listener;
+    }
+
+    public void setOnCompletionListener(MediaPlayer.OnCompletionListener listener) {
+        mOnCompletionListener = listener;
+    }
+
+    public void setOnErrorListener(MediaPlayer.OnErrorListener listener) {
+        mOnErrorListener = listener;
+    }
+
+    public void setOnInfoListener(MediaPlayer.OnInfoListener listener) {
+        mOnInfoListener = listener;
+    }
+
+    /**
+     * Whether the video starts over when it ends, instead of completing. Looping by default.
+     */
+    public void setLooping(boolean looping) {
+        mLooping = looping;
+        if (mPrepared) {
+            setUpLooping();
+        }
+    }
+
+    /**
+     * Whether looping videos are looped by chaining a second player, instead of
+     * {@link MediaPlayer#setLooping}, for devices where that stalls. Gapless by default.
+     */
+    public void setGaplessLooping(boolean gapless) {
+        mGaplessLooping = gapless;
+        if (mPrepared) {
+            setUpLooping();
+        }
+    }
+
+    /**
+     * Caps the refresh rate asked of the display, to save power, or 0 for no cap. Every frame
+     * is still decoded, but only about that many a second are shown.
+     */
+    public void setFrameRateCap(float frameRateCap) {
+        mFrameRateCap = frameRateCap;
+        setSurfaceFrameRate();
+    }
+
+    private boolean isLoopingGaplessly() {
+        return mLooping && mGaplessLooping && mVideoPath != null;
+    }
+
+    private void setUpLooping() {
+        if (!mLooping) {
+            // What plays next is up to the owner, updates included.
+            releaseNextPlayer();
+            mMediaPlayer.setLooping(false);
+        } else if (mSwapPending || isLoopingGaplessly()) {
+            // The end of the loop is handled by onLoop().
+            mMediaPlayer.setLooping(false);
+            if (mNextPlayer == null) {
+                prepareNextPlayer(mVideoPath);
+            }
+        } else {
+            releaseNextPlayer();
+            mMediaPlayer.setLooping(true);
+        }
+    }
+
+    public void setVideoPath(String path) {
+        mVideoPath = path;
+        mDataSource = null;
+        openVideo();
+    }
+
+    /**
+     * Plays the video at the given path from the end of the current loop, once it is prepared,
+     * without interrupting the current video meanwhile, nor at all if it fails to prepare.
+     * Plays it right away if the current video isn't looping or isn't prepared yet.
+     */
+    public void setVideoPathAtLoop(String path) {
+        if (!mPrepared || !mLooping) {
+            setVideoPath(path);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Playing " + path + " from the end of the loop");
+        releaseNextPlayer();
+        // So that the end of the loop is seen.
+        mMediaPlayer.setLooping(false);
+        prepareNextPlayer(path);
+        mSwapPending = true;
+    }
+
+    public void setDataSource(MediaDataSource dataSource) {
+        mVideoPath = null;
+        mDataSource = dataSource;
+        openVideo();
+    }
+
+    public void start() {
+        if (mPrepared && mSurfaceHolder != null) {
+            mMediaPlayer.start();
+        }
+        mStartWhenPrepared = true;
+    }
+
+    public void pause() {
+        if (mPrepared && mMediaPlayer.isPlaying()) {
+            mMediaPlayer.pause();
+        }
+        mStartWhenPrepared = false;
+    }
+
+    public boolean isPlaying() {
+        return mPrepared && mMediaPlayer.isPlaying();
+    }
+
+    public void stopPlayback() {
+        release();
+        mVideoPath = null;
+        mDataSource = null;
+        mStartWhenPrepared = false;
+    }
+
+    /**
+     * @return whether the video should be playing: it was started, and there is a video and a
+     *         surface to play it on.
+     */
+    public boolean isPlaybackExpected() {
+        return mStartWhenPrepared && mSurfaceHolder != null
+                && (mVideoPath != null || mDataSource != null);
+    }
+
+    /**
+     * @return the playback position, or -1 while the video is being prepared.
+     */
+    public int getCurrentPosition() {
+        return mPrepared ? mMediaPlayer.getCurrentPosition() : -1;
+    }
+
+    public void seekTo(int positionMillis) {
+        if (mPrepared) {
+            mMediaPlayer.seekTo(positionMillis);
+        } else {
+            mSeekWhenPrepared = positionMillis;
+        }
+    }
+
+    /**
+     * Prepares the video again with a new player, and plays it from where it was if it was
+     * playing.
+     */
+    public void reopenVideo() {
+        if (mSwapPending) {
+            // Would have played next anyway.
+            mVideoPath = mNextVideoPath;
+            mDataSource = null;
+            mSeekWhenPrepared = 0;
+        } else if (mPrepared) {
+            mSeekWhenPrepared = mMediaPlayer.getCurrentPosition();
+        }
+        prepare();
+    }
+
+    private void openVideo() {
+        mSeekWhenPrepared = 0;
+        mFrameRate = 0;
+        setSurfaceFrameRate();
+        if (mVideoPath != null) {
+            readFrameRate(mVideoPath);
+        }
+        prepare();
+        requestLayout();
+    }
+
+    private void readFrameRate(String path) {
+        mMediaExecutor.execute(() -> {
+            final float frameRate = getFrameRate(path);
+            post(() -> {
+                if (frameRate > 0 && path.equals(mVideoPath)) {
+                    mFrameRate = frameRate;
+                    setSurfaceFrameRate();
+                }
+            });
+        });
+    }
+
+    /**
+     * @return the frame rate of the video track of the file, or 0 if not known.
+     */
+    @WorkerThread
+    private static float getFrameRate(String path) {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            for (int i = 0; i < extractor.getTrackCount(); ++i) {
+                final MediaFormat format = extractor.getTrackFormat(i);
+                final String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime == null || !mime.startsWith("video/")
+                        || !format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                    continue;
+                }
+                try {
+                    return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                } catch (ClassCastException e) {
+                    // Some extractors store it as a float.
+                    return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the frame rate of " + path, e);
+        } finally {
+            extractor.release();
+        }
+        return 0;
+    }
+
+    /**
+     * Lets the display refresh at a multiple of the frame rate of the video, so that every
+     * frame is shown for as long as the others. A rate of 0 lets the display choose again.
+     */
+    private void setSurfaceFrameRate() {
+        if (mSurfaceHolder == null) {
+            return;
+        }
+        float frameRate = mFrameRate;
+        if (mFrameRateCap > 0 && (frameRate == 0 || frameRate > mFrameRateCap)) {
+            frameRate = mFrameRateCap;
+        }
+        if (DEBUG) Log.d(TAG, "Setting the frame rate to " + frameRate);
+        mSurfaceHolder.getSurface().setFrameRate(frameRate,
+                Surface.FRAME_RATE_COMPATIBILITY_FIXED_SOURCE);
+    }
+
+    private void prepare() {
+        release();
+        if (mVideoPath == null && mDataSource == null) {
+            return;
+        }
+        final MediaPlayer mp = createPlayer(mPreparedListener);
+        mMediaPlayer = mp;
+        mPrepareStartMillis = SystemClock.uptimeMillis();
+        if (mDataSource != null) {
+            try {
+                mp.setDataSource(mDataSource);
+                mp.prepareAsync();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                onOpenFailed(mp, mDataSource, e);
+            }
+            return;
+        }
+        prepareFile(mp, mVideoPath);
+    }
+
+    /**
+     * Prepares the player that takes over at the end of the video. It is chained to the
+     * current one once prepared, with gapless looping.
+     */
+    private void prepareNextPlayer(String path) {
+        final MediaPlayer mp = createPlayer(mNextPreparedListener);
+        mNextPlayer = mp;
+        mNextVideoPath = path;
+        mNextPlayerPrepared = false;
+        mNextPlayerChained = false;
+        prepareFile(mp, path);
+    }
+
+    private MediaPlayer createPlayer(MediaPlayer.OnPreparedListener preparedListener) {
+        // Created here so that its callbacks come on the main thread.
+        final MediaPlayer mp = new MediaPlayer();
+        mp.setOnPreparedListener(preparedListener);
+        mp.setOnVideoSizeChangedListener(mSizeChangedListener);
+        mp.setOnCompletionListener(mCompletionListener);
+        mp.setOnErrorListener(mErrorListener);
+        mp.setOnInfoListener(mInfoListener);
+        if (mSurfaceHolder != null) {
+            mp.setDisplay(mSurfaceHolder);
+        }
+        mp.setScreenOnWhilePlaying(true);
+        return mp;
+    }
+
+    private void prepareFile(MediaPlayer mp, String path) {
+        // Opening the file reads the disk.
+        mMediaExecutor.execute(() -> {
+            try {
+                mp.setDataSource(path);
+                mp.prepareAsync();
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                post(() -> onOpenFailed(mp, path, e));
+            }
+        });
+    }
+
+    private void onOpenFailed(MediaPlayer mp, Object source, Exception e) {
+        if (mp != mMediaPlayer && mp != mNextPlayer) {
+            // Released meanwhile, which is what made it fail.
+            return;
+        }
+        Log.w(TAG, "Unable to open " + source, e);
+        mErrorListener.onError(mp, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+    }
+
+    private void release() {
+        releaseNextPlayer();
+        if (mMediaPlayer != null) {
+            mMediaPlayer.release();
+            mMediaPlayer = null;
+        }
+        mPrepared = false;
+        mLoopStartMillis = 0;
+    }
+
+    private void releaseNextPlayer() {
+        if (mNextPlayer == null) {
+            return;
+        }
+        if (mNextPlayerChained && mMediaPlayer != null) {
+            mMediaPlayer.setNextMediaPlayer(null);
+        }
+        mNextPlayer.release();
+        mNextPlayer = null;
+        mNextVideoPath = null;
+        mNextPlayerPrepared = false;
+        mNextPlayerChained = false;
+        mSwapPending = false;
+    }
+
+    private final MediaPlayer.OnPreparedListener mPreparedListener =
+            new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            sPrepareMillis.record(SystemClock.uptimeMillis() - mPrepareStartMillis);
+            Trace.beginSection("LoopingVideoView.onPrepared");
+            try {
+                mPrepared = true;
+                setUpLooping();
+                updateVideoSize(mp.getVideoWidth(), mp.getVideoHeight());
+                if (mSeekWhenPrepared > 0) {
+                    mp.seekTo(mSeekWhenPrepared);
+                    mSeekWhenPrepared = 0;
+                }
+                if (mOnPreparedListener != null) {
+                    mOnPreparedListener.onPrepared(mp);
+                }
+                if (mStartWhenPrepared && mSurfaceHolder != null && !mp.isPlaying()) {
+                    mp.start();
+                }
+            } finally {
+                Trace.endSection();
+            }
+        }
+    };
+
+    private final MediaPlayer.OnPreparedListener mNextPreparedListener =
+            new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            if (mp != mNextPlayer || !mPrepared) {
+                return;
+            }
+            mNextPlayerPrepared = true;
+            if (mGaplessLooping) {
+                mMediaPlayer.setNextMediaPlayer(mp);
+                mNextPlayerChained = true;
+            }
+        }
+    };
+
+    private final MediaPlayer.OnCompletionListener mCompletionListener =
+            new MediaPlayer.OnCompletionListener() {
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            if (mp == mMediaPlayer && (mSwapPending || isLoopingGaplessly())) {
+                onLoop();
+                return;
+            }
+            if (mOnCompletionListener != null) {
+                mOnCompletionListener.onCompletion(mp);
+            }
+        }
+    };
+
+    /**
+     * Called when the video reached its end while looping gaplessly, or with another video to
+     * swap in.
+     */
+    private void onLoop() {
+        Trace.beginSection("LoopingVideoView.onLoop");
+        try {
+            mLoopStartMillis = SystemClock.uptimeMillis();
+            if (!mNextPlayerPrepared) {
+                // Too late for the next player, which will be for the next loop.
+                if (DEBUG) Log.d(TAG, "Next player not ready, seeking back instead");
+                sLoopFallbacks.increment();
+                mMediaPlayer.seekTo(0);
+                mMediaPlayer.start();
+                return;
+            }
+            if (!mNextPlayerChained) {
+                // Gapless looping is off, only swapping in another video.
+                mNextPlayer.start();
+            }
+            // Playing in place of the previous one.
+            final MediaPlayer previous = mMediaPlayer;
+            final boolean swapped = mSwapPending;
+            mMediaPlayer = mNextPlayer;
+            mVideoPath = mNextVideoPath;
+            mDataSource = null;
+            mNextPlayer = null;
+            mNextVideoPath = null;
+            mNextPlayerPrepared = false;
+            mNextPlayerChained = false;
+            mSwapPending = false;
+            previous.release();
+            if (swapped) {
+                if (DEBUG) Log.d(TAG, "Swapped in " + mVideoPath);
+                sVideoSwaps.increment();
+                readFrameRate(mVideoPath);
+            }
+            setUpLooping();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private final MediaPlayer.OnInfoListener mInfoListener = new MediaPlayer.OnInfoListener() {
+        @Override
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START && mp == mMediaPlayer
+                    && mLoopStartMillis > 0) {
+                sLoopTransitionMillis.record(SystemClock.uptimeMillis() - mLoopStartMillis);
+                mLoopStartMillis = 0;
+            }
+            return mOnInfoListener != null && mOnInfoListener.onInfo(mp, what, extra);
+        }
+    };
+
+    private final MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
+            new MediaPlayer.OnVideoSizeChangedListener() {
+        @Override
+        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+            updateVideoSize(width, height);
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener mErrorListener = new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            if (mp == mNextPlayer) {
+                // Not playing yet, the current video keeps playing.
+                if (mSwapPending) {
+                    Log.w(TAG, "Unable to prepare " + mNextVideoPath + ", keeping the current"
+                            + " video " + what + ", " + extra);
+                    sVideoSwapFailures.increment();
+                    releaseNextPlayer();
+                    setUpLooping();
+                } else {
+                    Log.w(TAG, "Unable to prepare the next loop " + what + ", " + extra);
+                    releaseNextPlayer();
+                    mMediaPlayer.setLooping(mLooping);
+                }
+                return true;
+            }
+            Log.w(TAG, "Playback error " + what + ", " + extra);
+            release();
+            if (mOnErrorListener != null) {
+                mOnErrorListener.onError(mp, what, extra);
+            }
+            return true;
+        }
+    };
+
+    private void updateVideoSize(int width, int height) {
+        if (width != 0 && height != 0 && (width != mVideoWidth || height != mVideoHeight)) {
+            mVideoWidth = width;
+            mVideoHeight = height;
+            getHolder().setFixedSize(width, height);
+            requestLayout();
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        mSurfaceHolder = holder;
+        if (mFrameRate > 0 || mFrameRateCap > 0) {
+            setSurfaceFrameRate();
+        }
+        if (mMediaPlayer == null) {
+            prepare();
+            return;
+        }
+        // Prepared, or being prepared, ahead of the surface.
+        mMediaPlayer.setDisplay(holder);
+        if (mNextPlayer != null) {
+            mNextPlayer.setDisplay(holder);
+        }
+        if (mPrepared && mStartWhenPrepared && !mMediaPlayer.isPlaying()) {
+            mMediaPlayer.start();
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        if (mSwapPending) {
+            // Would have played next anyway.
+            mVideoPath = mNextVideoPath;
+            mDataSource = null;
+            mSeekWhenPrepared = 0;
+        } else if (mPrepared) {
+            // Pick up where we left off when the surface comes back.
+            mSeekWhenPrepared = mMediaPlayer.getCurrentPosition();
+        }
+        mSurfaceHolder = null;
+        release();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getDefaultSize(mVideoWidth, widthMeasureSpec);
+        int height = getDefaultSize(mVideoHeight, heightMeasureSpec);
+        if (mVideoWidth > 0 && mVideoHeight > 0) {
+            // Fit the video in the available space, keeping its aspect ratio.
+            if ((long) mVideoWidth * height > (long) width * mVideoHeight) {
+                height = (int) ((long) width * mVideoHeight / mVideoWidth);
+            } else {
+                width = (int) ((long) height * mVideoWidth / mVideoHeight);
+            }
+        }
+        setMeasuredDimension(width, height);
+    }
+}
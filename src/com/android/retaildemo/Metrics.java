@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms of what the app did since it started, printed by
+ * {@code adb shell dumpsys activity com.android.retaildemo}.
+ *
+ * Metrics are created once, usually as constants of the class that updates them, and are
+ * registered under their name. Updating a metric doesn't allocate nor lock, so it can be done
+ * on the playback and download paths.
+ */
+final class Metrics {
+    @GuardedBy("sMetrics")
+    private static final List<Metric> sMetrics = new ArrayList<>();
+
+    private Metrics() {
+    }
+
+    private abstract static class Metric {
+        final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        abstract void dump(PrintWriter pw);
+    }
+
+    /**
+     * A count of events.
+     */
+    static final class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        private Counter(String name) {
+            super(name);
+        }
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void dump(PrintWriter pw) {
+            pw.print(mValue.get());
+        }
+    }
+
+    /**
+     * The last value of something, or -1 if it was never set.
+     */
+    static final class Gauge extends Metric {
+        private final AtomicLong mValue = new AtomicLong(-1);
+
+        private Gauge(String name) {
+            super(name);
+        }
+
+        void set(long value) {
+            mValue.set(value);
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void dump(PrintWriter pw) {
+            pw.print(mValue.get());
+        }
+    }
+
+    /**
+     * The distribution of a value, in buckets of powers of two: percentiles are only known up
+     * to the next power of two.
+     */
+    static final class Histogram extends Metric {
+        // Bucket 0 counts values <= 0, and bucket i values in [2^(i-1), 2^i).
+        private final AtomicLongArray mBuckets = new AtomicLongArray(Long.SIZE);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        private Histogram(String name) {
+            super(name);
+        }
+
+        void record(long value) {
+            final int bucket = value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getMean() {
+            final long count = mCount.get();
+            return count > 0 ? mSum.get() / count : 0;
+        }
+
+        long getMax() {
+            return mCount.get() > 0 ? mMax.get() : 0;
+        }
+
+        /**
+         * @return a bound the given fraction of the values are below, or 0 if there are none.
+         */
+        long getPercentile(double fraction) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < Long.SIZE; ++i) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    final long bound = i == 0 ? 0
+                            : i < Long.SIZE - 1 ? (1L << i) - 1 : Long.MAX_VALUE;
+                    // No need to be vaguer than the largest value.
+                    return Math.min(bound, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        @Override
+        void dump(PrintWriter pw) {
+            pw.print("count=" + getCount() + " mean=" + getMean()
+                    + " p50<=" + getPercentile(0.5) + " p95<=" + getPercentile(0.95)
+                    + " max=" + getMax());
+        }
+    }
+
+    static Counter counter(String name) {
+        return register(new Counter(name));
+    }
+
+    static Gauge gauge(String name) {
+        return register(new Gauge(name));
+    }
+
+    static Histogram histogram(String name) {
+        return register(new Histogram(name));
+    }
+
+    private static <T extends Metric> T register(T metric) {
+        synchronized (sMetrics) {
+            sMetrics.add(metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Prints every metric registered so far, one per line.
+     */
+    static void dump(String prefix, PrintWriter pw) {
+        synchronized (sMetrics) {
+            for (Metric metric : sMetrics) {
+                pw.print(prefix);
+                pw.print(metric.name);
+                pw.print(": ");
+                metric.dump(pw);
+                pw.println();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranks the mirrors the video can be downloaded from by how fast they are expected to deliver
+ * it.
+ *
+ * Each mirror is measured by a short probe, which times the first response and the first few
+ * hundred kilobytes, and then by the throughput of the actual downloads. Mirrors that failed
+ * are ranked last, and mirrors that were never measured keep their configured order. The
+ * measurements are saved, so that the mirrors are only probed again once a day.
+ */
+class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+    private static final boolean DEBUG = false;
+
+    private static final int VERSION = 1;
+
+    @VisibleForTesting
+    static final int PROBE_BYTES = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long PROBE_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // Mirrors are ranked by how long they would take to deliver this much.
+    private static final long RANKING_BYTES = 4 * 1024 * 1024;
+
+    private static final class Stats {
+        long latencyMillis = -1;
+        long bytesPerSecond = -1;
+        int failures;
+
+        long getCostMillis() {
+            if (bytesPerSecond <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, latencyMillis) + RANKING_BYTES * 1000 / bytesPerSecond;
+        }
+    }
+
+    private final File mFile;
+    // In the configured order, the primary url first.
+    private final Map<String, Stats> mStats = new LinkedHashMap<>();
+
+    private long mProbedAtMillis;
+
+    MirrorSelector(List<String> urls, File file) {
+        mFile = file;
+        for (String url : urls) {
+            mStats.put(url, new Stats());
+        }
+    }
+
+    /**
+     * Loads the saved measurements of the configured mirrors, or forgets them all if they
+     * can't be read.
+     */
+    synchronized void load() {
+        clear();
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final long probedAtMillis = in.readLong();
+            int known = 0;
+            for (int count = in.readInt(); count > 0; --count) {
+                final String url = in.readUTF();
+                final long latencyMillis = in.readLong();
+                final long bytesPerSecond = in.readLong();
+                final int failures = in.readInt();
+                final Stats stats = mStats.get(url);
+                if (stats != null) {
+                    stats.latencyMillis = latencyMillis;
+                    stats.bytesPerSecond = bytesPerSecond;
+                    stats.failures = failures;
+                    known++;
+                }
+            }
+            // New mirrors need to be probed.
+            mProbedAtMillis = known == mStats.size() ? probedAtMillis : 0;
+        } catch (IOException e) {
+            clear();
+        }
+    }
+
+    synchronized void save() throws IOException {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(VERSION);
+            out.writeLong(mProbedAtMillis);
+            out.writeInt(mStats.size());
+            for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().latencyMillis);
+                out.writeLong(entry.getValue().bytesPerSecond);
+                out.writeInt(entry.getValue().failures);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + mFile);
+        }
+    }
+
+    private void clear() {
+        mProbedAtMillis = 0;
+        for (Stats stats : mStats.values()) {
+            stats.latencyMillis = -1;
+            stats.bytesPerSecond = -1;
+            stats.failures = 0;
+        }
+    }
+
+    /**
+     * @return true if the mirrors were never probed, or not for a day.
+     */
+    synchronized boolean needsProbe(long nowMillis) {
+        return mStats.size() > 1 && (nowMillis < mProbedAtMillis
+                || nowMillis >= mProbedAtMillis + PROBE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Measures every mirror with a small range request, one after the other.
+     */
+    void probe(HttpDownloader.ConnectionFactory connectionFactory, long nowMillis) {
+        final List<String> urls;
+        synchronized (this) {
+            urls = new ArrayList<>(mStats.keySet());
+        }
+        for (String url : urls) {
+            try {
+                probe(connectionFactory, url);
+            } catch (IOException e) {
+                Log.w(TAG, "Error probing " + url, e);
+                recordFailure(url);
+            }
+        }
+        synchronized (this) {
+            mProbedAtMillis = nowMillis;
+        }
+    }
+
+    private void probe(HttpDownloader.ConnectionFactory connectionFactory, String url)
+            throws IOException {
+        final HttpURLConnection conn = connectionFactory.openConnection(url);
+        try {
+            conn.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+            conn.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+            final long startNanos = System.nanoTime();
+            final int responseCode = conn.getResponseCode();
+            final long responseNanos = System.nanoTime();
+            if (responseCode != HttpURLConnection.HTTP_OK
+                    && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Unexpected response " + responseCode);
+            }
+            long bytes = 0;
+            try (InputStream in = conn.getInputStream()) {
+                final byte[] buffer = new byte[16 * 1024];
+                int read;
+                while (bytes < PROBE_BYTES && (read = in.read(buffer)) != -1) {
+                    bytes += read;
+                }
+            }
+            final long readNanos = Math.max(1, System.nanoTime() - responseNanos);
+            final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(responseNanos - startNanos);
+            final long bytesPerSecond = bytes * TimeUnit.SECONDS.toNanos(1) / readNanos;
+            if (DEBUG) Log.d(TAG, "Probed " + url + ": " + latencyMillis + " ms, "
+                    + bytesPerSecond + " bytes/s");
+            synchronized (this) {
+                final Stats stats = mStats.get(url);
+                stats.latencyMillis = latencyMillis;
+                stats.bytesPerSecond = bytesPerSecond;
+                stats.failures = 0;
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Records the throughput measured while downloading from {@code url}. Recent measurements
+     * weigh as much as all the earlier ones, so that a mirror that slows down is demoted
+     * quickly.
+     */
+    synchronized void recordThroughput(String url, long bytesPerSecond) {
+        final Stats stats = mStats.get(url);
+        if (stats == null) {
+            return;
+        }
+        stats.bytesPerSecond = stats.bytesPerSecond <= 0 ? bytesPerSecond
+                : (stats.bytesPerSecond + bytesPerSecond) / 2;
+        stats.failures = 0;
+    }
+
+    synchronized void recordFailure(String url) {
+        final Stats stats = mStats.get(url);
+        if (stats != null) {
+            stats.failures++;
+        }
+    }
+
+    /**
+     * @return the mirrors, fastest first.
+     */
+    synchronized List<String> getRankedUrls() {
+        final List<Map.Entry<String, Stats>> entries = new ArrayList<>(mStats.entrySet());
+        // Stable, so mirrors that compare equal keep their configured order.
+        Collections.sort(entries, (a, b) -> {
+            if (a.getValue().failures != b.getValue().failures) {
+                return Integer.compare(a.getValue().failures, b.getValue().failures);
+            }
+            return Long.compare(a.getValue().getCostMillis(), b.getValue().getCostMillis());
+        });
+        final List<String> urls = new ArrayList<>();
+        for (Map.Entry<String, Stats> entry : entries) {
+            urls.add(entry.getKey());
+        }
+        return urls;
+    }
+}
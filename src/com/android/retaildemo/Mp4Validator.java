@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the structure of MP4 (ISO base media) files before they are played, and moves their
+ * {@code moov} box ahead of the media data when it comes after it ("faststart").
+ *
+ * The top level boxes have to cover the file exactly, so a truncated file is caught here
+ * rather than by the player, and the chunks the sample tables of every track point to have to
+ * lie within the media data. A {@code moov} box at the end makes the player read the end of
+ * the file before it can show the first frame; moving it only takes reading the box headers
+ * and the {@code moov} box, then copying the file once from start to end.
+ */
+final class Mp4Validator {
+    private static final String TAG = "Mp4Validator";
+    private static final boolean DEBUG = false;
+
+    private static final String FAST_START_SUFFIX = ".faststart";
+
+    private static final Metrics.Counter sInvalidVideos = Metrics.counter("invalid_videos");
+    private static final Metrics.Counter sFastStartRewrites =
+            Metrics.counter("faststart_rewrites");
+
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+    // Read in memory, real ones are a few megabytes at most.
+    private static final long MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Thrown for a file that starts like an MP4 file but is malformed or truncated.
+     */
+    static final class InvalidMp4Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidMp4Exception(String message) {
+            super(message);
+        }
+
+        InvalidMp4Exception(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Where the {@code moov} box of a valid file is, and the chunk offset tables in it.
+     */
+    static final class Layout {
+        final long fileLength;
+        final long moovOffset;
+        final long firstMdatOffset;
+        // Fragments have offsets of their own, which aren't moved.
+        final boolean fragmented;
+        private final byte[] mMoov;
+        // Positions in mMoov of the stco and co64 boxes.
+        private final List<Integer> mChunkOffsetBoxes;
+
+        private Layout(long fileLength, long moovOffset, long firstMdatOffset, boolean fragmented,
+                byte[] moov, List<Integer> chunkOffsetBoxes) {
+            this.fileLength = fileLength;
+            this.moovOffset = moovOffset;
+            this.firstMdatOffset = firstMdatOffset;
+            this.fragmented = fragmented;
+            mMoov = moov;
+            mChunkOffsetBoxes = chunkOffsetBoxes;
+        }
+
+        /**
+         * @return whether the moov box comes after the media data, and can be moved ahead of
+         *         it with {@link #writeFastStart}.
+         */
+        boolean needsFastStart() {
+            return moovOffset > firstMdatOffset && !fragmented;
+        }
+    }
+
+    private static final class Box {
+        final String type;
+        final long offset;
+        final int headerSize;
+        final long size;
+
+        Box(String type, long offset, int headerSize, long size) {
+            this.type = type;
+            this.offset = offset;
+            this.headerSize = headerSize;
+            this.size = size;
+        }
+
+        long getEnd() {
+            return offset + size;
+        }
+    }
+
+    private Mp4Validator() {
+    }
+
+    /**
+     * @return the layout of the file, or null if it doesn't start with an {@code ftyp} box,
+     *         and isn't an MP4 file to check.
+     * @throws InvalidMp4Exception if the file is a malformed MP4 file.
+     */
+    static Layout validate(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            final long length = in.length();
+            final byte[] header = new byte[LARGE_BOX_HEADER_SIZE];
+            if (length < BOX_HEADER_SIZE) {
+                return null;
+            }
+            in.readFully(header, 0, BOX_HEADER_SIZE);
+            if (!"ftyp".equals(new String(header, 4, 4, StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            final List<Box> boxes = new ArrayList<>();
+            long position = 0;
+            while (position < length) {
+                final Box box = readBoxHeader(in, position, length, header);
+                boxes.add(box);
+                position = box.getEnd();
+            }
+            Box moov = null;
+            final List<Box> mdats = new ArrayList<>();
+            boolean fragmented = false;
+            for (Box box : boxes) {
+                fragmented |= "moof".equals(box.type);
+                if ("moov".equals(box.type)) {
+                    if (moov != null) {
+                        throw new InvalidMp4Exception("More than one moov box");
+                    }
+                    moov = box;
+                } else if ("mdat".equals(box.type)) {
+                    mdats.add(box);
+                }
+            }
+            if (moov == null) {
+                throw new InvalidMp4Exception("No moov box");
+            }
+            if (mdats.isEmpty()) {
+                throw new InvalidMp4Exception("No mdat box");
+            }
+            if (moov.size > MAX_MOOV_SIZE) {
+                throw new InvalidMp4Exception("moov box of " + moov.size + " bytes");
+            }
+            final byte[] moovBytes = new byte[(int) moov.size];
+            in.seek(moov.offset);
+            in.readFully(moovBytes);
+            if (readUint32(moovBytes, 0) == 0) {
+                // Extends to the end of the file, which won't hold once it is moved.
+                writeUint32(moovBytes, 0, moov.size);
+            }
+            final List<Integer> chunkOffsetBoxes = new ArrayList<>();
+            try {
+                checkContainer(ByteBuffer.wrap(moovBytes), moov.headerSize, moovBytes.length,
+                        mdats, chunkOffsetBoxes);
+            } catch (RuntimeException e) {
+                // A field read past the end of its box, that the checks didn't see coming.
+                throw new InvalidMp4Exception("Malformed moov box", e);
+            }
+            return new Layout(length, moov.offset, mdats.get(0).offset, fragmented, moovBytes,
+                    chunkOffsetBoxes);
+        }
+    }
+
+    private static Box readBoxHeader(RandomAccessFile in, long position, long length,
+            byte[] header) throws IOException {
+        if (length - position < BOX_HEADER_SIZE) {
+            throw new InvalidMp4Exception("Truncated box header at " + position);
+        }
+        in.seek(position);
+        in.readFully(header, 0, BOX_HEADER_SIZE);
+        long size = readUint32(header, 0);
+        final String type = new String(header, 4, 4, StandardCharsets.US_ASCII);
+        int headerSize = BOX_HEADER_SIZE;
+        if (size == 1) {
+            // 64-bit size following the type.
+            if (length - position < LARGE_BOX_HEADER_SIZE) {
+                throw new InvalidMp4Exception("Truncated box header at " + position);
+            }
+            in.readFully(header, BOX_HEADER_SIZE, LARGE_BOX_HEADER_SIZE - BOX_HEADER_SIZE);
+            size = (readUint32(header, 8) << 32) | readUint32(header, 12);
+            headerSize = LARGE_BOX_HEADER_SIZE;
+        } else if (size == 0) {
+            // The box extends to the end of the file.
+            size = length - position;
+        }
+        if (size < headerSize) {
+            throw new InvalidMp4Exception("Invalid size " + size + " of " + type + " at "
+                    + position);
+        }
+        if (size > length - position) {
+            throw new InvalidMp4Exception(type + " box at " + position + " ends "
+                    + (size - (length - position)) + " bytes past the end of the file");
+        }
+        return new Box(type, position, headerSize, size);
+    }
+
+    /**
+     * Checks the boxes of {@code moov} from {@code start} to {@code end}, recursing into the
+     * containers on the way to the sample tables.
+     */
+    private static void checkContainer(ByteBuffer moov, int start, int end, List<Box> mdats,
+            List<Integer> chunkOffsetBoxes) throws InvalidMp4Exception {
+        int position = start;
+        while (position < end) {
+            if (end - position < BOX_HEADER_SIZE) {
+                throw new InvalidMp4Exception("Truncated box header in moov at " + position);
+            }
+            final long size = moov.getInt(position) & 0xffffffffL;
+            final String type = getType(moov, position);
+            if (size < BOX_HEADER_SIZE || size > end - position) {
+                // 64-bit and to-the-end sizes don't occur inside moov.
+                throw new InvalidMp4Exception("Invalid size " + size + " of " + type
+                        + " in moov at " + position);
+            }
+            final int boxEnd = position + (int) size;
+            switch (type) {
+                case "trak":
+                case "mdia":
+                case "minf":
+                case "edts":
+                case "dinf":
+                    checkContainer(moov, position + BOX_HEADER_SIZE, boxEnd, mdats,
+                            chunkOffsetBoxes);
+                    break;
+                case "stbl":
+                    checkSampleTable(moov, position + BOX_HEADER_SIZE, boxEnd, mdats,
+                            chunkOffsetBoxes);
+                    break;
+            }
+            position = boxEnd;
+        }
+    }
+
+    /**
+     * Checks that the chunks of a track, as its sample table describes them, lie within the
+     * media data.
+     */
+    private static void checkSampleTable(ByteBuffer moov, int start, int end, List<Box> mdats,
+            List<Integer> chunkOffsetBoxes) throws InvalidMp4Exception {
+        int stsc = -1;
+        int stsz = -1;
+        int chunkOffsets = -1;
+        for (int position = start; position < end; ) {
+            if (end - position < BOX_HEADER_SIZE) {
+                throw new InvalidMp4Exception("Truncated box header in stbl at " + position);
+            }
+            final long size = moov.getInt(position) & 0xffffffffL;
+            if (size < BOX_HEADER_SIZE || size > end - position) {
+                throw new InvalidMp4Exception("Invalid box size in stbl at " + position);
+            }
+            switch (getType(moov, position)) {
+                case "stsc":
+                    stsc = position;
+                    break;
+                case "stsz":
+                    stsz = position;
+                    break;
+                case "stco":
+                case "co64":
+                    chunkOffsets = position;
+                    break;
+            }
+            position += (int) size;
+        }
+        if (chunkOffsets < 0 || stsc < 0) {
+            throw new InvalidMp4Exception("Sample table without chunk offsets");
+        }
+        chunkOffsetBoxes.add(chunkOffsets);
+        final boolean co64 = "co64".equals(getType(moov, chunkOffsets));
+        final long chunkCount = getEntryCount(moov, chunkOffsets, co64 ? 8 : 4, 0);
+        final long stscCount = getEntryCount(moov, stsc, 12, 0);
+        // Compact sample sizes (stz2) aren't checked, the chunk offsets still are.
+        final long sampleCount = stsz >= 0 ? getEntryCount(moov, stsz, 4, 4) : -1;
+        final long fixedSampleSize = stsz >= 0 ? moov.getInt(stsz + 12) & 0xffffffffL : 0;
+
+        int stscIndex = 0;
+        long samplesPerChunk = 0;
+        long sample = 0;
+        for (int chunk = 1; chunk <= chunkCount; ++chunk) {
+            // Runs of chunks with the same number of samples, by first chunk.
+            while (stscIndex < stscCount
+                    && (moov.getInt(stsc + 16 + stscIndex * 12) & 0xffffffffL) <= chunk) {
+                samplesPerChunk = moov.getInt(stsc + 16 + stscIndex * 12 + 4) & 0xffffffffL;
+                stscIndex++;
+            }
+            final int entry = chunkOffsets + 16 + (chunk - 1) * (co64 ? 8 : 4);
+            final long offset = co64 ? moov.getLong(entry) : moov.getInt(entry) & 0xffffffffL;
+            long chunkSize = 0;
+            if (sampleCount >= 0) {
+                if (sample + samplesPerChunk > sampleCount) {
+                    throw new InvalidMp4Exception("Chunk " + chunk + " has samples past the "
+                            + sampleCount + " of the track");
+                }
+                if (fixedSampleSize != 0) {
+                    chunkSize = fixedSampleSize * samplesPerChunk;
+                } else {
+                    for (int i = 0; i < samplesPerChunk; ++i) {
+                        chunkSize += moov.getInt(stsz + 20 + (int) (sample + i) * 4)
+                                & 0xffffffffL;
+                    }
+                }
+                sample += samplesPerChunk;
+            }
+            if (!isInMediaData(offset, chunkSize, mdats)) {
+                throw new InvalidMp4Exception("Chunk " + chunk + " of " + chunkSize
+                        + " bytes at " + offset + " is outside of the media data");
+            }
+        }
+        if (sampleCount >= 0 && sample != sampleCount) {
+            throw new InvalidMp4Exception("Chunks hold " + sample + " samples instead of "
+                    + sampleCount);
+        }
+    }
+
+    /**
+     * @param entrySize the size of the entries of the table.
+     * @param extraFields the size of the fields between the entry count and the table.
+     * @return the number of entries of a full box with a table, checked to fit in the box.
+     */
+    private static long getEntryCount(ByteBuffer moov, int box, int entrySize, int extraFields)
+            throws InvalidMp4Exception {
+        final long size = moov.getInt(box) & 0xffffffffL;
+        // Header, version and flags, then the extra fields and the entry count.
+        final long tableStart = BOX_HEADER_SIZE + 4 + extraFields + 4;
+        if (size < tableStart) {
+            throw new InvalidMp4Exception("Truncated " + getType(moov, box));
+        }
+        final long count = moov.getInt(box + (int) tableStart - 4) & 0xffffffffL;
+        // stsz only has a table if the sample size is 0.
+        final boolean hasTable = !"stsz".equals(getType(moov, box))
+                || moov.getInt(box + BOX_HEADER_SIZE + 4) == 0;
+        if (hasTable && count * entrySize > size - tableStart) {
+            throw new InvalidMp4Exception(getType(moov, box) + " with " + count
+                    + " entries doesn't fit in " + size + " bytes");
+        }
+        return count;
+    }
+
+    private static boolean isInMediaData(long offset, long size, List<Box> mdats) {
+        for (Box mdat : mdats) {
+            if (offset >= mdat.offset + mdat.headerSize && offset + size <= mdat.getEnd()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks a downloaded video before it is installed, and moves its {@code moov} box to the
+     * start if asked to.
+     *
+     * @return the file to install, {@code stagedFile} or a faststart copy of it.
+     * @throws InvalidMp4Exception if the video is malformed, so that the player never gets it.
+     */
+    static File checkVideo(File stagedFile, boolean fastStart) throws IOException {
+        final Layout layout;
+        try {
+            layout = validate(stagedFile);
+        } catch (InvalidMp4Exception e) {
+            sInvalidVideos.increment();
+            throw e;
+        }
+        if (layout == null || !fastStart || !layout.needsFastStart()) {
+            return stagedFile;
+        }
+        final File fastStartFile =
+                new File(stagedFile.getParentFile(), stagedFile.getName() + FAST_START_SUFFIX);
+        try {
+            writeFastStart(stagedFile, layout, fastStartFile);
+        } catch (IOException e) {
+            // Still plays, only slower to prepare.
+            Log.w(TAG, "Unable to move the moov box of " + stagedFile, e);
+            fastStartFile.delete();
+            return stagedFile;
+        }
+        if (DEBUG) Log.d(TAG, "Moved the moov box of " + stagedFile + " to the start");
+        sFastStartRewrites.increment();
+        stagedFile.delete();
+        return fastStartFile;
+    }
+
+    /**
+     * Writes a copy of the file of {@code layout} with its {@code moov} box right before the
+     * first {@code mdat} box, and the chunk offsets moved along with the media data.
+     */
+    static void writeFastStart(File source, Layout layout, File destination)
+            throws IOException {
+        final byte[] moov = layout.mMoov.clone();
+        final ByteBuffer buffer = ByteBuffer.wrap(moov);
+        final long insertAt = layout.firstMdatOffset;
+        for (int box : layout.mChunkOffsetBoxes) {
+            final boolean co64 = "co64".equals(getType(buffer, box));
+            final int count = buffer.getInt(box + 12);
+            for (int i = 0; i < count; ++i) {
+                final int entry = box + 16 + i * (co64 ? 8 : 4);
+                long offset = co64 ? buffer.getLong(entry) : buffer.getInt(entry) & 0xffffffffL;
+                if (offset < insertAt || offset >= layout.moovOffset) {
+                    continue;
+                }
+                offset += moov.length;
+                if (co64) {
+                    buffer.putLong(entry, offset);
+                } else if (offset > 0xffffffffL) {
+                    throw new IOException("Chunk offset " + offset + " too large for stco");
+                } else {
+                    writeUint32(moov, entry, offset);
+                }
+            }
+        }
+        try (FileChannel in = FileChannel.open(source.toPath());
+                FileOutputStream out = new FileOutputStream(destination)) {
+            final FileChannel outChannel = out.getChannel();
+            transfer(in, 0, insertAt, outChannel);
+            out.write(moov);
+            transfer(in, insertAt, layout.moovOffset - insertAt, outChannel);
+            final long afterMoov = layout.moovOffset + moov.length;
+            transfer(in, afterMoov, layout.fileLength - afterMoov, outChannel);
+            out.getFD().sync();
+        }
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            final long n = in.transferTo(position + transferred, count - transferred, out);
+            if (n <= 0) {
+                throw new IOException("Could not copy at " + (position + transferred));
+            }
+            transferred += n;
+        }
+    }
+
+    private static String getType(ByteBuffer buffer, int box) {
+        return new String(buffer.array(), box + 4, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static long readUint32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xffL) << 24) | ((buffer[offset + 1] & 0xffL) << 16)
+                | ((buffer[offset + 2] & 0xffL) << 8) | (buffer[offset + 3] & 0xffL);
+    }
+
+    private static void writeUint32(byte[] buffer, int offset, long value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Picks the {@link PlaybackTierPolicy tier} the demo video plays at from the thermal status
+ * and the battery state of the device, while started, and tells the listener when it changes.
+ * Every change is logged, and counted in the metrics.
+ */
+class PlaybackGovernor {
+    private static final String TAG = "PlaybackGovernor";
+
+    private static final Metrics.Gauge sTier = Metrics.gauge("playback_tier");
+    private static final Metrics.Counter sTierChanges = Metrics.counter("playback_tier_changes");
+
+    interface Listener {
+        /**
+         * Called on the main thread.
+         *
+         * @param tier one of the {@code PlaybackTierPolicy.TIER_} constants.
+         */
+        void onTierChanged(int tier);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final PowerManager mPowerManager;
+    private final PlaybackTierPolicy mPolicy;
+
+    private boolean mStarted;
+    private int mThermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private boolean mCharging = true;
+    private int mBatteryPercent = -1;
+
+    PlaybackGovernor(Context context, Handler handler, Listener listener) {
+        mContext = context;
+        mHandler = handler;
+        mListener = listener;
+        mPowerManager = context.getSystemService(PowerManager.class);
+        mPolicy = new PlaybackTierPolicy(context.getResources().getInteger(
+                R.integer.retail_demo_playback_tier_step_up_delay_seconds) * 1000L);
+    }
+
+    /**
+     * Starts following the conditions, which may change the tier right away.
+     */
+    void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mThermalStatus = mPowerManager.getCurrentThermalStatus();
+        mPowerManager.addThermalStatusListener(mHandler::post, mThermalListener);
+        // Sticky, returns the current state.
+        final Intent battery = mContext.registerReceiver(mBatteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, mHandler);
+        if (battery != null) {
+            updateBattery(battery);
+        }
+        evaluate();
+    }
+
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mPowerManager.removeThermalStatusListener(mThermalListener);
+        mContext.unregisterReceiver(mBatteryReceiver);
+        mHandler.removeCallbacks(mEvaluate);
+    }
+
+    int getTier() {
+        return mPolicy.getTier();
+    }
+
+    private void updateBattery(Intent intent) {
+        mCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        mBatteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+    }
+
+    private void evaluate() {
+        mHandler.removeCallbacks(mEvaluate);
+        if (!mStarted) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final int oldTier = mPolicy.getTier();
+        final int tier = mPolicy.update(PlaybackTierPolicy.getTargetTier(mThermalStatus,
+                mCharging, mBatteryPercent), now);
+        final long delayMillis = mPolicy.getStepUpDelayMillis(now);
+        if (delayMillis >= 0) {
+            mHandler.postDelayed(mEvaluate, delayMillis);
+        }
+        if (tier == oldTier) {
+            return;
+        }
+        Log.i(TAG, "Playback tier " + PlaybackTierPolicy.tierToString(oldTier) + " -> "
+                + PlaybackTierPolicy.tierToString(tier) + ", thermal status " + mThermalStatus
+                + (mCharging ? ", charging" : ", on battery") + ", battery " + mBatteryPercent
+                + "%");
+        sTier.set(tier);
+        sTierChanges.increment();
+        mListener.onTierChanged(tier);
+    }
+
+    private final Runnable mEvaluate = this::evaluate;
+
+    private final PowerManager.OnThermalStatusChangedListener mThermalListener =
+            new PowerManager.OnThermalStatusChangedListener() {
+        @Override
+        public void onThermalStatusChanged(int status) {
+            mThermalStatus = status;
+            evaluate();
+        }
+    };
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBattery(intent);
+            evaluate();
+        }
+    };
+}
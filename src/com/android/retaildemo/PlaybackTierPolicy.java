@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.os.PowerManager;
+
+/**
+ * Which quality the demo video plays at, given how hot the device is and how much battery it
+ * has left. Each tier costs less than the one before it: full quality, a lower bitrate variant
+ * of the video, a lower display refresh rate, and finally a still frame.
+ *
+ * Tiers are stepped down as soon as conditions get worse, but only stepped back up one at a
+ * time, once conditions have been better for a while, so that playback doesn't go back and
+ * forth when the temperature hovers around a threshold.
+ */
+class PlaybackTierPolicy {
+    static final int TIER_FULL = 0;
+    static final int TIER_LOW_BITRATE = 1;
+    static final int TIER_LOW_FRAME_RATE = 2;
+    static final int TIER_POSTER = 3;
+
+    // Below which the video stops playing while unplugged.
+    static final int LOW_BATTERY_PERCENT = 15;
+
+    private final long mStepUpDelayMillis;
+    private int mTier = TIER_FULL;
+    // Since when conditions allow a better tier, or -1 if they don't.
+    private long mBetterSinceMillis = -1;
+
+    /**
+     * @param stepUpDelayMillis how long conditions have to allow a better tier before stepping
+     *         up to it.
+     */
+    PlaybackTierPolicy(long stepUpDelayMillis) {
+        mStepUpDelayMillis = stepUpDelayMillis;
+    }
+
+    /**
+     * @param thermalStatus one of the {@code PowerManager.THERMAL_STATUS_} constants.
+     * @param batteryPercent the battery level, or -1 if there is no battery.
+     * @return the tier the conditions call for.
+     */
+    static int getTargetTier(int thermalStatus, boolean charging, int batteryPercent) {
+        final int thermalTier;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            thermalTier = TIER_POSTER;
+        } else if (thermalStatus == PowerManager.THERMAL_STATUS_SEVERE) {
+            thermalTier = TIER_LOW_FRAME_RATE;
+        } else if (thermalStatus == PowerManager.THERMAL_STATUS_MODERATE) {
+            thermalTier = TIER_LOW_BITRATE;
+        } else {
+            thermalTier = TIER_FULL;
+        }
+        final int batteryTier;
+        if (charging || batteryPercent < 0) {
+            batteryTier = TIER_FULL;
+        } else if (batteryPercent <= LOW_BATTERY_PERCENT) {
+            batteryTier = TIER_POSTER;
+        } else {
+            batteryTier = TIER_LOW_BITRATE;
+        }
+        return Math.max(thermalTier, batteryTier);
+    }
+
+    /**
+     * Moves towards the target tier.
+     *
+     * @return the tier to play at.
+     */
+    int update(int targetTier, long nowMillis) {
+        if (targetTier >= mTier) {
+            mTier = targetTier;
+            mBetterSinceMillis = -1;
+        } else if (mBetterSinceMillis < 0) {
+            mBetterSinceMillis = nowMillis;
+        } else if (nowMillis - mBetterSinceMillis >= mStepUpDelayMillis) {
+            mTier--;
+            // The next step up needs the same wait.
+            mBetterSinceMillis = mTier > targetTier ? nowMillis : -1;
+        }
+        return mTier;
+    }
+
+    int getTier() {
+        return mTier;
+    }
+
+    /**
+     * @return how long until the next step up, or -1 if none is pending.
+     */
+    long getStepUpDelayMillis(long nowMillis) {
+        if (mBetterSinceMillis < 0) {
+            return -1;
+        }
+        return Math.max(0, mBetterSinceMillis + mStepUpDelayMillis - nowMillis);
+    }
+
+    static String tierToString(int tier) {
+        switch (tier) {
+            case TIER_FULL:
+                return "full";
+            case TIER_LOW_BITRATE:
+                return "low-bitrate";
+            case TIER_LOW_FRAME_RATE:
+                return "low-frame-rate";
+            case TIER_POSTER:
+                return "poster";
+            default:
+                return "unknown(" + tier + ")";
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.PixelCopy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the video playing in a {@link LoopingVideoView}, while started, and tells the
+ * listener how to recover when it stalls, see {@link StallDetector}.
+ *
+ * The playback position is sampled at a low rate, along with a thumbnail of the frame on
+ * screen, since the player doesn't tell how many frames it rendered. Every stall and recovery
+ * is logged, and counted in the metrics.
+ */
+class PlaybackWatchdog {
+    private static final String TAG = "PlaybackWatchdog";
+
+    // How long playback has to go on without a stall for the next one to start over.
+    private static final long RECOVERED_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Small enough to copy at every sample, large enough to tell frames apart.
+    private static final int THUMBNAIL_WIDTH = 16;
+    private static final int THUMBNAIL_HEIGHT = 9;
+
+    private static final Metrics.Counter sStalls = Metrics.counter("playback_stalls");
+    private static final Metrics.Counter sStallSeeks = Metrics.counter("stall_seeks");
+    private static final Metrics.Counter sStallPrepares = Metrics.counter("stall_prepares");
+    private static final Metrics.Counter sStallPreloadedSwitches =
+            Metrics.counter("stall_preloaded_switches");
+    private static final Metrics.Counter sStallFallbacks = Metrics.counter("stall_fallbacks");
+    private static final Metrics.Counter sStallRecoveries = Metrics.counter("stall_recoveries");
+
+    interface Listener {
+        /**
+         * Called on the main thread.
+         *
+         * @param recovery one of the {@code StallDetector.RECOVERY_} constants, other than
+         *         {@code RECOVERY_NONE}.
+         */
+        void onStall(int recovery);
+    }
+
+    private final LoopingVideoView mVideoView;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final long mSampleIntervalMillis;
+    private final boolean mCheckFrames;
+    private final StallDetector mDetector;
+    private final int[] mPixels = new int[THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT];
+
+    private boolean mStarted;
+    private Bitmap mThumbnail;
+    // Whether the last sample was taken while the video should have been playing.
+    private boolean mWatching;
+
+    PlaybackWatchdog(LoopingVideoView videoView, Handler handler, Listener listener) {
+        mVideoView = videoView;
+        mHandler = handler;
+        mListener = listener;
+        final Resources res = videoView.getResources();
+        mSampleIntervalMillis =
+                res.getInteger(R.integer.retail_demo_watchdog_sample_interval_ms);
+        final long frozenFrameTimeoutMillis =
+                res.getInteger(R.integer.retail_demo_frozen_frame_timeout_ms);
+        mCheckFrames = frozenFrameTimeoutMillis > 0;
+        mDetector = new StallDetector(res.getInteger(R.integer.retail_demo_stall_timeout_ms),
+                frozenFrameTimeoutMillis, RECOVERED_AFTER_MILLIS);
+    }
+
+    void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mWatching = false;
+        if (mCheckFrames && mThumbnail == null) {
+            mThumbnail = Bitmap.createBitmap(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                    Bitmap.Config.ARGB_8888);
+        }
+        mHandler.postDelayed(mSample, mSampleIntervalMillis);
+    }
+
+    void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mHandler.removeCallbacks(mSample);
+    }
+
+    private void sample() {
+        if (!mStarted) {
+            return;
+        }
+        if (!mVideoView.isPlaybackExpected()) {
+            // Paused, or nothing to play, give playback time to start once it is expected.
+            mWatching = false;
+            scheduleSample();
+            return;
+        }
+        final int position = mVideoView.getCurrentPosition();
+        if (!mCheckFrames || position < 0) {
+            // Nothing on screen to compare while the video is being prepared.
+            onSample(position, 0);
+            return;
+        }
+        PixelCopy.request(mVideoView, mThumbnail, result -> {
+            onSample(position, result == PixelCopy.SUCCESS ? getFrameHash() : 0);
+        }, mHandler);
+    }
+
+    private void onSample(int position, long frame) {
+        if (!mStarted) {
+            return;
+        }
+        scheduleSample();
+        final long now = SystemClock.uptimeMillis();
+        if (!mWatching) {
+            mWatching = true;
+            mDetector.restart(now);
+        }
+        final int oldRecovery = mDetector.getRecovery();
+        final int recovery = mDetector.onSample(position, frame, now);
+        if (recovery == StallDetector.RECOVERY_NONE) {
+            if (oldRecovery != StallDetector.RECOVERY_NONE
+                    && mDetector.getRecovery() == StallDetector.RECOVERY_NONE) {
+                Log.i(TAG, "Playback recovered by "
+                        + StallDetector.recoveryToString(oldRecovery));
+                sStallRecoveries.increment();
+            }
+            return;
+        }
+        Log.w(TAG, "Playback stalled at " + position + " ms, recovering by "
+                + StallDetector.recoveryToString(recovery));
+        sStalls.increment();
+        switch (recovery) {
+            case StallDetector.RECOVERY_SEEK:
+                sStallSeeks.increment();
+                break;
+            case StallDetector.RECOVERY_PREPARE:
+                sStallPrepares.increment();
+                break;
+            case StallDetector.RECOVERY_PRELOADED:
+                sStallPreloadedSwitches.increment();
+                break;
+            case StallDetector.RECOVERY_FALLBACK:
+                sStallFallbacks.increment();
+                break;
+        }
+        mListener.onStall(recovery);
+    }
+
+    private void scheduleSample() {
+        mHandler.removeCallbacks(mSample);
+        mHandler.postDelayed(mSample, mSampleIntervalMillis);
+    }
+
+    /**
+     * @return a hash of the pixels of the thumbnail, never 0.
+     */
+    private long getFrameHash() {
+        mThumbnail.getPixels(mPixels, 0, THUMBNAIL_WIDTH, 0, 0, THUMBNAIL_WIDTH,
+                THUMBNAIL_HEIGHT);
+        long hash = 1;
+        for (int pixel : mPixels) {
+            hash = 31 * hash + pixel;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    private final Runnable mSample = this::sample;
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the clips played in rotation after the main demo video.
+ *
+ * Clips are downloaded a few at a time on the given executor, in order of priority: a lower
+ * value is played earlier, so it is downloaded first. Clips are kept in a {@link ContentCache}, and
+ * the ones already in it are reported right away. The asset id of a clip is the file name in
+ * its url, and its version is the url itself, so publishing a clip under a new url downloads it
+ * again. Clips that are no longer in the playlist stay in the cache until they are evicted.
+ * Like the demo video, a clip is checked by {@link Mp4Validator} before it is installed, and a
+ * malformed one is deleted and reported as failed.
+ */
+class PlaylistDownloader {
+    private static final String TAG = "PlaylistDownloader";
+    private static final boolean DEBUG = false;
+
+    static final String PLAYLIST_DIR_NAME = "playlist";
+    static final String INDEX_FILE_NAME = "playlist_index";
+
+    static final class Asset {
+        final String id;
+        final String url;
+        /** Position in the playlist; lower values are played, and downloaded, first. */
+        final int priority;
+        final File file;
+
+        Asset(String id, String url, int priority, File file) {
+            this.id = id;
+            this.url = url;
+            this.priority = priority;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return "Asset{" + priority + ", " + url + "}";
+        }
+    }
+
+    interface DownloaderFactory {
+        HttpDownloader getDownloader(String url, File destination);
+    }
+
+    /**
+     * Called on the download threads.
+     */
+    interface Listener {
+        void onAssetReady(Asset asset);
+        void onAssetFailed(Asset asset);
+        /** All assets are either ready or failed. */
+        void onPlaylistFinished();
+    }
+
+    private final ContentCache mCache;
+    private final DownloaderFactory mDownloaderFactory;
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final int mMaxConcurrentDownloads;
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final AtomicInteger mRemaining = new AtomicInteger();
+
+    // Orders waiting downloads by priority rather than submission order.
+    @GuardedBy("this")
+    private final PriorityQueue<AssetDownload> mQueue = new PriorityQueue<>();
+    @GuardedBy("this")
+    private final Set<HttpDownloader> mActiveDownloaders = new HashSet<>();
+    @GuardedBy("this")
+    private int mRunningWorkers;
+    @GuardedBy("this")
+    private boolean mShutdown;
+
+    private TokenBucket mThrottle;
+
+    /**
+     * @param executor runs the downloads, of which at most {@code maxConcurrentDownloads} run
+     *        at the same time.
+     */
+    PlaylistDownloader(ContentCache cache, Executor executor, int maxConcurrentDownloads,
+            DownloaderFactory downloaderFactory, Listener listener) {
+        mCache = cache;
+        mExecutor = executor;
+        mMaxConcurrentDownloads = maxConcurrentDownloads;
+        mDownloaderFactory = downloaderFactory;
+        mListener = listener;
+    }
+
+    /**
+     * Limits the combined speed of all clip downloads.
+     */
+    void setThrottle(TokenBucket throttle) {
+        mThrottle = throttle;
+    }
+
+    /**
+     * @param urls the urls of the clips, in the order they are played.
+     * @param firstPriority the priority of the first clip.
+     */
+    List<Asset> getAssets(String[] urls, int firstPriority) {
+        final List<Asset> assets = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < urls.length; ++i) {
+            final int priority = firstPriority + i;
+            String name = getFileName(urls[i]);
+            if (name == null || name.equals(VideoInstaller.STAGING_DIR_NAME)
+                    || !names.add(name)) {
+                name = priority + "-" + (name != null ? name : "clip.mp4");
+                names.add(name);
+            }
+            assets.add(new Asset(name, urls[i], priority, mCache.getFile(name)));
+        }
+        return assets;
+    }
+
+    /**
+     * Loads the cache and queues the download of the given clips that aren't in it.
+     */
+    void download(List<Asset> assets) {
+        mCache.load();
+        // Marks all the clips of the playlist as used before any download, so that the cache
+        // evicts the clips that are no longer in the playlist first.
+        for (Asset asset : assets) {
+            mCache.get(asset.id, asset.url);
+        }
+        saveCache();
+        deleteStagedFiles(assets);
+        if (assets.isEmpty()) {
+            mListener.onPlaylistFinished();
+            return;
+        }
+        mRemaining.addAndGet(assets.size());
+        synchronized (this) {
+            for (Asset asset : assets) {
+                mQueue.add(new AssetDownload(asset, mSequence.getAndIncrement()));
+            }
+            while (mRunningWorkers < mMaxConcurrentDownloads && !mShutdown) {
+                mRunningWorkers++;
+                mExecutor.execute(this::runQueuedDownloads);
+            }
+        }
+    }
+
+    /**
+     * Stops the downloads. Partial downloads are kept and resumed next time.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+            mQueue.clear();
+            for (HttpDownloader downloader : mActiveDownloaders) {
+                downloader.cancel();
+            }
+        }
+    }
+
+    /**
+     * Runs the queued downloads, highest priority first, until there are none left.
+     */
+    private void runQueuedDownloads() {
+        while (true) {
+            final AssetDownload next;
+            synchronized (this) {
+                next = mShutdown ? null : mQueue.poll();
+                if (next == null) {
+                    mRunningWorkers--;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+
+    private void saveCache() {
+        try {
+            mCache.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the playlist cache", e);
+        }
+    }
+
+    private void deleteStagedFiles(List<Asset> assets) {
+        final Set<String> names = new HashSet<>();
+        for (Asset asset : assets) {
+            names.add(asset.id);
+        }
+        final File[] staged =
+                new File(mCache.getDirectory(), VideoInstaller.STAGING_DIR_NAME).listFiles();
+        if (staged != null) {
+            for (File file : staged) {
+                // Keeps partial downloads of the clips that are still wanted.
+                final String name = file.getName();
+                final int suffix = name.indexOf(HttpDownloader.PARTIAL_SUFFIX);
+                if (suffix < 0 || !names.contains(name.substring(0, suffix))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the last segment of the url's path, or null if there isn't one.
+     */
+    @VisibleForTesting
+    static String getFileName(String url) {
+        final String path;
+        try {
+            path = new URI(url).getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (path == null) {
+            return null;
+        }
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? null : name;
+    }
+
+    private final class AssetDownload implements Comparable<AssetDownload> {
+        private final Asset mAsset;
+        private final int mSequence;
+
+        AssetDownload(Asset asset, int sequence) {
+            mAsset = asset;
+            mSequence = sequence;
+        }
+
+        void run() {
+            try {
+                if (mCache.get(mAsset.id, mAsset.url) == null) {
+                    download();
+                    if (!mCache.put(mAsset.id, mAsset.url)) {
+                        throw new IOException("Too big for the cache");
+                    }
+                    saveCache();
+                }
+                mListener.onAssetReady(mAsset);
+            } catch (IOException e) {
+                Log.w(TAG, "Error downloading " + mAsset, e);
+                mListener.onAssetFailed(mAsset);
+            } finally {
+                if (mRemaining.decrementAndGet() == 0) {
+                    mListener.onPlaylistFinished();
+                }
+            }
+        }
+
+        private void download() throws IOException {
+            if (DEBUG) Log.d(TAG, "Downloading " + mAsset);
+            final VideoInstaller installer = new VideoInstaller(mAsset.file);
+            final File stagingFile = installer.getStagingFile();
+            final HttpDownloader downloader =
+                    mDownloaderFactory.getDownloader(mAsset.url, stagingFile);
+            downloader.setThrottle(mThrottle);
+            synchronized (PlaylistDownloader.this) {
+                if (mShutdown) {
+                    throw new IOException("Shut down");
+                }
+                mActiveDownloaders.add(downloader);
+            }
+            try {
+                downloader.download();
+            } finally {
+                synchronized (PlaylistDownloader.this) {
+                    mActiveDownloaders.remove(downloader);
+                }
+            }
+            File checkedFile = stagingFile;
+            try {
+                checkedFile = Mp4Validator.checkVideo(stagingFile, true);
+                installer.install(checkedFile);
+            } catch (IOException e) {
+                // A clip that failed the check is never handed to the player.
+                checkedFile.delete();
+                stagingFile.delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public int compareTo(AssetDownload other) {
+            if (mAsset.priority != other.mAsset.priority) {
+                return Integer.compare(mAsset.priority, other.mAsset.priority);
+            }
+            return Integer.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+/**
+ * Tells from samples of the playback position, and of the frame on screen, when the video is
+ * stuck, and how hard to try to recover it.
+ *
+ * Playback is stalled when the position hasn't moved for a while, or the frame on screen
+ * hasn't changed for longer, which catches decoders that stopped while the clock goes on. Each
+ * stall escalates to the next recovery: seeking, preparing the video again, playing the
+ * preloaded video, and finally giving up on video. Once playback has gone on without a stall
+ * for a while, the next stall starts over from seeking.
+ */
+class StallDetector {
+    static final int RECOVERY_NONE = 0;
+    static final int RECOVERY_SEEK = 1;
+    static final int RECOVERY_PREPARE = 2;
+    static final int RECOVERY_PRELOADED = 3;
+    static final int RECOVERY_FALLBACK = 4;
+
+    private final long mStallTimeoutMillis;
+    private final long mFrozenFrameTimeoutMillis;
+    private final long mRecoveredAfterMillis;
+
+    private long mPosition = -1;
+    private long mPositionChangedMillis;
+    private long mFrame;
+    private long mFrameChangedMillis;
+    private int mRecovery = RECOVERY_NONE;
+    private long mRecoveryMillis;
+
+    /**
+     * @param stallTimeoutMillis how long the position can stay still.
+     * @param frozenFrameTimeoutMillis how long the frame on screen can stay the same, or 0 to
+     *         ignore the frames.
+     * @param recoveredAfterMillis how long playback has to go on without a stall after a
+     *         recovery for the next stall to start over.
+     */
+    StallDetector(long stallTimeoutMillis, long frozenFrameTimeoutMillis,
+            long recoveredAfterMillis) {
+        mStallTimeoutMillis = stallTimeoutMillis;
+        mFrozenFrameTimeoutMillis = frozenFrameTimeoutMillis;
+        mRecoveredAfterMillis = recoveredAfterMillis;
+    }
+
+    /**
+     * Starts watching again, for example when the video starts playing, without forgetting
+     * the recoveries tried so far.
+     */
+    void restart(long nowMillis) {
+        mPosition = -1;
+        mPositionChangedMillis = nowMillis;
+        mFrame = 0;
+        mFrameChangedMillis = nowMillis;
+    }
+
+    /**
+     * @param positionMillis the playback position.
+     * @param frame a hash of the frame on screen, or 0 if not known.
+     * @return the {@code RECOVERY_} to try, {@link #RECOVERY_NONE} unless playback is stalled.
+     */
+    int onSample(long positionMillis, long frame, long nowMillis) {
+        if (positionMillis != mPosition) {
+            mPosition = positionMillis;
+            mPositionChangedMillis = nowMillis;
+        }
+        if (frame == 0 || frame != mFrame) {
+            mFrame = frame;
+            mFrameChangedMillis = nowMillis;
+        }
+        final boolean stalled = nowMillis - mPositionChangedMillis >= mStallTimeoutMillis
+                || (mFrozenFrameTimeoutMillis > 0
+                        && nowMillis - mFrameChangedMillis >= mFrozenFrameTimeoutMillis);
+        if (!stalled) {
+            if (mRecovery != RECOVERY_NONE
+                    && nowMillis - mRecoveryMillis >= mRecoveredAfterMillis) {
+                mRecovery = RECOVERY_NONE;
+            }
+            return RECOVERY_NONE;
+        }
+        mRecovery = Math.min(mRecovery + 1, RECOVERY_FALLBACK);
+        mRecoveryMillis = nowMillis;
+        // Give the recovery the same time to show progress, from where playback stalled.
+        mPositionChangedMillis = nowMillis;
+        mFrameChangedMillis = nowMillis;
+        return mRecovery;
+    }
+
+    /**
+     * @return the last recovery tried, or {@link #RECOVERY_NONE} if playback went on fine
+     *         since.
+     */
+    int getRecovery() {
+        return mRecovery;
+    }
+
+    static String recoveryToString(int recovery) {
+        switch (recovery) {
+            case RECOVERY_NONE:
+                return "none";
+            case RECOVERY_SEEK:
+                return "seek";
+            case RECOVERY_PREPARE:
+                return "prepare";
+            case RECOVERY_PRELOADED:
+                return "preloaded";
+            case RECOVERY_FALLBACK:
+                return "fallback";
+            default:
+                return "unknown(" + recovery + ")";
+        }
+    }
+}
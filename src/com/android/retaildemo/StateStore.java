@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Everything the app remembers across reboots about its downloads, in a single small file: the
+ * boot count of the last download, the validators of the video, the hashes of the downloaded
+ * files, the stats of the last downloads and whether the preloaded videos are playable.
+ *
+ * The file is read once, the first time the state is used, and every change is written back
+ * on the write executor, which must run one task at a time. Changes made before a write starts
+ * go into that write, so a burst of changes only costs one.
+ *
+ * The file is written next to its final location, synced and renamed over it, and holds a
+ * checksum of its contents, so a power loss at any point leaves either the old or the new
+ * state. A file that still can't be read is ignored, and the state starts over as on the first
+ * run.
+ */
+class StateStore {
+    private static final String TAG = "StateStore";
+    private static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "retail_demo_state";
+    // Files the state used to be kept in, deleted on the first run with this file.
+    private static final String[] LEGACY_FILE_NAMES = {
+            "last_download_info.txt", "video_validators", "download_stats"};
+
+    private static final int MAGIC = 0x52445354; // RDST
+    // Version 1 didn't have the checked videos.
+    private static final int VERSION = 2;
+    // Far more than the state ever takes, to not trust a corrupted length.
+    private static final int MAX_DATA_LENGTH = 1024 * 1024;
+
+    @GuardedBy("StateStore.class")
+    private static StateStore sInstance;
+
+    /**
+     * The validators of the installed video, see {@link ValidatorCache}.
+     */
+    static final class Validators {
+        final String eTag;
+        final String lastModified;
+        final long contentLength;
+        final long maxAgeMillis;
+        final long checkedAtMillis;
+
+        Validators(String eTag, String lastModified, long contentLength, long maxAgeMillis,
+                long checkedAtMillis) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.contentLength = contentLength;
+            this.maxAgeMillis = maxAgeMillis;
+            this.checkedAtMillis = checkedAtMillis;
+        }
+    }
+
+    /**
+     * Whether a video was found playable, while it had the given length and modification time.
+     */
+    private static final class VideoCheck {
+        final long length;
+        final long lastModified;
+        final boolean playable;
+
+        VideoCheck(long length, long lastModified, boolean playable) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.playable = playable;
+        }
+    }
+
+    private final File mFile;
+    private final Executor mWriteExecutor;
+
+    @GuardedBy("this")
+    private boolean mLoaded;
+    @GuardedBy("this")
+    private boolean mWriteScheduled;
+    @GuardedBy("this")
+    private int mLastBootCount;
+    @GuardedBy("this")
+    private Validators mValidators;
+    // SHA-256 in hex, by file name.
+    @GuardedBy("this")
+    private final Map<String, String> mContentHashes = new HashMap<>();
+    // Oldest first.
+    @GuardedBy("this")
+    private final List<DownloadStatsLog.Record> mDownloadRecords = new ArrayList<>();
+    // By path.
+    @GuardedBy("this")
+    private final Map<String, VideoCheck> mVideoChecks = new HashMap<>();
+
+    /**
+     * @return the state kept in {@code dir}, which is the same for every caller.
+     */
+    static synchronized StateStore getInstance(File dir) {
+        if (sInstance == null) {
+            sInstance = new StateStore(new File(dir, FILE_NAME),
+                    BackgroundScheduler.getInstance().newSerialExecutor(
+                            BackgroundScheduler.DISK));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    StateStore(File file, Executor writeExecutor) {
+        mFile = file;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * @return the boot count saved with {@link #setLastBootCount}, or 0 if there is none.
+     */
+    synchronized int getLastBootCount() {
+        load();
+        return mLastBootCount;
+    }
+
+    synchronized void setLastBootCount(int bootCount) {
+        load();
+        mLastBootCount = bootCount;
+        scheduleWrite();
+    }
+
+    /**
+     * @return the saved validators, or null if there are none.
+     */
+    synchronized Validators getValidators() {
+        load();
+        return mValidators;
+    }
+
+    synchronized void setValidators(Validators validators) {
+        load();
+        mValidators = validators;
+        scheduleWrite();
+    }
+
+    /**
+     * @return the SHA-256 in hex of the downloaded file named {@code fileName}, or of another
+     *         file saved under a key of its own, or null if not known.
+     */
+    synchronized String getContentHash(String fileName) {
+        load();
+        return mContentHashes.get(fileName);
+    }
+
+    /**
+     * @param sha256 the SHA-256 in hex of the file, or null to forget it.
+     */
+    synchronized void setContentHash(String fileName, String sha256) {
+        load();
+        if (sha256 != null) {
+            mContentHashes.put(fileName, sha256);
+        } else if (mContentHashes.remove(fileName) == null) {
+            return;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * @return the recorded downloads, oldest first.
+     */
+    synchronized List<DownloadStatsLog.Record> getDownloadRecords() {
+        load();
+        return new ArrayList<>(mDownloadRecords);
+    }
+
+    /**
+     * Adds a record, dropping the oldest ones beyond {@code maxRecords}.
+     */
+    synchronized void addDownloadRecord(DownloadStatsLog.Record record, int maxRecords) {
+        load();
+        mDownloadRecords.add(record);
+        while (mDownloadRecords.size() > maxRecords) {
+            mDownloadRecords.remove(0);
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * @return whether the video at {@code path} was found playable by
+     *         {@link #setVideoPlayable}, or null if it wasn't checked, or changed since.
+     */
+    synchronized Boolean isVideoPlayable(String path, long length, long lastModified) {
+        load();
+        final VideoCheck check = mVideoChecks.get(path);
+        return check != null && check.length == length && check.lastModified == lastModified
+                ? check.playable : null;
+    }
+
+    synchronized void setVideoPlayable(String path, long length, long lastModified,
+            boolean playable) {
+        load();
+        mVideoChecks.put(path, new VideoCheck(length, lastModified, playable));
+        scheduleWrite();
+    }
+
+    @GuardedBy("this")
+    private void scheduleWrite() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mWriteExecutor.execute(this::write);
+        }
+    }
+
+    private void write() {
+        final byte[] data;
+        synchronized (this) {
+            mWriteScheduled = false;
+            try {
+                data = toByteArray();
+            } catch (IOException e) {
+                // Can't happen, only writes to memory.
+                throw new IllegalStateException(e);
+            }
+        }
+        try {
+            writeFile(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile, e);
+        }
+    }
+
+    @GuardedBy("this")
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            for (String name : LEGACY_FILE_NAMES) {
+                new File(mFile.getParentFile(), name).delete();
+            }
+            return;
+        }
+        try {
+            readFile();
+            if (DEBUG) Log.d(TAG, "Loaded " + mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + mFile + ", starting over", e);
+            mLastBootCount = 0;
+            mValidators = null;
+            mContentHashes.clear();
+            mDownloadRecords.clear();
+            mVideoChecks.clear();
+        }
+    }
+
+    @GuardedBy("this")
+    private void readFile() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a state file");
+            }
+            final int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unknown version " + version);
+            }
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_DATA_LENGTH) {
+                throw new IOException("Invalid length " + length);
+            }
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("Checksum mismatch");
+            }
+            fromByteArray(data, version);
+        }
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(data.length);
+            out.write(data);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + mFile);
+        }
+    }
+
+    @GuardedBy("this")
+    private byte[] toByteArray() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(mLastBootCount);
+        out.writeBoolean(mValidators != null);
+        if (mValidators != null) {
+            writeString(out, mValidators.eTag);
+            writeString(out, mValidators.lastModified);
+            out.writeLong(mValidators.contentLength);
+            out.writeLong(mValidators.maxAgeMillis);
+            out.writeLong(mValidators.checkedAtMillis);
+        }
+        out.writeInt(mContentHashes.size());
+        for (Map.Entry<String, String> entry : mContentHashes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeInt(mDownloadRecords.size());
+        for (DownloadStatsLog.Record record : mDownloadRecords) {
+            out.writeLong(record.timeMillis);
+            out.writeUTF(record.name);
+            out.writeBoolean(record.success);
+            out.writeLong(record.bytes);
+            out.writeLong(record.durationMillis);
+            out.writeLong(record.meanBytesPerSecond);
+            out.writeLong(record.p95BytesPerSecond);
+            out.writeInt(record.retries);
+        }
+        out.writeInt(mVideoChecks.size());
+        for (Map.Entry<String, VideoCheck> entry : mVideoChecks.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().length);
+            out.writeLong(entry.getValue().lastModified);
+            out.writeBoolean(entry.getValue().playable);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @GuardedBy("this")
+    private void fromByteArray(byte[] data, int version) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        mLastBootCount = in.readInt();
+        if (in.readBoolean()) {
+            mValidators = new Validators(readString(in), readString(in), in.readLong(),
+                    in.readLong(), in.readLong());
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            mContentHashes.put(in.readUTF(), in.readUTF());
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            mDownloadRecords.add(new DownloadStatsLog.Record(in.readLong(), in.readUTF(),
+                    in.readBoolean(), in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readInt()));
+        }
+        if (version < 2) {
+            return;
+        }
+        for (int count = in.readInt(); count > 0; --count) {
+            mVideoChecks.put(in.readUTF(),
+                    new VideoCheck(in.readLong(), in.readLong(), in.readBoolean()));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value != null ? value : "");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final String value = in.readUTF();
+        return value.isEmpty() ? null : value;
+    }
+}
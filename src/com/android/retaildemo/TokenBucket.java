@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast bytes are downloaded, shared by all the connections of a download. Up to
+ * {@code burstBytes} can go through at once after an idle period, after which the rate is held
+ * to {@code bytesPerSecond}.
+ *
+ * The rate can be changed at any time, which also wakes up the threads waiting for tokens.
+ */
+class TokenBucket {
+    private final long mBurstBytes;
+
+    private long mBytesPerSecond;
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond the rate to hold downloads to, or 0 for no limit.
+     */
+    TokenBucket(long bytesPerSecond, long burstBytes) {
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mBurstBytes = Math.max(1, burstBytes);
+        mTokens = mBurstBytes;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    synchronized long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond the new rate, or 0 to stop limiting.
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        if (mBytesPerSecond == 0) {
+            mTokens = mBurstBytes;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Blocks until {@code bytes} more bytes may be downloaded.
+     *
+     * Bytes are taken as soon as the bucket isn't in debt, even if there are fewer tokens than
+     * requested, so that reads larger than the burst size don't wait forever; the following
+     * callers then wait for the debt to be paid back.
+     */
+    synchronized void acquire(int bytes) throws InterruptedIOException {
+        while (mBytesPerSecond > 0) {
+            refill();
+            if (mTokens >= 0) {
+                mTokens -= bytes;
+                return;
+            }
+            final long waitMillis = (long) Math.ceil(-mTokens * 1000 / mBytesPerSecond);
+            try {
+                wait(Math.max(1, waitMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long elapsedNanos = now - mLastRefillNanos;
+        mLastRefillNanos = now;
+        mTokens = Math.min(mBurstBytes,
+                mTokens + (double) elapsedNanos * mBytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Resources;
+import android.media.MediaDataSource;
+import android.os.Environment;
+import android.os.Handler;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * Checks for an updated demo video, and downloads it, once a day when the device is in a state
+ * where that doesn't get in the way of the demo: on an unmetered network, in the hours the
+ * store is closed, and optionally while idle or charging, see {@code config.xml}.
+ *
+ * The updated video is installed in place of the current one and handed to the listener set
+ * with {@link #setUpdateListener}, which only has to swap it in.
+ */
+public class UpdateCheckJobService extends JobService {
+    private static final String TAG = "UpdateCheckJobService";
+    private static final boolean DEBUG = false;
+
+    @VisibleForTesting
+    static final int JOB_ID = 1;
+
+    @GuardedBy("UpdateCheckJobService.class")
+    private static DownloadVideoTask.ResultListener sUpdateListener;
+
+    private Handler mHandler;
+    private DownloadVideoTask mTask;
+    private boolean mStopped;
+
+    /**
+     * Schedules the check, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        final JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        schedule(context, getWindow(context.getResources()).getDelayMillis(
+                Calendar.getInstance()));
+    }
+
+    private static void schedule(Context context, long delayMillis) {
+        final Resources res = context.getResources();
+        final JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, UpdateCheckJobService.class))
+                .setRequiredNetworkType(
+                        res.getBoolean(R.bool.retail_demo_update_requires_unmetered)
+                                ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(res.getBoolean(R.bool.retail_demo_update_requires_charging))
+                .setRequiresDeviceIdle(res.getBoolean(R.bool.retail_demo_update_requires_idle))
+                .setMinimumLatency(delayMillis)
+                .setPersisted(true)
+                .build();
+        if (DEBUG) Log.d(TAG, "Checking for an update in " + delayMillis + " ms");
+        context.getSystemService(JobScheduler.class).schedule(job);
+    }
+
+    private static UpdateWindow getWindow(Resources res) {
+        return new UpdateWindow(res.getInteger(R.integer.retail_demo_update_window_start_hour),
+                res.getInteger(R.integer.retail_demo_update_window_end_hour));
+    }
+
+    /**
+     * Sets the listener told about updated videos, replacing any other.
+     */
+    static synchronized void setUpdateListener(DownloadVideoTask.ResultListener listener) {
+        sUpdateListener = listener;
+    }
+
+    /**
+     * Removes the listener, if it is still the one told about updated videos.
+     */
+    static synchronized void removeUpdateListener(DownloadVideoTask.ResultListener listener) {
+        if (sUpdateListener == listener) {
+            sUpdateListener = null;
+        }
+    }
+
+    private static synchronized DownloadVideoTask.ResultListener getUpdateListener() {
+        return sUpdateListener;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mStopped = false;
+        if (!getWindow(getResources()).contains(Calendar.getInstance())) {
+            // The other constraints were only met after the window closed.
+            if (DEBUG) Log.d(TAG, "Outside of the update window, checking tomorrow");
+            mHandler.post(() -> finish(params));
+            return true;
+        }
+        final String fileName = getString(R.string.retail_demo_video_file_name);
+        // Off the main thread, since looking for the video and making the task read the disk.
+        BackgroundScheduler.getInstance().execute(BackgroundScheduler.DISK, () -> {
+            final File preloadedVideoFile =
+                    new File(Environment.getDataPreloadsDemoDirectory(), fileName);
+            final String downloadPath = getObbDir().getPath() + File.separator + fileName;
+            if (!new File(downloadPath).exists() && !preloadedVideoFile.exists()) {
+                // Nothing to update yet, the first download is up to the demo player, which
+                // also schedules the check once it is done. Check again tomorrow in case it
+                // wasn't.
+                mHandler.post(() -> finish(params));
+                return;
+            }
+            final DownloadVideoTask task = new DownloadVideoTask(this, downloadPath,
+                    preloadedVideoFile, mResultListener);
+            mHandler.post(() -> startTask(task, params));
+        });
+        return true;
+    }
+
+    private void startTask(DownloadVideoTask task, JobParameters params) {
+        if (mStopped) {
+            finish(params);
+            return;
+        }
+        mTask = task;
+        mTask.checkForUpdate(() -> mHandler.post(() -> finish(params)));
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (DEBUG) Log.d(TAG, "Constraints no longer met, stopping the update");
+        // Rescheduled once the task stopped.
+        mStopped = true;
+        if (mTask != null) {
+            mTask.cancel();
+        }
+        return false;
+    }
+
+    private void finish(JobParameters params) {
+        mTask = null;
+        if (mStopped) {
+            // Partial downloads are kept, resume as soon as the constraints are met again.
+            schedule(this, getWindow(getResources()).getDelayMillis(Calendar.getInstance()));
+            return;
+        }
+        jobFinished(params, false);
+        schedule(this, getWindow(getResources()).getNextOpeningDelayMillis(
+                Calendar.getInstance()));
+    }
+
+    private final DownloadVideoTask.ResultListener mResultListener =
+            new DownloadVideoTask.ResultListener() {
+        @Override
+        public void onFileDownloaded(String downloadedFilePath) {
+            final DownloadVideoTask.ResultListener listener = getUpdateListener();
+            if (listener != null) {
+                listener.onFileDownloaded(downloadedFilePath);
+            }
+        }
+
+        @Override
+        public void onError() {
+        }
+
+        @Override
+        public void onStreamingAvailable(MediaDataSource dataSource) {
+        }
+    };
+}
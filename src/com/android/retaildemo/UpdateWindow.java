@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import java.util.Calendar;
+
+/**
+ * The hours of the day, in local time, during which updates of the demo video are downloaded,
+ * for example after the store is closed. A window can span midnight, and a window that starts
+ * and ends at the same hour is open all day.
+ */
+class UpdateWindow {
+    private final int mStartHour;
+    private final int mEndHour;
+
+    /**
+     * @param startHour the hour the window opens at, from 0 to 23.
+     * @param endHour the hour the window closes at, from 0 to 23.
+     */
+    UpdateWindow(int startHour, int endHour) {
+        if (startHour < 0 || startHour > 23 || endHour < 0 || endHour > 23) {
+            throw new IllegalArgumentException("Invalid window " + startHour + "-" + endHour);
+        }
+        mStartHour = startHour;
+        mEndHour = endHour;
+    }
+
+    boolean contains(Calendar time) {
+        final int hour = time.get(Calendar.HOUR_OF_DAY);
+        if (mStartHour == mEndHour) {
+            return true;
+        } else if (mStartHour < mEndHour) {
+            return hour >= mStartHour && hour < mEndHour;
+        } else {
+            return hour >= mStartHour || hour < mEndHour;
+        }
+    }
+
+    /**
+     * @return how long until the window is open, 0 if it is open now.
+     */
+    long getDelayMillis(Calendar now) {
+        return contains(now) ? 0 : getNextOpeningDelayMillis(now);
+    }
+
+    /**
+     * @return how long until the window opens again, skipping the current opening if it is
+     *         open now. A window open all day opens again at its start hour.
+     */
+    long getNextOpeningDelayMillis(Calendar now) {
+        final Calendar start = (Calendar) now.clone();
+        start.set(Calendar.HOUR_OF_DAY, mStartHour);
+        start.set(Calendar.MINUTE, 0);
+        start.set(Calendar.SECOND, 0);
+        start.set(Calendar.MILLISECOND, 0);
+        if (!start.after(now)) {
+            start.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return start.getTimeInMillis() - now.getTimeInMillis();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+
+/**
+ * The HTTP validators the server sent for the video we have downloaded: {@code ETag},
+ * {@code Last-Modified}, the length of the video and the {@code Cache-Control} max-age.
+ *
+ * They are used to check for an updated video with a conditional request, and to skip the
+ * check entirely while the server says our copy is still fresh. They are kept in the
+ * {@link StateStore}.
+ */
+class ValidatorCache {
+    private final StateStore mStore;
+
+    private String mETag;
+    private String mLastModified;
+    private long mContentLength = -1;
+    private long mMaxAgeMillis;
+    private long mCheckedAtMillis;
+
+    ValidatorCache(StateStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Loads the saved validators, or forgets them if there are none.
+     */
+    synchronized void load() {
+        clear();
+        final StateStore.Validators validators = mStore.getValidators();
+        if (validators == null) {
+            return;
+        }
+        mETag = validators.eTag;
+        mLastModified = validators.lastModified;
+        mContentLength = validators.contentLength;
+        mMaxAgeMillis = validators.maxAgeMillis;
+        mCheckedAtMillis = validators.checkedAtMillis;
+    }
+
+    synchronized void save() {
+        mStore.setValidators(new StateStore.Validators(mETag, mLastModified, mContentLength,
+                mMaxAgeMillis, mCheckedAtMillis));
+    }
+
+    synchronized void clear() {
+        mETag = null;
+        mLastModified = null;
+        mContentLength = -1;
+        mMaxAgeMillis = 0;
+        mCheckedAtMillis = 0;
+    }
+
+    synchronized String getETag() {
+        return mETag;
+    }
+
+    synchronized String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return true if the validators describe {@code video}, as far as its length can tell.
+     */
+    synchronized boolean matches(File video) {
+        if (mETag == null && mLastModified == null) {
+            return false;
+        }
+        return video.exists() && (mContentLength < 0 || video.length() == mContentLength);
+    }
+
+    /**
+     * @return true if the max-age of the last response hasn't run out, so there is no need to
+     *         ask the server again.
+     */
+    synchronized boolean isFresh(long nowMillis) {
+        return nowMillis >= mCheckedAtMillis && nowMillis < mCheckedAtMillis + mMaxAgeMillis;
+    }
+
+    /**
+     * Makes the request conditional on the video having changed since we downloaded it.
+     */
+    synchronized void addConditions(HttpURLConnection conn) {
+        if (mETag != null) {
+            conn.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * Compares a full response with the saved validators, for servers that ignore conditional
+     * requests.
+     */
+    synchronized boolean isModified(HttpURLConnection conn) {
+        final String etag = conn.getHeaderField("ETag");
+        if (mETag != null && etag != null) {
+            return !mETag.equals(etag);
+        }
+        if (mLastModified == null || !mLastModified.equals(conn.getHeaderField("Last-Modified"))) {
+            return true;
+        }
+        return mContentLength >= 0 && mContentLength != getContentLength(conn);
+    }
+
+    /**
+     * Replaces the validators with the ones of a full or partial response for the video.
+     */
+    synchronized void update(HttpURLConnection conn, long nowMillis) {
+        mETag = conn.getHeaderField("ETag");
+        mLastModified = conn.getHeaderField("Last-Modified");
+        mContentLength = getContentLength(conn);
+        mMaxAgeMillis = parseMaxAgeMillis(conn.getHeaderField("Cache-Control"));
+        mCheckedAtMillis = nowMillis;
+    }
+
+    /**
+     * Records that the server confirmed our video is current, with a 304 response for
+     * example, which starts a new freshness period.
+     */
+    synchronized void refresh(HttpURLConnection conn, long nowMillis) {
+        final String etag = conn.getHeaderField("ETag");
+        if (etag != null) {
+            mETag = etag;
+        }
+        mMaxAgeMillis = parseMaxAgeMillis(conn.getHeaderField("Cache-Control"));
+        mCheckedAtMillis = nowMillis;
+    }
+
+    /**
+     * Compares a full response with a copy of the video that wasn't downloaded, so has no
+     * validators, such as the preloaded one, when the server doesn't send a hash of the video.
+     * The modification time of a copy is not always when it was made, so this can take an
+     * identical video for a newer one.
+     *
+     * @return true if the video on the server has the same length as {@code video}, and was
+     *         last modified before it.
+     */
+    static boolean isSameVideo(HttpURLConnection conn, File video) {
+        final long lastModified = conn.getLastModified();
+        return lastModified > 0 && lastModified <= video.lastModified()
+                && getContentLength(conn) == video.length();
+    }
+
+    private static long getContentLength(HttpURLConnection conn) {
+        final String contentRange = conn.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            return HttpDownloader.parseContentRangeTotal(contentRange);
+        }
+        return conn.getContentLengthLong();
+    }
+
+    /**
+     * @return the max-age directive in milliseconds, or 0 if the response may not be reused
+     *         without validation.
+     */
+    @VisibleForTesting
+    static long parseMaxAgeMillis(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        long maxAgeMillis = 0;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    maxAgeMillis = Math.max(0,
+                            Long.parseLong(directive.substring("max-age=".length())) * 1000);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return maxAgeMillis;
+    }
+}
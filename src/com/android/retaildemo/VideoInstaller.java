@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Pattern;
+
+/**
+ * Installs downloaded videos in place of the current one.
+ *
+ * Videos are downloaded into a staging directory next to the installed video, so that they are
+ * on the same file system, then synced to disk and moved over the installed video with a single
+ * atomic rename. There is never a moment where the installed video is missing or incomplete,
+ * and a player that has the old video open keeps playing it until it opens the new one.
+ */
+class VideoInstaller {
+    static final String STAGING_DIR_NAME = "staging";
+
+    private final File mInstalledFile;
+    private final File mStagingDir;
+
+    VideoInstaller(File installedFile) {
+        mInstalledFile = installedFile;
+        mStagingDir = new File(installedFile.getParentFile(), STAGING_DIR_NAME);
+    }
+
+    File getInstalledFile() {
+        return mInstalledFile;
+    }
+
+    /**
+     * @return the file to download the next version of the video to.
+     */
+    File getStagingFile() throws IOException {
+        if (!mStagingDir.isDirectory() && !mStagingDir.mkdirs()) {
+            throw new IOException("Could not create " + mStagingDir);
+        }
+        return new File(mStagingDir, mInstalledFile.getName());
+    }
+
+    /**
+     * Syncs {@code stagedFile} to disk and atomically moves it over the installed video.
+     */
+    void install(File stagedFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(stagedFile.toPath(),
+                StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(stagedFile.toPath(), mInstalledFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(mInstalledFile.getParentFile());
+    }
+
+    /**
+     * Deletes what is left in the staging directory by an earlier run, except for a partial
+     * download that can still be resumed. A staged video that was never installed is deleted
+     * too, since the validators saved for it can't be trusted.
+     *
+     * Also deletes the copies of the video that DownloadManager, used by older versions, left
+     * next to the installed video, named {@code <base>-<n>.<ext>}. Nothing else in that
+     * directory is touched, whatever its name.
+     */
+    void cleanUpStaging() {
+        final String name = mInstalledFile.getName();
+        final String partialName = name + HttpDownloader.PARTIAL_SUFFIX;
+        final String stateName = partialName + HttpDownloader.STATE_SUFFIX;
+        final File[] staged = mStagingDir.listFiles();
+        if (staged != null) {
+            for (File file : staged) {
+                if (!file.getName().equals(partialName) && !file.getName().equals(stateName)) {
+                    file.delete();
+                }
+            }
+        }
+        final Pattern leftover = getLeftoverPattern(name);
+        final File[] files = mInstalledFile.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && leftover.matcher(file.getName()).matches()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the rename itself durable. Best effort, not every file system allows opening a
+     * directory.
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The rename still happened, it just might not survive a power loss.
+        }
+    }
+
+    /**
+     * @return the pattern of the names DownloadManager gives a download of {@code fileName}
+     *         when the name is taken: the base name, a dash and a number, then the extension.
+     */
+    @VisibleForTesting
+    static Pattern getLeftoverPattern(String fileName) {
+        final int pos = fileName.lastIndexOf(".");
+        final String baseName = pos > 0 ? fileName.substring(0, pos) : fileName;
+        final String extension = pos > 0 ? fileName.substring(pos) : "";
+        return Pattern.compile(Pattern.quote(baseName) + "-\\d+" + Pattern.quote(extension));
+    }
+}
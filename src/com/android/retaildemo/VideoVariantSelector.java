@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks which of the published variants of the demo video to download, from what the hardware
+ * decoders of the device support and the resolution of its display: the smallest file that
+ * still covers the display, or if none does, the one that comes closest. Variants that would
+ * have to be decoded in software are never picked.
+ */
+class VideoVariantSelector {
+    private static final String TAG = "VideoVariantSelector";
+
+    /**
+     * One encoding of the demo video, published as {@code "<mime> <width>x<height> <bytes>
+     * <url>"}, for example {@code "video/hevc 1920x1080 12000000 https://example.com/demo.mp4"}.
+     */
+    static final class Variant {
+        final String mime;
+        final int width;
+        final int height;
+        final long sizeBytes;
+        final String url;
+
+        Variant(String mime, int width, int height, long sizeBytes, String url) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.sizeBytes = sizeBytes;
+            this.url = url;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the variant isn't in the published format.
+         */
+        static Variant parse(String value) {
+            final String[] fields = value.trim().split("\\s+");
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Invalid variant " + value);
+            }
+            final String[] size = fields[1].split("x");
+            if (size.length != 2) {
+                throw new IllegalArgumentException("Invalid size in variant " + value);
+            }
+            try {
+                return new Variant(fields[0], Integer.parseInt(size[0]),
+                        Integer.parseInt(size[1]), Long.parseLong(fields[2]), fields[3]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid variant " + value, e);
+            }
+        }
+
+        /**
+         * @return whether the video is at least as large as the display, in either orientation.
+         */
+        boolean covers(int displayWidth, int displayHeight) {
+            return Math.max(width, height) >= Math.max(displayWidth, displayHeight)
+                    && Math.min(width, height) >= Math.min(displayWidth, displayHeight);
+        }
+
+        long getPixels() {
+            return (long) width * height;
+        }
+
+        @Override
+        public String toString() {
+            return "Variant{" + mime + " " + width + "x" + height + ", " + sizeBytes + " bytes, "
+                    + url + "}";
+        }
+    }
+
+    interface DecoderSupport {
+        boolean isSupported(String mime, int width, int height);
+    }
+
+    private VideoVariantSelector() {
+    }
+
+    /**
+     * @return the published variants, without those that aren't in the published format.
+     */
+    static List<Variant> parse(String[] values) {
+        final List<Variant> variants = new ArrayList<>(values.length);
+        for (String value : values) {
+            try {
+                variants.add(Variant.parse(value));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring variant", e);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * @return the variant to download, or null if no decoder supports any of them.
+     */
+    static Variant select(List<Variant> variants, DecoderSupport decoders, int displayWidth,
+            int displayHeight) {
+        Variant best = null;
+        boolean bestCovers = false;
+        for (Variant variant : variants) {
+            if (!decoders.isSupported(variant.mime, variant.width, variant.height)) {
+                continue;
+            }
+            final boolean covers = variant.covers(displayWidth, displayHeight);
+            if (best == null || isBetter(variant, covers, best, bestCovers)) {
+                best = variant;
+                bestCovers = covers;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(Variant variant, boolean covers, Variant best,
+            boolean bestCovers) {
+        if (covers != bestCovers) {
+            return covers;
+        }
+        if (!covers && variant.getPixels() != best.getPixels()) {
+            // Neither covers the display, the closer the better.
+            return variant.getPixels() > best.getPixels();
+        }
+        return variant.sizeBytes < best.sizeBytes;
+    }
+
+    /**
+     * @return the sizes and formats the hardware decoders of the device support.
+     */
+    static DecoderSupport getHardwareDecoders() {
+        final MediaCodecInfo[] codecs =
+                new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        return (mime, width, height) -> {
+            for (MediaCodecInfo codec : codecs) {
+                if (codec.isEncoder() || !codec.isHardwareAccelerated()) {
+                    continue;
+                }
+                for (String type : codec.getSupportedTypes()) {
+                    if (!type.equalsIgnoreCase(mime)) {
+                        continue;
+                    }
+                    final MediaCodecInfo.VideoCapabilities capabilities =
+                            codec.getCapabilitiesForType(type).getVideoCapabilities();
+                    if (capabilities != null && capabilities.isSizeSupported(width, height)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        };
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BackgroundSchedulerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void testExecute_shutsDownWhenIdle() throws Exception {
+        final BackgroundScheduler scheduler = new BackgroundScheduler(1, 1, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        assertFalse(scheduler.isRunning());
+
+        scheduler.execute(BackgroundScheduler.NETWORK, () -> {
+            started.countDown();
+            await(blocked);
+        });
+        scheduler.execute(BackgroundScheduler.NETWORK, done::countDown);
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertTrue(scheduler.isRunning());
+        assertEquals(1, scheduler.getActiveThreads(BackgroundScheduler.NETWORK));
+        assertEquals(1, scheduler.getQueueDepth(BackgroundScheduler.NETWORK));
+        assertEquals(0, scheduler.getActiveThreads(BackgroundScheduler.DISK));
+
+        blocked.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (scheduler.isRunning() && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(scheduler.isRunning());
+        assertEquals(2, scheduler.getCompletedTasks(BackgroundScheduler.NETWORK));
+    }
+
+    @Test
+    public void testExecute_mediaDoesNotWaitForDisk() throws Exception {
+        final BackgroundScheduler scheduler = new BackgroundScheduler(1, 1, 1, 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        scheduler.execute(BackgroundScheduler.DISK, () -> await(blocked));
+        scheduler.execute(BackgroundScheduler.MEDIA, done::countDown);
+
+        try {
+            assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+    @Test
+    public void testSerialExecutor_runsInOrder() throws Exception {
+        final BackgroundScheduler scheduler = new BackgroundScheduler(1, 1, 4, 1);
+        final Executor executor = scheduler.newSerialExecutor(BackgroundScheduler.HASHING);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 10; ++i) {
+            final int task = i;
+            executor.execute(() -> order.add(task));
+        }
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(10, order.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
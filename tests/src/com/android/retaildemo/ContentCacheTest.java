@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ContentCacheTest {
+
+    private static final int CLIP_SIZE = 16;
+
+    private File mDir;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() {
+        mDir = new File(getTargetContext().getCacheDir(), "content");
+        mIndexFile = new File(getTargetContext().getCacheDir(), "content_index");
+        deleteFiles();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() throws Exception {
+        final ContentCache cache = createCache(2 * CLIP_SIZE);
+        put(cache, "a");
+        put(cache, "b");
+        assertNotNull(cache.get("a", "v1"));
+
+        put(cache, "c");
+
+        assertNotNull(cache.get("a", "v1"));
+        assertNull(cache.get("b", "v1"));
+        assertFalse(cache.getFile("b").exists());
+        assertNotNull(cache.get("c", "v1"));
+        assertEquals(2 * CLIP_SIZE, cache.getSize());
+    }
+
+    @Test
+    public void testPut_tooBigForQuota() throws Exception {
+        final ContentCache cache = createCache(CLIP_SIZE - 1);
+
+        writeClip(cache, "a");
+        assertFalse(cache.put("a", "v1"));
+
+        assertFalse(cache.getFile("a").exists());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testGet_otherVersionIsDropped() throws Exception {
+        final ContentCache cache = createCache(Long.MAX_VALUE);
+        put(cache, "a");
+
+        assertNull(cache.get("a", "v2"));
+
+        assertFalse(cache.getFile("a").exists());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testLoad_keepsUsageOrder() throws Exception {
+        ContentCache cache = createCache(2 * CLIP_SIZE);
+        put(cache, "a");
+        put(cache, "b");
+        cache.get("a", "v1");
+        cache.save();
+
+        cache = createCache(2 * CLIP_SIZE);
+        put(cache, "c");
+
+        assertNotNull(cache.get("a", "v1"));
+        assertNull(cache.get("b", "v1"));
+    }
+
+    @Test
+    public void testLoad_unreadableIndexDeletesClips() throws Exception {
+        final File clip = new File(mDir, "a");
+        try (FileOutputStream out = new FileOutputStream(clip)) {
+            out.write(new byte[CLIP_SIZE]);
+        }
+        try (FileOutputStream out = new FileOutputStream(mIndexFile)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+
+        final ContentCache cache = createCache(Long.MAX_VALUE);
+
+        assertFalse(clip.exists());
+        assertNull(cache.get("a", "v1"));
+    }
+
+    @Test
+    public void testSetLowStorage_shrinksQuota() throws Exception {
+        final ContentCache cache = createCache(4 * CLIP_SIZE);
+        for (String id : new String[] {"a", "b", "c", "d"}) {
+            put(cache, id);
+        }
+
+        cache.setLowStorage(true);
+        assertEquals(CLIP_SIZE, cache.getSize());
+        assertNotNull(cache.get("d", "v1"));
+
+        cache.setLowStorage(false);
+        assertEquals(4 * CLIP_SIZE, cache.getMaxBytes());
+    }
+
+    private ContentCache createCache(long quotaBytes) {
+        final ContentCache cache = new ContentCache(mDir, mIndexFile, quotaBytes);
+        cache.load();
+        return cache;
+    }
+
+    private static void put(ContentCache cache, String id) throws Exception {
+        writeClip(cache, id);
+        assertTrue(cache.put(id, "v1"));
+    }
+
+    private static void writeClip(ContentCache cache, String id) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(cache.getFile(id))) {
+            out.write(new byte[CLIP_SIZE]);
+        }
+    }
+
+    private void deleteFiles() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        mIndexFile.delete();
+    }
+}
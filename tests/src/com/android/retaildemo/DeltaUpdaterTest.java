@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DeltaUpdaterTest {
+
+    private static final int MIN_SIZE = 4 * 1024;
+    private static final int AVG_SIZE = 16 * 1024;
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private File mOldFile;
+    private File mNewFile;
+    private byte[] mOldData;
+    private byte[] mNewData;
+    private int mRequestCount;
+
+    @Before
+    public void setUp() throws Exception {
+        final File dir = getTargetContext().getCacheDir();
+        mOldFile = new File(dir, "old.mp4");
+        mNewFile = new File(dir, "new.mp4");
+
+        final Random random = new Random(0);
+        mOldData = new byte[1024 * 1024];
+        random.nextBytes(mOldData);
+        // Re-cut the end of the video.
+        mNewData = mOldData.clone();
+        for (int i = mNewData.length - 100 * 1024; i < mNewData.length; ++i) {
+            mNewData[i] = (byte) random.nextInt();
+        }
+        try (FileOutputStream out = new FileOutputStream(mOldFile)) {
+            out.write(mOldData);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mOldFile.delete();
+        mNewFile.delete();
+    }
+
+    @Test
+    public void testChunker_boundariesFollowContent() throws Exception {
+        final List<Long> boundaries = chunkBoundaries(mOldData);
+        // Insert a few bytes at the start, all boundaries after the first chunk just shift.
+        final byte[] shifted = new byte[mOldData.length + 3];
+        System.arraycopy(mOldData, 0, shifted, 3, mOldData.length);
+        final List<Long> shiftedBoundaries = chunkBoundaries(shifted);
+
+        int matching = 0;
+        for (long boundary : boundaries) {
+            if (shiftedBoundaries.contains(boundary + 3)) {
+                ++matching;
+            }
+        }
+        assertTrue(matching >= boundaries.size() - 2);
+    }
+
+    @Test
+    public void testUpdate_fetchesOnlyChangedChunks() throws Exception {
+        final DeltaUpdater updater = new DeltaUpdater(url -> new FakeConnection(mNewData),
+                "https://example.com/demo.mp4", createManifest(mNewData));
+
+        updater.update(Arrays.asList(mOldFile, new File("/does/not/exist")), mNewFile);
+
+        assertArrayEquals(mNewData, Files.readAllBytes(mNewFile.toPath()));
+        assertEquals(mNewData.length, updater.getBytesReused() + updater.getBytesFetched());
+        assertTrue(updater.getBytesFetched() < mNewData.length / 4);
+        assertEquals(1, mRequestCount);
+    }
+
+    @Test
+    public void testUpdate_corruptChunkFails() throws Exception {
+        final byte[] corrupt = mNewData.clone();
+        corrupt[corrupt.length - 1] ^= 1;
+        final DeltaUpdater updater = new DeltaUpdater(url -> new FakeConnection(corrupt),
+                "https://example.com/demo.mp4", createManifest(mNewData));
+        try {
+            updater.update(Arrays.asList(mOldFile), mNewFile);
+            fail("Expected the corrupt chunk to be rejected");
+        } catch (IOException expected) {
+        }
+        assertFalse(mNewFile.exists());
+    }
+
+    @Test
+    public void testParse_invalidChunkerParametersFail() throws Exception {
+        // Average not a power of two, then minimum above the average.
+        for (String header : new String[] {"4096 10000 65536", "32768 16384 65536"}) {
+            try {
+                ChunkManifest.parse(new ByteArrayInputStream(("chunker "
+                        + ChunkManifest.CHUNKER_ALGORITHM + " " + header + "\n")
+                        .getBytes(StandardCharsets.US_ASCII)));
+                fail("Expected " + header + " to be rejected");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private List<Long> chunkBoundaries(byte[] data) throws IOException {
+        final List<Long> boundaries = new ArrayList<>();
+        new ContentChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE).chunk(new ByteArrayInputStream(data),
+                (offset, length, sha256) -> boundaries.add(offset + length));
+        return boundaries;
+    }
+
+    private ChunkManifest createManifest(byte[] data) throws IOException {
+        final StringBuilder manifest = new StringBuilder("chunker "
+                + ChunkManifest.CHUNKER_ALGORITHM + " " + MIN_SIZE + " " + AVG_SIZE + " "
+                + MAX_SIZE + "\n");
+        new ContentChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE).chunk(new ByteArrayInputStream(data),
+                (offset, length, sha256) -> manifest.append(ChunkManifest.toHex(sha256))
+                        .append(' ').append(length).append('\n'));
+        return ChunkManifest.parse(new ByteArrayInputStream(
+                manifest.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Serves single byte ranges of the given data.
+     */
+    private class FakeConnection extends HttpURLConnection {
+        private final byte[] mData;
+        private long mStart;
+        private long mEnd;
+
+        FakeConnection(byte[] data) {
+            super(null);
+            mData = data;
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            if ("Range".equals(key)) {
+                final String[] range = value.substring("bytes=".length()).split("-");
+                mStart = Long.parseLong(range[0]);
+                mEnd = Long.parseLong(range[1]);
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            ++mRequestCount;
+            return HTTP_PARTIAL;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return "Content-Range".equals(name)
+                    ? "bytes " + mStart + "-" + mEnd + "/" + mData.length : null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(mData, (int) mStart, (int) (mEnd - mStart + 1));
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
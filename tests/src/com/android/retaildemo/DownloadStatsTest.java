@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DownloadStatsTest {
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testThroughput() {
+        final DownloadStats stats = new DownloadStats(0);
+        // 1000 bytes/s for 19 seconds, then 10000 bytes/s for a second.
+        for (int second = 1; second <= 19; ++second) {
+            stats.onBytes(1000, second * SECOND_NANOS);
+        }
+        stats.onBytes(10000, 20 * SECOND_NANOS);
+        stats.finish(20 * SECOND_NANOS);
+
+        assertEquals(29000, stats.getBytes());
+        assertEquals(20000, stats.getDurationMillis(0));
+        assertEquals(1450, stats.getMeanBytesPerSecond(0));
+        assertEquals(1000, stats.getP95BytesPerSecond());
+    }
+
+    @Test
+    public void testGetEtaMillis_followsRecentThroughput() {
+        final DownloadStats stats = new DownloadStats(0);
+        assertEquals(-1, stats.getEtaMillis(1000));
+
+        stats.onBytes(100, SECOND_NANOS / 2);
+        assertEquals(-1, stats.getEtaMillis(1000));
+        stats.onBytes(100, SECOND_NANOS);
+        assertEquals(200, stats.getRecentBytesPerSecond());
+        assertEquals(5000, stats.getEtaMillis(1000));
+
+        for (int second = 2; second <= 20; ++second) {
+            stats.onBytes(1000, second * SECOND_NANOS);
+        }
+        assertEquals(1000, stats.getEtaMillis(1000), 10);
+    }
+
+    @Test
+    public void testOnRetry() {
+        final DownloadStats stats = new DownloadStats(0);
+        stats.onRetry();
+        stats.onRetry();
+
+        assertEquals(2, stats.getRetries());
+        assertEquals(-1, stats.getP95BytesPerSecond());
+    }
+}
@@ -16,25 +16,19 @@
 
 package com.android.retaildemo;
 
-import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.Cursor;
-import android.database.MatrixCursor;
+import android.database.ContentObserver;
+import android.media.MediaDataSource;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
-import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
-import com.android.retaildemo.DemoPlayer;
 import com.android.retaildemo.DownloadVideoTask;
 import com.android.retaildemo.DownloadVideoTask.ResultListener;
 
@@ -43,23 +37,34 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executor;
 
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
 import static android.support.test.InstrumentationRegistry.getTargetContext;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyLong;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
-import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 @RunWith(AndroidJUnit4.class)
@@ -67,14 +72,14 @@ import static org.mockito.Mockito.when;
 public class DownloadVideoTaskTest {
 
     private static final String TEST_URL = "https://example.com/demo.mp4";
-    private static final long TEST_DOWNLOAD_ID = 1000;
+    private static final byte[] TEST_VIDEO = new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
 
     private @Mock Context mContext;
-    private @Mock DownloadManager mDownloadManager;
     private @Mock ResultListener mResultListener;
     private @Mock ConnectivityManager mConnectivityManager;
     private @Mock ProgressDialog mProgressDialog;
     private @Mock HttpURLConnection mConnection;
+    private @Mock HttpURLConnection mManifestConnection;
 
     private String mDownloadPath;
     private File mPreloadedVideo;
@@ -87,19 +92,25 @@ public class DownloadVideoTaskTest {
                 R.string.retail_demo_video_file_name);
         mDownloadPath = getTargetContext().getObbDir().getPath() + File.separator
                 + videoFileName;
-        clearIfFileExists(mDownloadPath);
+        clearDownloadDir();
         mPreloadedVideo = new File(Environment.getDataPreloadsDemoDirectory(), videoFileName);
         setNetworkConnected(true);
     }
 
     @After
     public void tearDown() throws Exception {
-        clearIfFileExists(mDownloadPath);
+        clearDownloadDir();
     }
 
-    private void clearIfFileExists(String path) {
-        final File file = new File(path);
-        if (file.exists()) {
+    private void clearDownloadDir() {
+        deleteContents(new File(mDownloadPath).getParentFile());
+    }
+
+    private static void deleteContents(File dir) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
             file.delete();
         }
     }
@@ -108,31 +119,39 @@ public class DownloadVideoTaskTest {
     public void testDownloadVideo() throws Exception {
         final DownloadVideoTask task = new DownloadVideoTask(mContext,
                 mDownloadPath, mPreloadedVideo, mResultListener, new TestInjector(mContext));
-        when(mDownloadManager.enqueue(any(DownloadManager.Request.class)))
-                .thenReturn(TEST_DOWNLOAD_ID);
+        setResponse(HttpURLConnection.HTTP_OK);
 
         task.run();
-
-        final ArgumentCaptor<BroadcastReceiver> downloadReceiver =
-                verifyIfDownloadCompleteReceiverRegistered();
+        getInstrumentation().waitForIdleSync();
 
         verify(mProgressDialog, times(1)).show();
 
-        final Cursor cursor = createCursor(DownloadManager.STATUS_SUCCESSFUL, mDownloadPath);
-        when(mDownloadManager.query(any(DownloadManager.Query.class))).thenReturn(cursor);
-
-        final Intent downloadCompleteIntent = new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
-                .putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, TEST_DOWNLOAD_ID);
-        downloadReceiver.getValue().onReceive(mContext, downloadCompleteIntent);
-
-        verify(mContext).unregisterReceiver(downloadReceiver.getValue());
-
         verify(mResultListener, times(1)).onFileDownloaded(mDownloadPath);
         verifyNoMoreInteractions(mResultListener);
+        assertEquals(TEST_VIDEO.length, new File(mDownloadPath).length());
 
         verify(mProgressDialog, times(1)).dismiss();
     }
 
+    @Test
+    public void testDownloadVideo_showsProgressAndRecordsStats() throws Exception {
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+        setResponse(HttpURLConnection.HTTP_OK);
+
+        task.run();
+        getInstrumentation().waitForIdleSync();
+
+        verify(mProgressDialog).setProgress(100);
+        final List<DownloadStatsLog.Record> records =
+                injector.getDownloadStatsLog().getRecords();
+        assertEquals(1, records.size());
+        assertEquals(TEST_URL, records.get(0).name);
+        assertTrue(records.get(0).success);
+        assertEquals(TEST_VIDEO.length, records.get(0).bytes);
+    }
+
     @Test
     public void testDownloadVideo_noNetwork() throws Exception {
         setNetworkConnected(false);
@@ -142,36 +161,25 @@ public class DownloadVideoTaskTest {
         task.run();
 
         verify(mResultListener, times(1)).onError();
-        // Verify that broadcast receivers are registered for ACTION_DOWNLOAD_COMPLETE and
+        // Verify that a broadcast receiver is registered for
         // ConnectivityManager.CONNECTIVITY_ACTION.
         final ArgumentCaptor<BroadcastReceiver> broadcastReceiver =
                 ArgumentCaptor.forClass(BroadcastReceiver.class);
         final ArgumentCaptor<IntentFilter> intentFilter =
                 ArgumentCaptor.forClass(IntentFilter.class);
-        verify(mContext, times(2)).registerReceiver(
+        verify(mContext).registerReceiver(
                 broadcastReceiver.capture(), intentFilter.capture());
-        final BroadcastReceiver downloadReceiver = broadcastReceiver.getAllValues().get(0);
-        assertEquals(intentFilter.getAllValues().get(0).getAction(0),
-                DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        assertEquals(intentFilter.getAllValues().get(1).getAction(0),
+        assertEquals(intentFilter.getValue().getAction(0),
                 ConnectivityManager.CONNECTIVITY_ACTION);
-        final BroadcastReceiver networkReceiver = broadcastReceiver.getAllValues().get(1);
+        final BroadcastReceiver networkReceiver = broadcastReceiver.getValue();
 
-        when(mDownloadManager.enqueue(any(DownloadManager.Request.class)))
-                .thenReturn(TEST_DOWNLOAD_ID);
+        setResponse(HttpURLConnection.HTTP_OK);
         setNetworkConnected(true);
 
         networkReceiver.onReceive(mContext,
                 new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        getInstrumentation().waitForIdleSync();
 
-        final Cursor cursor = createCursor(DownloadManager.STATUS_SUCCESSFUL, mDownloadPath);
-        when(mDownloadManager.query(any(DownloadManager.Query.class))).thenReturn(cursor);
-
-        final Intent downloadCompleteIntent = new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
-                .putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, TEST_DOWNLOAD_ID);
-        downloadReceiver.onReceive(mContext, downloadCompleteIntent);
-
-        verify(mContext).unregisterReceiver(downloadReceiver);
         verify(mContext).unregisterReceiver(networkReceiver);
 
         verify(mResultListener).onFileDownloaded(mDownloadPath);
@@ -184,31 +192,50 @@ public class DownloadVideoTaskTest {
     public void testDownloadVideo_downloadFailed() throws Exception {
         final DownloadVideoTask task = new DownloadVideoTask(mContext,
                 mDownloadPath, mPreloadedVideo, mResultListener, new TestInjector(mContext));
-        when(mDownloadManager.enqueue(any(DownloadManager.Request.class)))
-                .thenReturn(TEST_DOWNLOAD_ID);
+        when(mConnection.getResponseCode())
+                .thenReturn(HttpURLConnection.HTTP_INTERNAL_ERROR);
 
         task.run();
-
-        final ArgumentCaptor<BroadcastReceiver> downloadReceiver =
-                verifyIfDownloadCompleteReceiverRegistered();
+        getInstrumentation().waitForIdleSync();
 
         verify(mProgressDialog, times(1)).show();
 
-        final Cursor cursor = createCursor(DownloadManager.STATUS_FAILED, mDownloadPath);
-        when(mDownloadManager.query(any(DownloadManager.Query.class))).thenReturn(cursor);
-
-        final Intent downloadCompleteIntent = new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
-                .putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, TEST_DOWNLOAD_ID);
-        downloadReceiver.getValue().onReceive(mContext, downloadCompleteIntent);
-
-        verify(mContext).unregisterReceiver(downloadReceiver.getValue());
-
         verify(mResultListener, times(1)).onError();
         verifyNoMoreInteractions(mResultListener);
+        assertFalse(new File(mDownloadPath).exists());
 
         verify(mProgressDialog, times(1)).dismiss();
     }
 
+    @Test
+    public void testDownloadVideo_resumesPartialDownload() throws Exception {
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+
+        // The connection drops after the first half of the video.
+        setResponse(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getInputStream()).thenReturn(
+                new ByteArrayInputStream(TEST_VIDEO, 0, TEST_VIDEO.length / 2));
+        task.handleMessage(DownloadVideoTask.MSG_DOWNLOAD_VIDEO);
+        verify(mResultListener).onError();
+
+        final int remaining = TEST_VIDEO.length - TEST_VIDEO.length / 2;
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+        when(mConnection.getHeaderField("Content-Range")).thenReturn("bytes "
+                + TEST_VIDEO.length / 2 + "-" + (TEST_VIDEO.length - 1) + "/" + TEST_VIDEO.length);
+        when(mConnection.getInputStream()).thenReturn(
+                new ByteArrayInputStream(TEST_VIDEO, TEST_VIDEO.length / 2, remaining));
+        task.handleMessage(DownloadVideoTask.MSG_DOWNLOAD_VIDEO);
+
+        verify(mConnection).setRequestProperty("Range",
+                "bytes=" + TEST_VIDEO.length / 2 + "-" + (TEST_VIDEO.length - 1));
+        verify(mConnection).setRequestProperty("If-Range", "\"v1\"");
+        verify(mResultListener).onFileDownloaded(mDownloadPath);
+        assertEquals(TEST_VIDEO.length, new File(mDownloadPath).length());
+    }
+
     @Test
     public void testDownloadUpdatedVideo() throws Exception {
         new File(mDownloadPath).createNewFile();
@@ -216,53 +243,256 @@ public class DownloadVideoTaskTest {
         final TestInjector injector = new TestInjector(mContext);
         final DownloadVideoTask task = new DownloadVideoTask(mContext,
                 mDownloadPath, mPreloadedVideo, mResultListener, injector);
-        final Handler handler = injector.getHandler(task);
 
-        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
-        handler.handleMessage(handler.obtainMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE));
+        setResponse(HttpURLConnection.HTTP_OK);
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
 
-        verify(mConnection).setIfModifiedSince(anyLong());
-        verify(mDownloadManager).enqueue(any(DownloadManager.Request.class));
+        verify(mConnection).setRequestMethod("HEAD");
+        // Nothing known about the video yet, so the check can't be conditional.
+        verify(mConnection, never()).setRequestProperty(eq("If-None-Match"), anyString());
+        // Installed in place of the old video, and only then announced.
+        verify(mResultListener, times(1)).onFileDownloaded(mDownloadPath);
+        assertEquals(TEST_VIDEO.length, new File(mDownloadPath).length());
+        assertEquals(0, getStagingDir().list().length);
+    }
+
+    @Test
+    public void testDownloadUpdatedVideo_cancelledDuringDeltaUpdate() throws Exception {
+        new File(mDownloadPath).createNewFile();
+
+        final TestInjector injector = new TestInjector(mContext);
+        injector.mChunkManifestUrl = TEST_URL + ".chunks";
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+        final String manifest = "chunker " + ChunkManifest.CHUNKER_ALGORITHM
+                + " 4096 16384 65536\n"
+                + ChunkManifest.toHex(ContentChunker.newSha256().digest(TEST_VIDEO)) + " "
+                + TEST_VIDEO.length + "\n";
+        when(mManifestConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mManifestConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(manifest.getBytes()));
+        // The check, then the range request for the only chunk.
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK,
+                HttpURLConnection.HTTP_PARTIAL);
+        when(mConnection.getHeaderField("Content-Range"))
+                .thenReturn("bytes 0-" + (TEST_VIDEO.length - 1) + "/" + TEST_VIDEO.length);
+        when(mConnection.getInputStream()).thenAnswer(invocation -> {
+            // The job is stopped while the chunk is being fetched.
+            task.cancel();
+            return new ByteArrayInputStream(TEST_VIDEO);
+        });
+
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
+
+        verify(mResultListener, never()).onFileDownloaded(anyString());
+        assertEquals(0, new File(mDownloadPath).length());
+    }
+
+    @Test
+    public void testCleanupStagingDir() throws Exception {
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+        final File stagingDir = getStagingDir();
+        stagingDir.mkdirs();
+        final String name = new File(mDownloadPath).getName();
+        final File stagedVideo = new File(stagingDir, name);
+        final File partialVideo = new File(stagingDir, name + HttpDownloader.PARTIAL_SUFFIX);
+        final File legacyUpdate = new File(new File(mDownloadPath).getParentFile(),
+                name.substring(0, name.lastIndexOf('.')) + "-update.mp4");
+        stagedVideo.createNewFile();
+        partialVideo.createNewFile();
+        legacyUpdate.createNewFile();
+
+        task.handleMessage(DownloadVideoTask.MSG_CLEANUP_STAGING_DIR);
+
+        assertFalse(stagedVideo.exists());
+        assertFalse(legacyUpdate.exists());
+        // Still resumable.
+        assertTrue(partialVideo.exists());
     }
 
     @Test
     public void testDownloadUpdatedVideo_notModified() throws Exception {
         new File(mDownloadPath).createNewFile();
+        saveValidators("\"v1\"", 0);
 
         final TestInjector injector = new TestInjector(mContext);
         final DownloadVideoTask task = new DownloadVideoTask(mContext,
                 mDownloadPath, mPreloadedVideo, mResultListener, injector);
-        final Handler handler = injector.getHandler(task);
 
         when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_MODIFIED);
-        handler.handleMessage(handler.obtainMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE));
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
 
-        verify(mConnection).setIfModifiedSince(anyLong());
-        verifyZeroInteractions(mDownloadManager);
+        verify(mConnection).setRequestMethod("HEAD");
+        verify(mConnection).setRequestProperty("If-None-Match", "\"v1\"");
+        verify(mConnection, never()).getInputStream();
+        verify(mResultListener, never()).onFileDownloaded(anyString());
     }
 
-    private ArgumentCaptor<BroadcastReceiver> verifyIfDownloadCompleteReceiverRegistered() {
-        final ArgumentCaptor<BroadcastReceiver> broadcastReceiver =
-                ArgumentCaptor.forClass(BroadcastReceiver.class);
-        final ArgumentCaptor<IntentFilter> intentFilter =
-                ArgumentCaptor.forClass(IntentFilter.class);
-        verify(mContext).registerReceiver(
-                broadcastReceiver.capture(), intentFilter.capture());
-        assertEquals(intentFilter.getValue().getAction(0),
-                DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        return broadcastReceiver;
+    @Test
+    public void testDownloadUpdatedVideo_sameContentSkipsDownload() throws Exception {
+        new File(mDownloadPath).createNewFile();
+        final byte[] sha256 = new byte[32];
+        final TestInjector injector = new TestInjector(mContext);
+        injector.getStateStore().setContentHash(new File(mDownloadPath).getName(),
+                ChunkManifest.toHex(sha256));
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+
+        setResponse(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v2\"");
+        when(mConnection.getHeaderField("Digest"))
+                .thenReturn("SHA-256=" + Base64.getEncoder().encodeToString(sha256));
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
+
+        verify(mConnection, never()).getInputStream();
+        verify(mResultListener, never()).onFileDownloaded(anyString());
+        // Checked against the new validators from now on.
+        assertEquals("\"v2\"", injector.getStateStore().getValidators().eTag);
     }
 
-    private Cursor createCursor(int status, String filePath) {
-        final MatrixCursor cursor = new MatrixCursor(new String[] {
-                DownloadManager.COLUMN_STATUS,
-                DownloadManager.COLUMN_LOCAL_URI
-        });
-        cursor.addRow(new Object[] {
-                status,
-                Uri.fromFile(new File(filePath))
-        });
-        return cursor;
+    @Test
+    public void testDownloadUpdatedVideo_preloadedVideoUpToDate() throws Exception {
+        // Cleaned up with the download dir.
+        final File preloadedVideo = new File(new File(mDownloadPath).getParentFile(),
+                "preloaded.mp4");
+        Files.write(preloadedVideo.toPath(), TEST_VIDEO);
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, preloadedVideo, mResultListener, injector);
+
+        setResponse(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getLastModified()).thenReturn(preloadedVideo.lastModified() - 1000);
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
+
+        verify(mConnection, never()).getInputStream();
+        verify(mResultListener, never()).onFileDownloaded(anyString());
+        // Checked against these validators from now on.
+        final ValidatorCache validators = injector.getValidatorCache();
+        validators.load();
+        assertEquals("\"v1\"", validators.getETag());
+        assertTrue(validators.matches(preloadedVideo));
+    }
+
+    @Test
+    public void testDownloadUpdatedVideo_preloadedVideoSameDigest() throws Exception {
+        final File preloadedVideo = new File(new File(mDownloadPath).getParentFile(),
+                "preloaded.mp4");
+        Files.write(preloadedVideo.toPath(), TEST_VIDEO);
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, preloadedVideo, mResultListener, injector);
+
+        setResponse(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        // Uploaded after the preloaded video was built, but the same video.
+        when(mConnection.getLastModified()).thenReturn(preloadedVideo.lastModified() + 1000);
+        when(mConnection.getHeaderField("Digest")).thenReturn("SHA-256=" + Base64.getEncoder()
+                .encodeToString(ContentChunker.newSha256().digest(TEST_VIDEO)));
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
+
+        verify(mConnection, never()).getInputStream();
+        verify(mResultListener, never()).onFileDownloaded(anyString());
+        final ValidatorCache validators = injector.getValidatorCache();
+        validators.load();
+        assertTrue(validators.matches(preloadedVideo));
+    }
+
+    @Test
+    public void testDownloadUpdatedVideo_freshSkipsCheck() throws Exception {
+        new File(mDownloadPath).createNewFile();
+        saveValidators("\"v1\"", 60 * 60 * 1000);
+
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+
+        task.handleMessage(DownloadVideoTask.MSG_CHECK_FOR_UPDATE);
+
+        verify(mConnection, never()).getResponseCode();
+        verify(mResultListener, never()).onFileDownloaded(anyString());
+    }
+
+    @Test
+    public void testDownloadVideo_savesValidators() throws Exception {
+        final TestInjector injector = new TestInjector(mContext);
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+
+        setResponse(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        task.handleMessage(DownloadVideoTask.MSG_DOWNLOAD_VIDEO);
+
+        final ValidatorCache validators = injector.getValidatorCache();
+        validators.load();
+        assertEquals("\"v1\"", validators.getETag());
+        assertTrue(validators.matches(new File(mDownloadPath)));
+    }
+
+    @Test
+    public void testDownloadVideo_playsWhileDownloading() throws Exception {
+        final TestInjector injector = new TestInjector(mContext);
+        injector.mProgressivePlayback = true;
+        final DownloadVideoTask task = new DownloadVideoTask(mContext,
+                mDownloadPath, mPreloadedVideo, mResultListener, injector);
+        final byte[] video = createVideo();
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getContentLengthLong()).thenReturn((long) video.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(video));
+
+        task.run();
+        getInstrumentation().waitForIdleSync();
+
+        final ArgumentCaptor<MediaDataSource> dataSource =
+                ArgumentCaptor.forClass(MediaDataSource.class);
+        final InOrder inOrder = inOrder(mResultListener);
+        inOrder.verify(mResultListener).onStreamingAvailable(dataSource.capture());
+        inOrder.verify(mResultListener).onFileDownloaded(mDownloadPath);
+        verify(mProgressDialog).dismiss();
+
+        final byte[] played = new byte[video.length];
+        assertEquals(video.length, dataSource.getValue().readAt(0, played, 0, played.length));
+        assertArrayEquals(video, played);
+        assertEquals(-1, dataSource.getValue().readAt(video.length, played, 0, 1));
+    }
+
+    /**
+     * @return a minimal MP4 layout: ftyp, moov and mdat boxes, with no tracks in the moov box.
+     */
+    private static byte[] createVideo() {
+        final ByteBuffer video = ByteBuffer.allocate(16 + 16 + 1024);
+        video.putInt(16).put("ftyp".getBytes()).put("isom".getBytes()).putInt(0);
+        video.putInt(16).put("moov".getBytes()).putInt(8).put("free".getBytes());
+        video.putInt(1024).put("mdat".getBytes());
+        return video.array();
+    }
+
+    /**
+     * Saves validators for an empty video, as if the server had sent them with
+     * {@code Cache-Control: max-age} of {@code maxAgeMillis}.
+     */
+    private void saveValidators(String etag, long maxAgeMillis) throws Exception {
+        final HttpURLConnection response = Mockito.mock(HttpURLConnection.class);
+        when(response.getHeaderField("ETag")).thenReturn(etag);
+        when(response.getHeaderField("Cache-Control"))
+                .thenReturn("max-age=" + maxAgeMillis / 1000);
+        when(response.getContentLengthLong()).thenReturn(0L);
+        final ValidatorCache validators = new TestInjector(mContext).getValidatorCache();
+        validators.update(response, System.currentTimeMillis());
+        validators.save();
+    }
+
+    private File getStagingDir() {
+        return new File(new File(mDownloadPath).getParentFile(),
+                VideoInstaller.STAGING_DIR_NAME);
+    }
+
+    private void setResponse(int responseCode) throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(responseCode);
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_VIDEO.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_VIDEO));
     }
 
     private void setNetworkConnected(boolean connected) {
@@ -272,15 +502,14 @@ public class DownloadVideoTaskTest {
     }
 
     private class TestInjector extends DownloadVideoTask.Injector {
+        boolean mProgressivePlayback;
+        String mChunkManifestUrl = "";
+        private StateStore mStateStore;
+
         TestInjector(Context context) {
             super(context);
         }
 
-        @Override
-        DownloadManager getDownloadManager() {
-            return mDownloadManager;
-        }
-
         @Override
         String getDownloadUrl() {
             return TEST_URL;
@@ -292,8 +521,18 @@ public class DownloadVideoTaskTest {
         }
 
         @Override
-        Handler getHandler(DownloadVideoTask task) {
-            return task.new ThreadHandler(Looper.getMainLooper());
+        Executor getExecutor(File downloadFile) {
+            return Runnable::run;
+        }
+
+        @Override
+        Executor getDiskExecutor() {
+            return Runnable::run;
+        }
+
+        @Override
+        Executor getHashingExecutor() {
+            return Runnable::run;
         }
 
         @Override
@@ -303,7 +542,72 @@ public class DownloadVideoTaskTest {
 
         @Override
         HttpURLConnection openConnection(String downloadUri) {
-            return mConnection;
+            return downloadUri.equals(mChunkManifestUrl) ? mManifestConnection : mConnection;
+        }
+
+        @Override
+        String getChunkManifestUrl() {
+            return mChunkManifestUrl;
+        }
+
+        @Override
+        void scheduleUpdateCheck() {
+        }
+
+        @Override
+        Executor getMainExecutor() {
+            return Runnable::run;
+        }
+
+        @Override
+        String getProgressMessage(long downloadedBytes, long totalBytes, long bytesPerSecond,
+                long etaMillis) {
+            return "";
+        }
+
+        @Override
+        synchronized StateStore getStateStore() {
+            // Loaded from the file again by every injector.
+            if (mStateStore == null) {
+                mStateStore = new StateStore(new File(new File(mDownloadPath).getParentFile(),
+                        StateStore.FILE_NAME), Runnable::run);
+            }
+            return mStateStore;
+        }
+
+        @Override
+        MirrorSelector getMirrorSelector() {
+            return null;
+        }
+
+        @Override
+        TokenBucket getUpdateThrottle() {
+            return new TokenBucket(0, 0);
+        }
+
+        @Override
+        void registerBandwidthLimitObserver(ContentObserver observer) {
+        }
+
+        @Override
+        void unregisterBandwidthLimitObserver(ContentObserver observer) {
+        }
+
+        @Override
+        boolean isProgressivePlaybackEnabled() {
+            return mProgressivePlayback;
+        }
+
+        @Override
+        int getDownloadSegmentCount() {
+            return 1;
+        }
+
+        @Override
+        HttpDownloader getDownloader(String downloadUri, File destination) {
+            final HttpDownloader downloader = super.getDownloader(downloadUri, destination);
+            downloader.setMaxAttempts(1);
+            return downloader;
         }
     }
 }
\ No newline at end of file
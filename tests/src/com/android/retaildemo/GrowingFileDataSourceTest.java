@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+/**
+ * Plays a download fed through a pipe, so that the test decides when every byte arrives.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class GrowingFileDataSourceTest {
+
+    private static final String TEST_URL = "https://example.com/demo.mp4";
+    private static final long TIMEOUT_MS = 5000;
+    // Long enough for a read that should block to have returned if it didn't.
+    private static final long BLOCKED_MS = 200;
+    // More than the data source wants before playing.
+    private static final int MDAT_SIZE = 5 * 1024 * 1024;
+
+    private @Mock HttpURLConnection mConnection;
+
+    private File mDestination;
+    private File mInstalledFile;
+    private PipedOutputStream mServer;
+    private HttpDownloader mDownloader;
+    private GrowingFileDataSource mDataSource;
+    private Thread mDownloadThread;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mDestination = new File(getTargetContext().getCacheDir(), "growing.mp4");
+        mInstalledFile = new File(getTargetContext().getCacheDir(), "installed.mp4");
+        deleteFiles();
+        mServer = new PipedOutputStream();
+        when(mConnection.getInputStream())
+                .thenReturn(new PipedInputStream(mServer, 64 * 1024));
+        mDownloader = new HttpDownloader(url -> mConnection, TEST_URL, mDestination);
+        mDownloader.setMaxAttempts(1);
+        mDataSource = new GrowingFileDataSource(mDownloader, mInstalledFile);
+        mDownloader.setProgressListener(
+                (downloadedBytes, totalBytes) -> mDataSource.onProgress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Ends the download if it is still running.
+        mServer.close();
+        if (mDownloadThread != null) {
+            mDownloadThread.join(TIMEOUT_MS);
+        }
+        mDataSource.close();
+        deleteFiles();
+    }
+
+    @Test
+    public void testReadAt_blocksUntilProgress() throws Exception {
+        final byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        startDownload(data.length);
+        final FutureTask<byte[]> read = startRead(() -> {
+            final byte[] buffer = new byte[4];
+            assertEquals(4, mDataSource.readAt(0, buffer, 0, buffer.length));
+            return buffer;
+        });
+
+        assertBlocked(read);
+        mServer.write(data, 0, 4);
+        mServer.flush();
+
+        assertArrayEquals(Arrays.copyOf(data, 4), read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testReadAt_returnsEndOfStreamOnceClosed() throws Exception {
+        startDownload(8);
+        final FutureTask<Integer> read =
+                startRead(() -> mDataSource.readAt(0, new byte[4], 0, 4));
+
+        assertBlocked(read);
+        mDataSource.close();
+
+        assertEquals(-1, (int) read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testReadAt_throwsDownloadError() throws Exception {
+        final FutureTask<Integer> read =
+                startRead(() -> mDataSource.readAt(0, new byte[4], 0, 4));
+        assertBlocked(read);
+
+        final IOException error = new IOException("Connection reset");
+        mDataSource.onDownloadFailed(error);
+
+        try {
+            read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Expected the read to fail");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void testIsReadyToPlay_moovBeforeMdat() throws Exception {
+        final byte[] video = createVideo(true);
+        startDownload(video.length);
+
+        // The moov box and the first megabytes of media data.
+        write(video, 4 * 1024 * 1024 + 1024);
+
+        assertTrue(mDataSource.isReadyToPlay());
+    }
+
+    @Test
+    public void testIsReadyToPlay_moovAfterMdat() throws Exception {
+        final byte[] video = createVideo(false);
+        startDownload(video.length);
+
+        // All of the media data, but not the moov box.
+        write(video, video.length - 16);
+        assertFalse(mDataSource.isReadyToPlay());
+
+        write(video, video.length);
+        assertTrue(mDataSource.isReadyToPlay());
+    }
+
+    private void startDownload(int length) throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getContentLengthLong()).thenReturn((long) length);
+        mDownloadThread = new Thread(() -> {
+            try {
+                mDownloader.download();
+                mDataSource.onDownloadFinished();
+            } catch (IOException e) {
+                mDataSource.onDownloadFailed(e);
+            }
+        });
+        mDownloadThread.start();
+    }
+
+    private static <T> FutureTask<T> startRead(Callable<T> read) {
+        final FutureTask<T> task = new FutureTask<>(read);
+        new Thread(task).start();
+        return task;
+    }
+
+    private static void assertBlocked(FutureTask<?> read) throws Exception {
+        try {
+            read.get(BLOCKED_MS, TimeUnit.MILLISECONDS);
+            fail("Expected the read to block");
+        } catch (TimeoutException expected) {
+        }
+    }
+
+    /**
+     * Sends the video up to {@code end}, and waits for it to be written.
+     */
+    private void write(byte[] video, int end) throws Exception {
+        final int start = (int) mDownloader.getAvailableBytes(0);
+        mServer.write(video, start, end - start);
+        mServer.flush();
+        final long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (mDownloader.getAvailableBytes(0) < end) {
+            assertTrue("Timed out waiting for the download",
+                    SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return a minimal MP4 layout: ftyp, mdat and moov boxes, with the moov box first or last.
+     */
+    private static byte[] createVideo(boolean moovFirst) {
+        final ByteBuffer video = ByteBuffer.allocate(16 + 16 + MDAT_SIZE);
+        video.putInt(16).put("ftyp".getBytes()).put("isom".getBytes()).putInt(0);
+        if (moovFirst) {
+            putMoov(video);
+        }
+        video.putInt(MDAT_SIZE).put("mdat".getBytes());
+        video.position(video.position() + MDAT_SIZE - 8);
+        if (!moovFirst) {
+            putMoov(video);
+        }
+        return video.array();
+    }
+
+    private static void putMoov(ByteBuffer video) {
+        video.putInt(16).put("moov".getBytes()).putInt(8).put("free".getBytes());
+    }
+
+    private void deleteFiles() {
+        mDestination.delete();
+        new File(mDestination.getPath() + HttpDownloader.PARTIAL_SUFFIX).delete();
+        new File(mDestination.getPath() + HttpDownloader.PARTIAL_SUFFIX
+                + HttpDownloader.STATE_SUFFIX).delete();
+        mInstalledFile.delete();
+    }
+}
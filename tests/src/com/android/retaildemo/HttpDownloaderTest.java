@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class HttpDownloaderTest {
+
+    private static final String TEST_URL = "https://example.com/demo.mp4";
+    private static final String MIRROR_URL = "https://mirror.example.com/demo.mp4";
+    private static final byte[] TEST_DATA = new byte[] { 10, 11, 12, 13, 14, 15, 16, 17 };
+
+    private @Mock HttpURLConnection mConnection;
+    private @Mock HttpURLConnection mMirrorConnection;
+
+    private File mDestination;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mDestination = new File(getTargetContext().getCacheDir(), "demo.mp4");
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+
+        final HttpDownloader downloader = createDownloader();
+        downloader.download();
+
+        verify(mConnection, never()).setRequestProperty(eq("Range"), anyString());
+        assertEquals(TEST_DATA.length, mDestination.length());
+        assertFalse(downloader.getPartialFile().exists());
+        assertEquals(TEST_DATA.length, downloader.getStats().getBytes());
+        assertEquals(0, downloader.getStats().getRetries());
+    }
+
+    @Test
+    public void testDownload_partialWithoutStateIsDiscarded() throws Exception {
+        final HttpDownloader downloader = createDownloader();
+        writePartial(downloader, 3);
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+
+        downloader.download();
+
+        verify(mConnection, never()).setRequestProperty(eq("Range"), anyString());
+        assertEquals(TEST_DATA.length, mDestination.length());
+    }
+
+    @Test
+    public void testDownload_changedOnServerRestartsFromZero() throws Exception {
+        final HttpDownloader downloader = createDownloader();
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA, 0, 3));
+        try {
+            downloader.download();
+            fail("Expected the truncated download to fail");
+        } catch (IOException expected) {
+        }
+        assertTrue(downloader.getPartialFile().exists());
+
+        // If-Range didn't match, so the server sends the full new file.
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v2\"");
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+        createDownloader().download();
+
+        verify(mConnection).setRequestProperty("If-Range", "\"v1\"");
+        assertEquals(TEST_DATA.length, mDestination.length());
+    }
+
+    @Test
+    public void testDownload_shorterFileOnServerLeavesNoTail() throws Exception {
+        final HttpDownloader downloader = createDownloader();
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA, 0, 6));
+        try {
+            downloader.download();
+            fail("Expected the truncated download to fail");
+        } catch (IOException expected) {
+        }
+
+        // A shorter file was swapped in meanwhile, and If-Range gave it whole.
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v2\"");
+        when(mConnection.getContentLengthLong()).thenReturn(4L);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA, 4, 4));
+        createDownloader().download();
+
+        assertEquals(4, mDestination.length());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(TEST_DATA, 4, 8),
+                Files.readAllBytes(mDestination.toPath())));
+    }
+
+    @Test
+    public void testDownload_noRangeSupportFallsBackToSingleStream() throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+
+        final HttpDownloader downloader = createDownloader();
+        downloader.setSegmentCount(4);
+        downloader.download();
+
+        verify(mConnection).setRequestProperty("Range", "bytes=0-");
+        verify(mConnection, times(1)).getInputStream();
+        assertEquals(TEST_DATA.length, mDestination.length());
+    }
+
+    @Test
+    public void testDownload_verifiesServerDigest() throws Exception {
+        final byte[] sha256 = ContentChunker.newSha256().digest(TEST_DATA);
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("Digest"))
+                .thenReturn("SHA-256=" + Base64.getEncoder().encodeToString(sha256));
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+
+        final HttpDownloader downloader = createDownloader();
+        downloader.download();
+
+        assertEquals(ChunkManifest.toHex(sha256), downloader.getSha256());
+        assertEquals(TEST_DATA.length, mDestination.length());
+    }
+
+    @Test
+    public void testDownload_digestMismatchIsDiscarded() throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+
+        final HttpDownloader downloader = createDownloader();
+        downloader.setExpectedSha256(ChunkManifest.toHex(new byte[32]));
+        try {
+            downloader.download();
+            fail("Expected the download not to match its hash");
+        } catch (IOException expected) {
+        }
+
+        assertFalse(mDestination.exists());
+        assertFalse(downloader.getPartialFile().exists());
+    }
+
+    @Test
+    public void testDownload_failsOverToMirror() throws Exception {
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        when(mMirrorConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mMirrorConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mMirrorConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA));
+        final MirrorSelector mirrors = createMirrorSelector();
+
+        final HttpDownloader downloader = createMirroredDownloader(mirrors);
+        downloader.download();
+
+        assertEquals(TEST_DATA.length, mDestination.length());
+        assertEquals(MIRROR_URL, mirrors.getRankedUrls().get(0));
+        assertEquals(1, downloader.getStats().getRetries());
+    }
+
+    @Test
+    public void testDownload_resumesFromMirror() throws Exception {
+        final byte[] sha256 = ContentChunker.newSha256().digest(TEST_DATA);
+        when(mConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(mConnection.getHeaderField("ETag")).thenReturn("\"v1\"");
+        when(mConnection.getHeaderField("Digest"))
+                .thenReturn("SHA-256=" + Base64.getEncoder().encodeToString(sha256));
+        when(mConnection.getContentLengthLong()).thenReturn((long) TEST_DATA.length);
+        when(mConnection.getInputStream()).thenReturn(new ByteArrayInputStream(TEST_DATA, 0, 3));
+        // The mirror has its own ETag, but the same file.
+        when(mMirrorConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+        when(mMirrorConnection.getHeaderField("ETag")).thenReturn("\"mirror\"");
+        when(mMirrorConnection.getHeaderField("Content-Range")).thenReturn("bytes 3-7/8");
+        when(mMirrorConnection.getInputStream())
+                .thenReturn(new ByteArrayInputStream(TEST_DATA, 3, TEST_DATA.length - 3));
+
+        final HttpDownloader downloader = createMirroredDownloader(createMirrorSelector());
+        downloader.download();
+
+        verify(mMirrorConnection).setRequestProperty("Range", "bytes=3-7");
+        verify(mMirrorConnection, never()).setRequestProperty(eq("If-Range"), anyString());
+        assertEquals(ChunkManifest.toHex(sha256), downloader.getSha256());
+        assertEquals(TEST_DATA.length, mDestination.length());
+    }
+
+    @Test
+    public void testParseSha256Digest() {
+        final byte[] sha256 = new byte[32];
+        sha256[0] = 1;
+        assertEquals(ChunkManifest.toHex(sha256), HttpDownloader.parseSha256Digest(
+                "MD5=HUXZLQLMuI/KZ5KDcJPcOA==, sha-256="
+                        + Base64.getEncoder().encodeToString(sha256)));
+        assertNull(HttpDownloader.parseSha256Digest("MD5=HUXZLQLMuI/KZ5KDcJPcOA=="));
+        assertNull(HttpDownloader.parseSha256Digest("SHA-256=not base64!"));
+    }
+
+    @Test
+    public void testPlanSegments() {
+        final long total = 3 * HttpDownloader.MIN_SEGMENT_SIZE + 5;
+        final List<HttpDownloader.Segment> segments = HttpDownloader.planSegments(total, 4);
+        assertEquals(3, segments.size());
+        assertEquals(0, segments.get(0).start);
+        assertEquals(segments.get(0).length, segments.get(1).start);
+        assertEquals(total, segments.get(2).start + segments.get(2).length);
+
+        assertEquals(1, HttpDownloader.planSegments(total, 1).size());
+        assertEquals(-1, HttpDownloader.planSegments(-1, 4).get(0).length);
+    }
+
+    @Test
+    public void testGetStrongValidator_weakEtag() {
+        when(mConnection.getHeaderField("ETag")).thenReturn("W/\"v1\"");
+        when(mConnection.getHeaderField("Last-Modified"))
+                .thenReturn("Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT",
+                HttpDownloader.getStrongValidator(mConnection));
+    }
+
+    @Test
+    public void testParseContentRange() {
+        assertEquals(100, HttpDownloader.parseContentRangeStart("bytes 100-199/200"));
+        assertEquals(200, HttpDownloader.parseContentRangeTotal("bytes 100-199/200"));
+        assertEquals(-1, HttpDownloader.parseContentRangeTotal("bytes 100-199/*"));
+        assertEquals(-1, HttpDownloader.parseContentRangeStart("items 1-2/3"));
+    }
+
+    private HttpDownloader createDownloader() {
+        final HttpDownloader downloader = new HttpDownloader(url -> mConnection, TEST_URL,
+                mDestination);
+        downloader.setMaxAttempts(1);
+        return downloader;
+    }
+
+    private MirrorSelector createMirrorSelector() {
+        final MirrorSelector mirrors = new MirrorSelector(Arrays.asList(TEST_URL, MIRROR_URL),
+                new File(mDestination.getPath() + ".mirrors"));
+        mirrors.load();
+        return mirrors;
+    }
+
+    private HttpDownloader createMirroredDownloader(MirrorSelector mirrors) {
+        final HttpDownloader downloader = new HttpDownloader(
+                url -> url.equals(MIRROR_URL) ? mMirrorConnection : mConnection, TEST_URL,
+                mDestination);
+        downloader.setMirrors(mirrors, 0);
+        downloader.setMaxAttempts(2);
+        downloader.setRetryDelayMillis(0);
+        return downloader;
+    }
+
+    private void writePartial(HttpDownloader downloader, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(downloader.getPartialFile())) {
+            out.write(TEST_DATA, 0, length);
+        }
+    }
+
+    private void deleteFiles() {
+        for (File file : mDestination.getParentFile().listFiles()) {
+            if (file.getName().startsWith(mDestination.getName())) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MetricsTest {
+
+    @Test
+    public void testCounterAndGauge() {
+        final Metrics.Counter counter = Metrics.counter("test_counter");
+        counter.increment();
+        counter.add(2);
+        assertEquals(3, counter.get());
+
+        final Metrics.Gauge gauge = Metrics.gauge("test_gauge");
+        assertEquals(-1, gauge.get());
+        gauge.set(42);
+        assertEquals(42, gauge.get());
+
+        final StringWriter out = new StringWriter();
+        Metrics.dump("  ", new PrintWriter(out, true));
+        assertTrue(out.toString(), out.toString().contains("  test_counter: 3\n"));
+        assertTrue(out.toString(), out.toString().contains("  test_gauge: 42\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        final Metrics.Histogram histogram = Metrics.histogram("test_histogram");
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int value = 1; value <= 100; ++value) {
+            histogram.record(value);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        // The 50th value is in [32, 64).
+        assertEquals(63, histogram.getPercentile(0.5));
+        // The 95th value is in [64, 128), but no value is above 100.
+        assertEquals(100, histogram.getPercentile(0.95));
+    }
+}
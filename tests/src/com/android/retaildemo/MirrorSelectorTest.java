@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MirrorSelectorTest {
+
+    private static final String PRIMARY_URL = "https://example.com/demo.mp4";
+    private static final String MIRROR_URL = "https://mirror.example.com/demo.mp4";
+
+    private @Mock HttpURLConnection mPrimaryConnection;
+    private @Mock HttpURLConnection mMirrorConnection;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mFile = new File(getTargetContext().getCacheDir(), "mirror_ranking");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testGetRankedUrls_configuredOrderByDefault() {
+        final MirrorSelector selector = createSelector();
+
+        assertEquals(Arrays.asList(PRIMARY_URL, MIRROR_URL), selector.getRankedUrls());
+        assertTrue(selector.needsProbe(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testProbe_failedMirrorRankedLast() throws Exception {
+        when(mPrimaryConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        when(mMirrorConnection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+        when(mMirrorConnection.getInputStream()).thenReturn(
+                new ByteArrayInputStream(new byte[MirrorSelector.PROBE_BYTES]));
+        final MirrorSelector selector = createSelector();
+        final long now = System.currentTimeMillis();
+
+        selector.probe(url -> url.equals(MIRROR_URL) ? mMirrorConnection : mPrimaryConnection,
+                now);
+
+        verify(mMirrorConnection).setRequestProperty("Range",
+                "bytes=0-" + (MirrorSelector.PROBE_BYTES - 1));
+        assertEquals(Arrays.asList(MIRROR_URL, PRIMARY_URL), selector.getRankedUrls());
+        assertFalse(selector.needsProbe(now));
+    }
+
+    @Test
+    public void testRecordThroughput_rankingIsSaved() throws Exception {
+        MirrorSelector selector = createSelector();
+        selector.recordThroughput(PRIMARY_URL, 100 * 1024);
+        selector.recordThroughput(MIRROR_URL, 1024 * 1024);
+        selector.save();
+
+        selector = createSelector();
+
+        assertEquals(Arrays.asList(MIRROR_URL, PRIMARY_URL), selector.getRankedUrls());
+    }
+
+    @Test
+    public void testLoad_newMirrorNeedsProbe() throws Exception {
+        final long now = System.currentTimeMillis();
+        final MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY_URL), mFile);
+        selector.probe(url -> mPrimaryConnection, now);
+        selector.save();
+
+        assertTrue(createSelector().needsProbe(now));
+    }
+
+    private MirrorSelector createSelector() {
+        final MirrorSelector selector =
+                new MirrorSelector(Arrays.asList(PRIMARY_URL, MIRROR_URL), mFile);
+        selector.load();
+        return selector;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class Mp4ValidatorTest {
+    // Two chunks of two samples each.
+    private static final int[] SAMPLE_SIZES = {10, 20, 30, 40};
+    private static final int MEDIA_SIZE = 100;
+
+    private File mFile;
+    private File mFastStartFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(getTargetContext().getCacheDir(), "test.mp4");
+        mFastStartFile = new File(getTargetContext().getCacheDir(), "test.mp4.faststart");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mFastStartFile.delete();
+    }
+
+    @Test
+    public void testValidate_fastStart() throws Exception {
+        write(mFile, buildMp4(true, 0));
+
+        assertFalse(Mp4Validator.validate(mFile).needsFastStart());
+    }
+
+    @Test
+    public void testWriteFastStart() throws Exception {
+        write(mFile, buildMp4(false, 0));
+        final Mp4Validator.Layout layout = Mp4Validator.validate(mFile);
+        assertTrue(layout.needsFastStart());
+
+        Mp4Validator.writeFastStart(mFile, layout, mFastStartFile);
+
+        assertArrayEquals(buildMp4(true, 0), Files.readAllBytes(mFastStartFile.toPath()));
+        assertFalse(Mp4Validator.validate(mFastStartFile).needsFastStart());
+    }
+
+    @Test
+    public void testValidate_truncated() throws Exception {
+        final byte[] mp4 = buildMp4(true, 0);
+        write(mFile, Arrays.copyOf(mp4, mp4.length - 10));
+
+        assertInvalid(mFile);
+    }
+
+    @Test
+    public void testValidate_chunkOutsideOfMediaData() throws Exception {
+        write(mFile, buildMp4(true, MEDIA_SIZE));
+
+        assertInvalid(mFile);
+    }
+
+    @Test
+    public void testValidate_strayBytesAtEndOfSampleTable() throws Exception {
+        // Empty tables, followed by less than a box header, at the very end of the moov box.
+        final byte[] stbl = box("stbl", box("stco", new byte[8]), box("stsc", new byte[8]),
+                new byte[2]);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII)));
+        out.write(box("mdat", new byte[4]));
+        out.write(box("moov", box("trak", box("mdia", box("minf", stbl)))));
+        write(mFile, out.toByteArray());
+
+        assertInvalid(mFile);
+    }
+
+    @Test
+    public void testValidate_notMp4() throws Exception {
+        write(mFile, "not a video".getBytes(StandardCharsets.US_ASCII));
+
+        assertNull(Mp4Validator.validate(mFile));
+    }
+
+    private static void assertInvalid(File file) throws IOException {
+        try {
+            Mp4Validator.validate(file);
+            fail("Expected the file to be invalid");
+        } catch (Mp4Validator.InvalidMp4Exception expected) {
+        }
+    }
+
+    /**
+     * @param moovFirst whether the moov box comes before the mdat box.
+     * @param extraOffset added to the chunk offsets, to make them point elsewhere.
+     */
+    private static byte[] buildMp4(boolean moovFirst, int extraOffset) throws IOException {
+        final byte[] ftyp = box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII),
+                new byte[4], "isom".getBytes(StandardCharsets.US_ASCII));
+        final byte[] media = new byte[MEDIA_SIZE];
+        for (int i = 0; i < media.length; ++i) {
+            media[i] = (byte) i;
+        }
+        final byte[] mdat = box("mdat", media);
+        // The size of the moov box doesn't depend on the offsets in it.
+        final int moovSize = buildMoov(0).length;
+        final int mediaStart = ftyp.length + (moovFirst ? moovSize : 0) + 8 + extraOffset;
+        final byte[] moov = buildMoov(mediaStart);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ftyp);
+        out.write(moovFirst ? moov : mdat);
+        out.write(moovFirst ? mdat : moov);
+        return out.toByteArray();
+    }
+
+    private static byte[] buildMoov(int mediaStart) throws IOException {
+        final ByteBuffer stsc = ByteBuffer.allocate(20);
+        stsc.putInt(0).putInt(1).putInt(1).putInt(2).putInt(1);
+        final ByteBuffer stsz = ByteBuffer.allocate(12 + SAMPLE_SIZES.length * 4);
+        stsz.putInt(0).putInt(0).putInt(SAMPLE_SIZES.length);
+        for (int size : SAMPLE_SIZES) {
+            stsz.putInt(size);
+        }
+        final ByteBuffer stco = ByteBuffer.allocate(16);
+        stco.putInt(0).putInt(2).putInt(mediaStart)
+                .putInt(mediaStart + SAMPLE_SIZES[0] + SAMPLE_SIZES[1]);
+        final byte[] stbl = box("stbl", box("stsc", stsc.array()), box("stsz", stsz.array()),
+                box("stco", stco.array()));
+        return box("moov", box("trak", box("mdia", box("minf", stbl))));
+    }
+
+    private static byte[] box(String type, byte[]... contents) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] content : contents) {
+            out.write(content);
+        }
+        return ByteBuffer.allocate(8 + out.size()).putInt(8 + out.size())
+                .put(type.getBytes(StandardCharsets.US_ASCII)).put(out.toByteArray()).array();
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+    }
+}
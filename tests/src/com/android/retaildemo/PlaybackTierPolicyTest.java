@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.os.PowerManager;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.android.retaildemo.PlaybackTierPolicy.TIER_FULL;
+import static com.android.retaildemo.PlaybackTierPolicy.TIER_LOW_BITRATE;
+import static com.android.retaildemo.PlaybackTierPolicy.TIER_LOW_FRAME_RATE;
+import static com.android.retaildemo.PlaybackTierPolicy.TIER_POSTER;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PlaybackTierPolicyTest {
+    private static final long STEP_UP_DELAY_MILLIS = 1000;
+
+    @Test
+    public void testGetTargetTier_thermal() {
+        assertEquals(TIER_FULL, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_LIGHT, true, 100));
+        assertEquals(TIER_LOW_BITRATE, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_MODERATE, true, 100));
+        assertEquals(TIER_LOW_FRAME_RATE, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_SEVERE, true, 100));
+        assertEquals(TIER_POSTER, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_EMERGENCY, true, 100));
+    }
+
+    @Test
+    public void testGetTargetTier_battery() {
+        assertEquals(TIER_FULL, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_NONE, false, -1));
+        assertEquals(TIER_LOW_BITRATE, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_NONE, false, 50));
+        assertEquals(TIER_POSTER, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_NONE, false, PlaybackTierPolicy.LOW_BATTERY_PERCENT));
+        // The worst of both.
+        assertEquals(TIER_LOW_FRAME_RATE, PlaybackTierPolicy.getTargetTier(
+                PowerManager.THERMAL_STATUS_SEVERE, false, 50));
+    }
+
+    @Test
+    public void testUpdate_stepsDownRightAway() {
+        final PlaybackTierPolicy policy = new PlaybackTierPolicy(STEP_UP_DELAY_MILLIS);
+
+        assertEquals(TIER_POSTER, policy.update(TIER_POSTER, 0));
+        assertEquals(-1, policy.getStepUpDelayMillis(0));
+    }
+
+    @Test
+    public void testUpdate_stepsUpOneTierAtATime() {
+        final PlaybackTierPolicy policy = new PlaybackTierPolicy(STEP_UP_DELAY_MILLIS);
+        policy.update(TIER_POSTER, 0);
+
+        assertEquals(TIER_POSTER, policy.update(TIER_FULL, 100));
+        assertEquals(STEP_UP_DELAY_MILLIS - 400, policy.getStepUpDelayMillis(500));
+        assertEquals(TIER_POSTER, policy.update(TIER_FULL, 500));
+        assertEquals(TIER_LOW_FRAME_RATE, policy.update(TIER_FULL, 1100));
+        assertEquals(STEP_UP_DELAY_MILLIS, policy.getStepUpDelayMillis(1100));
+        assertEquals(TIER_LOW_BITRATE, policy.update(TIER_FULL, 2100));
+        assertEquals(TIER_FULL, policy.update(TIER_FULL, 3100));
+        assertEquals(-1, policy.getStepUpDelayMillis(3100));
+    }
+
+    @Test
+    public void testUpdate_worseConditionsResetTheWait() {
+        final PlaybackTierPolicy policy = new PlaybackTierPolicy(STEP_UP_DELAY_MILLIS);
+        policy.update(TIER_LOW_FRAME_RATE, 0);
+
+        policy.update(TIER_FULL, 100);
+        assertEquals(TIER_LOW_FRAME_RATE, policy.update(TIER_LOW_FRAME_RATE, 600));
+        assertEquals(TIER_LOW_FRAME_RATE, policy.update(TIER_FULL, 700));
+        assertEquals(TIER_LOW_FRAME_RATE, policy.update(TIER_FULL, 1200));
+        assertEquals(TIER_LOW_BITRATE, policy.update(TIER_FULL, 1700));
+    }
+}
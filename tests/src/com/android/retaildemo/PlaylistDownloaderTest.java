@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PlaylistDownloaderTest {
+
+    private static final byte[] TEST_DATA = new byte[] { 10, 11, 12, 13, 14, 15, 16, 17 };
+    private static final long TIMEOUT_MS = 5000;
+
+    private @Mock PlaylistDownloader.Listener mListener;
+
+    private File mPlaylistDir;
+    private File mIndexFile;
+    private byte[] mData = TEST_DATA;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mPlaylistDir = new File(getTargetContext().getCacheDir(),
+                PlaylistDownloader.PLAYLIST_DIR_NAME);
+        mIndexFile = new File(getTargetContext().getCacheDir(),
+                PlaylistDownloader.INDEX_FILE_NAME);
+        deleteRecursively(mPlaylistDir);
+        mIndexFile.delete();
+        mPlaylistDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mPlaylistDir);
+        mIndexFile.delete();
+    }
+
+    @Test
+    public void testGetFileName() {
+        assertEquals("clip.mp4", PlaylistDownloader.getFileName("https://example.com/a/clip.mp4"));
+        assertEquals("clip.mp4",
+                PlaylistDownloader.getFileName("https://example.com/clip.mp4?v=2#t=1"));
+        assertNull(PlaylistDownloader.getFileName("https://example.com/"));
+        assertNull(PlaylistDownloader.getFileName("https://example.com/a/.."));
+        assertNull(PlaylistDownloader.getFileName("not a url"));
+    }
+
+    @Test
+    public void testGetAssets_namesAreUnique() {
+        final PlaylistDownloader downloader = createDownloader(1, Long.MAX_VALUE);
+        final List<PlaylistDownloader.Asset> assets = downloader.getAssets(new String[] {
+                "https://example.com/a/clip.mp4", "https://example.com/b/clip.mp4"}, 1);
+
+        assertEquals(2, assets.size());
+        assertEquals(1, assets.get(0).priority);
+        assertEquals(2, assets.get(1).priority);
+        assertEquals("clip.mp4", assets.get(0).file.getName());
+        assertEquals("2-clip.mp4", assets.get(1).file.getName());
+        downloader.shutdown();
+    }
+
+    @Test
+    public void testDownload_inOrderOfPriority() throws Exception {
+        final PlaylistDownloader downloader = createDownloader(1, Long.MAX_VALUE);
+        final List<PlaylistDownloader.Asset> assets = downloader.getAssets(new String[] {
+                "https://example.com/1.mp4", "https://example.com/2.mp4",
+                "https://example.com/3.mp4"}, 1);
+
+        downloader.download(assets);
+
+        verify(mListener, timeout(TIMEOUT_MS)).onPlaylistFinished();
+        final InOrder inOrder = inOrder(mListener);
+        for (PlaylistDownloader.Asset asset : assets) {
+            inOrder.verify(mListener).onAssetReady(asset);
+            assertEquals(TEST_DATA.length, asset.file.length());
+        }
+        downloader.shutdown();
+    }
+
+    @Test
+    public void testDownload_evictsClipsNoLongerListed() throws Exception {
+        PlaylistDownloader downloader = createDownloader(2, 2 * TEST_DATA.length);
+        final List<PlaylistDownloader.Asset> oldAssets = downloader.getAssets(new String[] {
+                "https://example.com/old.mp4", "https://example.com/kept.mp4"}, 1);
+        downloader.download(oldAssets);
+        verify(mListener, timeout(TIMEOUT_MS)).onPlaylistFinished();
+        downloader.shutdown();
+
+        reset(mListener);
+        downloader = createDownloader(2, 2 * TEST_DATA.length);
+        final List<PlaylistDownloader.Asset> assets = downloader.getAssets(new String[] {
+                "https://example.com/kept.mp4", "https://example.com/new.mp4"}, 1);
+        downloader.download(assets);
+
+        verify(mListener, timeout(TIMEOUT_MS)).onPlaylistFinished();
+        verify(mListener).onAssetReady(assets.get(0));
+        verify(mListener).onAssetReady(assets.get(1));
+        assertFalse(oldAssets.get(0).file.exists());
+        assertTrue(assets.get(0).file.exists());
+        assertTrue(assets.get(1).file.exists());
+        downloader.shutdown();
+    }
+
+    @Test
+    public void testDownload_truncatedMp4Fails() throws Exception {
+        // An ftyp box, then an mdat box that claims more bytes than were downloaded.
+        mData = ByteBuffer.allocate(24).putInt(12).put(bytes("ftyp")).put(bytes("isom"))
+                .putInt(100).put(bytes("mdat")).putInt(0).array();
+        final PlaylistDownloader downloader = createDownloader(1, Long.MAX_VALUE);
+        final List<PlaylistDownloader.Asset> assets = downloader.getAssets(new String[] {
+                "https://example.com/truncated.mp4"}, 1);
+
+        downloader.download(assets);
+
+        verify(mListener, timeout(TIMEOUT_MS)).onPlaylistFinished();
+        verify(mListener).onAssetFailed(assets.get(0));
+        verify(mListener, never()).onAssetReady(assets.get(0));
+        assertFalse(assets.get(0).file.exists());
+        final File stagingDir = new File(mPlaylistDir, VideoInstaller.STAGING_DIR_NAME);
+        assertEquals(0, stagingDir.list().length);
+        downloader.shutdown();
+    }
+
+    private PlaylistDownloader createDownloader(int threads, long cacheQuotaBytes) {
+        final ContentCache cache = new ContentCache(mPlaylistDir, mIndexFile, cacheQuotaBytes);
+        return new PlaylistDownloader(cache,
+                BackgroundScheduler.getInstance().getExecutor(BackgroundScheduler.NETWORK),
+                threads, (url, destination) -> {
+            final HttpDownloader downloader =
+                    new HttpDownloader(u -> createConnection(mData), url, destination);
+            downloader.setMaxAttempts(1);
+            return downloader;
+        }, mListener);
+    }
+
+    private static HttpURLConnection createConnection(byte[] data) throws IOException {
+        final HttpURLConnection conn = mock(HttpURLConnection.class);
+        when(conn.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(conn.getContentLengthLong()).thenReturn((long) data.length);
+        when(conn.getInputStream()).thenReturn(new ByteArrayInputStream(data));
+        return conn;
+    }
+
+    private static byte[] bytes(String type) {
+        return type.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.android.retaildemo.StallDetector.RECOVERY_FALLBACK;
+import static com.android.retaildemo.StallDetector.RECOVERY_NONE;
+import static com.android.retaildemo.StallDetector.RECOVERY_PREPARE;
+import static com.android.retaildemo.StallDetector.RECOVERY_PRELOADED;
+import static com.android.retaildemo.StallDetector.RECOVERY_SEEK;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class StallDetectorTest {
+    private static final long STALL_TIMEOUT_MILLIS = 3000;
+    private static final long FROZEN_FRAME_TIMEOUT_MILLIS = 10000;
+    private static final long RECOVERED_AFTER_MILLIS = 60000;
+
+    private final StallDetector mDetector = new StallDetector(STALL_TIMEOUT_MILLIS,
+            FROZEN_FRAME_TIMEOUT_MILLIS, RECOVERED_AFTER_MILLIS);
+
+    @Test
+    public void testPlaying() {
+        mDetector.restart(0);
+        for (long now = 0; now < 20000; now += 1000) {
+            assertEquals(RECOVERY_NONE, mDetector.onSample(now, now, now));
+        }
+    }
+
+    @Test
+    public void testPositionStalled() {
+        mDetector.restart(0);
+        assertEquals(RECOVERY_NONE, mDetector.onSample(500, 1, 1000));
+        assertEquals(RECOVERY_NONE, mDetector.onSample(500, 2, 3000));
+        assertEquals(RECOVERY_SEEK, mDetector.onSample(500, 3, 4000));
+        // Given time to recover.
+        assertEquals(RECOVERY_NONE, mDetector.onSample(500, 4, 5000));
+    }
+
+    @Test
+    public void testFrameFrozen() {
+        mDetector.restart(0);
+        for (long now = 0; now < 10000; now += 1000) {
+            assertEquals(RECOVERY_NONE, mDetector.onSample(now, 1, now));
+        }
+        assertEquals(RECOVERY_SEEK, mDetector.onSample(10000, 1, 10000));
+    }
+
+    @Test
+    public void testUnknownFramesAreIgnored() {
+        mDetector.restart(0);
+        for (long now = 1000; now < 20000; now += 1000) {
+            assertEquals(RECOVERY_NONE, mDetector.onSample(now, 0, now));
+        }
+    }
+
+    @Test
+    public void testEscalates() {
+        mDetector.restart(0);
+        assertEquals(RECOVERY_NONE, mDetector.onSample(0, 0, 0));
+        assertEquals(RECOVERY_SEEK, mDetector.onSample(0, 0, 3000));
+        assertEquals(RECOVERY_PREPARE, mDetector.onSample(0, 0, 6000));
+        assertEquals(RECOVERY_PRELOADED, mDetector.onSample(0, 0, 9000));
+        assertEquals(RECOVERY_FALLBACK, mDetector.onSample(0, 0, 12000));
+        assertEquals(RECOVERY_FALLBACK, mDetector.onSample(0, 0, 15000));
+    }
+
+    @Test
+    public void testStartsOverOnceRecovered() {
+        mDetector.restart(0);
+        assertEquals(RECOVERY_NONE, mDetector.onSample(0, 0, 0));
+        assertEquals(RECOVERY_SEEK, mDetector.onSample(0, 0, 3000));
+        long now = 3000;
+        for (; now <= 3000 + RECOVERED_AFTER_MILLIS; now += 1000) {
+            mDetector.onSample(now, 0, now);
+        }
+        assertEquals(RECOVERY_NONE, mDetector.getRecovery());
+        // Still at the last position.
+        assertEquals(RECOVERY_SEEK,
+                mDetector.onSample(now - 1000, 0, now - 1000 + STALL_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void testEscalatesWhenNotRecovered() {
+        mDetector.restart(0);
+        assertEquals(RECOVERY_NONE, mDetector.onSample(0, 0, 0));
+        assertEquals(RECOVERY_SEEK, mDetector.onSample(0, 0, 3000));
+        mDetector.onSample(1000, 0, 4000);
+        // Stalled again before playing for long.
+        assertEquals(RECOVERY_PREPARE, mDetector.onSample(1000, 0, 7000));
+    }
+}
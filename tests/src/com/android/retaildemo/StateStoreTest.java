@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class StateStoreTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(getTargetContext().getCacheDir(), StateStore.FILE_NAME);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testFirstRun() {
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        assertEquals(0, store.getLastBootCount());
+        assertNull(store.getValidators());
+        assertNull(store.getContentHash("demo.mp4"));
+        assertTrue(store.getDownloadRecords().isEmpty());
+    }
+
+    @Test
+    public void testWriteRead() {
+        writeState(new StateStore(mFile, Runnable::run));
+
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        assertEquals(11, store.getLastBootCount());
+        assertEquals("\"v1\"", store.getValidators().eTag);
+        assertNull(store.getValidators().lastModified);
+        assertEquals(10, store.getValidators().contentLength);
+        assertEquals(60000, store.getValidators().maxAgeMillis);
+        assertEquals(1000, store.getValidators().checkedAtMillis);
+        assertEquals("abcd", store.getContentHash("demo.mp4"));
+        assertEquals(1, store.getDownloadRecords().size());
+        assertEquals("https://example.com/demo.mp4", store.getDownloadRecords().get(0).name);
+        assertEquals(3, store.getDownloadRecords().get(0).retries);
+    }
+
+    @Test
+    public void testWritesAreBatched() {
+        final List<Runnable> writes = new ArrayList<>();
+        final StateStore store = new StateStore(mFile, writes::add);
+
+        writeState(store);
+
+        assertEquals(1, writes.size());
+        writes.get(0).run();
+        assertEquals(11, new StateStore(mFile, Runnable::run).getLastBootCount());
+        // Written again on the next change.
+        store.setLastBootCount(12);
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void testAddDownloadRecord_dropsOldest() {
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        for (int i = 0; i < 3; ++i) {
+            store.addDownloadRecord(createRecord(i), 2);
+        }
+
+        final List<DownloadStatsLog.Record> records =
+                new StateStore(mFile, Runnable::run).getDownloadRecords();
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).timeMillis);
+        assertEquals(2, records.get(1).timeMillis);
+    }
+
+    @Test
+    public void testVideoPlayable_untilChanged() {
+        new StateStore(mFile, Runnable::run).setVideoPlayable("/preloads/demo.mp4", 10, 1000,
+                false);
+
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        assertEquals(Boolean.FALSE, store.isVideoPlayable("/preloads/demo.mp4", 10, 1000));
+        assertNull(store.isVideoPlayable("/preloads/demo.mp4", 10, 2000));
+        assertNull(store.isVideoPlayable("/preloads/demo.mp4", 11, 1000));
+        assertNull(store.isVideoPlayable("/preloads/other.mp4", 10, 1000));
+    }
+
+    @Test
+    public void testCorruptedFile_startsOver() throws Exception {
+        writeState(new StateStore(mFile, Runnable::run));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            // Flip a bit of the boot count, right after the header.
+            file.seek(12);
+            final int bootCount = file.readInt();
+            file.seek(12);
+            file.writeInt(bootCount ^ 1);
+        }
+
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        assertEquals(0, store.getLastBootCount());
+        assertNull(store.getValidators());
+    }
+
+    @Test
+    public void testTruncatedFile_startsOver() throws Exception {
+        writeState(new StateStore(mFile, Runnable::run));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        final StateStore store = new StateStore(mFile, Runnable::run);
+        assertEquals(0, store.getLastBootCount());
+        assertTrue(store.getDownloadRecords().isEmpty());
+    }
+
+    @Test
+    public void testSurvivesStagingCleanUp() {
+        writeState(new StateStore(mFile, Runnable::run));
+
+        // The name of the video can be overlaid, with names the state file starts with too.
+        for (String videoName : new String[] {
+                "retail.mp4", "retail_demo.mp4", StateStore.FILE_NAME + ".mp4"}) {
+            new VideoInstaller(new File(mFile.getParentFile(), videoName)).cleanUpStaging();
+        }
+
+        assertTrue(mFile.exists());
+        assertEquals(11, new StateStore(mFile, Runnable::run).getLastBootCount());
+    }
+
+    private static void writeState(StateStore store) {
+        store.setLastBootCount(11);
+        store.setValidators(new StateStore.Validators("\"v1\"", null, 10, 60000, 1000));
+        store.setContentHash("demo.mp4", "abcd");
+        store.addDownloadRecord(createRecord(0), DownloadStatsLog.MAX_RECORDS);
+    }
+
+    private static DownloadStatsLog.Record createRecord(long timeMillis) {
+        return new DownloadStatsLog.Record(timeMillis, "https://example.com/demo.mp4", true,
+                100, 10, 10000, 10000, 3);
+    }
+}
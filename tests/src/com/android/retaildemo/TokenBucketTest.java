@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TokenBucketTest {
+
+    @Test
+    public void testAcquire_burstIsNotThrottled() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1024, 64 * 1024);
+
+        final long start = SystemClock.elapsedRealtime();
+        bucket.acquire(32 * 1024);
+        bucket.acquire(32 * 1024);
+        assertTrue(SystemClock.elapsedRealtime() - start < 500);
+    }
+
+    @Test
+    public void testAcquire_holdsRate() throws Exception {
+        final TokenBucket bucket = new TokenBucket(100 * 1024, 10 * 1024);
+
+        final long start = SystemClock.elapsedRealtime();
+        // 10 KB of burst, the rest at 100 KB/s.
+        for (int i = 0; i < 10; ++i) {
+            bucket.acquire(5 * 1024);
+        }
+        assertTrue(SystemClock.elapsedRealtime() - start >= 300);
+    }
+
+    @Test
+    public void testSetRate_releasesWaitingThreads() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1, 1);
+        bucket.acquire(1024 * 1024);
+
+        final Thread waiter = new Thread(() -> {
+            try {
+                bucket.acquire(1);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        bucket.setRate(0);
+        waiter.join(1000);
+        assertFalse(waiter.isAlive());
+    }
+}
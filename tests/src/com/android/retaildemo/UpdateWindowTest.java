@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UpdateWindowTest {
+
+    @Test
+    public void testContains_overMidnight() {
+        final UpdateWindow window = new UpdateWindow(22, 6);
+
+        assertTrue(window.contains(at(23, 30)));
+        assertTrue(window.contains(at(0, 0)));
+        assertTrue(window.contains(at(5, 59)));
+        assertFalse(window.contains(at(6, 0)));
+        assertFalse(window.contains(at(21, 59)));
+    }
+
+    @Test
+    public void testContains_sameHourIsAllDay() {
+        final UpdateWindow window = new UpdateWindow(3, 3);
+
+        assertTrue(window.contains(at(2, 0)));
+        assertTrue(window.contains(at(15, 0)));
+    }
+
+    @Test
+    public void testGetDelayMillis() {
+        final UpdateWindow window = new UpdateWindow(22, 6);
+
+        assertEquals(0, window.getDelayMillis(at(23, 0)));
+        assertEquals(TimeUnit.MINUTES.toMillis(12 * 60 + 30),
+                window.getDelayMillis(at(9, 30)));
+    }
+
+    @Test
+    public void testGetNextOpeningDelayMillis_skipsCurrentOpening() {
+        final UpdateWindow window = new UpdateWindow(22, 6);
+
+        assertEquals(TimeUnit.HOURS.toMillis(23), window.getNextOpeningDelayMillis(at(23, 0)));
+        assertEquals(TimeUnit.HOURS.toMillis(20), window.getNextOpeningDelayMillis(at(2, 0)));
+    }
+
+    private static Calendar at(int hour, int minute) {
+        // No daylight saving time, so that every day is 24 hours long.
+        final Calendar time = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        time.clear();
+        time.set(2017, Calendar.MARCH, 1, hour, minute);
+        return time;
+    }
+}
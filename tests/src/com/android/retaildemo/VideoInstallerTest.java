@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class VideoInstallerTest {
+
+    private File mDir;
+    private VideoInstaller mInstaller;
+
+    @Before
+    public void setUp() {
+        mDir = new File(getTargetContext().getCacheDir(), "VideoInstallerTest");
+        deleteRecursively(mDir);
+        mDir.mkdirs();
+        mInstaller = new VideoInstaller(new File(mDir, "demo.mp4"));
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    @Test
+    public void testCleanUpStaging_keepsPartialDownload() throws Exception {
+        final File staged = mInstaller.getStagingFile();
+        final File partial = new File(staged.getPath() + HttpDownloader.PARTIAL_SUFFIX);
+        final File state = new File(partial.getPath() + HttpDownloader.STATE_SUFFIX);
+        createFiles(staged, partial, state);
+
+        mInstaller.cleanUpStaging();
+
+        assertFalse(staged.exists());
+        assertTrue(partial.exists());
+        assertTrue(state.exists());
+    }
+
+    @Test
+    public void testCleanUpStaging_onlyDeletesDownloadManagerLeftovers() throws Exception {
+        final File installed = mInstaller.getInstalledFile();
+        final File leftover = new File(mDir, "demo-1.mp4");
+        // Files of the app that happen to start with the name of the video.
+        final File state = new File(mDir, "demo_state");
+        final File other = new File(mDir, "demo-notes.mp4");
+        createFiles(installed, leftover, state, other);
+
+        mInstaller.cleanUpStaging();
+
+        assertTrue(installed.exists());
+        assertFalse(leftover.exists());
+        assertTrue(state.exists());
+        assertTrue(other.exists());
+    }
+
+    private static void createFiles(File... files) throws IOException {
+        for (File file : files) {
+            assertTrue(file.createNewFile());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
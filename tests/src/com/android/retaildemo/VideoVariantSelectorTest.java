@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.retaildemo;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class VideoVariantSelectorTest {
+    private static final VideoVariantSelector.Variant AVC_4K =
+            new VideoVariantSelector.Variant("video/avc", 3840, 2160, 80, "avc_4k");
+    private static final VideoVariantSelector.Variant AVC_1080P =
+            new VideoVariantSelector.Variant("video/avc", 1920, 1080, 40, "avc_1080p");
+    private static final VideoVariantSelector.Variant AVC_720P =
+            new VideoVariantSelector.Variant("video/avc", 1280, 720, 20, "avc_720p");
+    private static final VideoVariantSelector.Variant HEVC_4K =
+            new VideoVariantSelector.Variant("video/hevc", 3840, 2160, 50, "hevc_4k");
+    private static final VideoVariantSelector.Variant HEVC_1080P =
+            new VideoVariantSelector.Variant("video/hevc", 1920, 1080, 25, "hevc_1080p");
+
+    private static final List<VideoVariantSelector.Variant> VARIANTS =
+            Arrays.asList(AVC_4K, AVC_1080P, AVC_720P, HEVC_4K, HEVC_1080P);
+
+    @Test
+    public void testParse() {
+        final VideoVariantSelector.Variant variant = VideoVariantSelector.Variant.parse(
+                " video/hevc  1920x1080 12000000 https://example.com/demo.mp4");
+
+        assertEquals("video/hevc", variant.mime);
+        assertEquals(1920, variant.width);
+        assertEquals(1080, variant.height);
+        assertEquals(12000000, variant.sizeBytes);
+        assertEquals("https://example.com/demo.mp4", variant.url);
+    }
+
+    @Test
+    public void testParse_skipsInvalidVariants() {
+        final List<VideoVariantSelector.Variant> variants = VideoVariantSelector.parse(
+                new String[] {"video/avc 1920x1080 10 a", "video/avc 1920 10 b",
+                        "video/avc 1920x1080 ten c", "video/avc 1280x720 5 d"});
+
+        assertEquals(2, variants.size());
+        assertEquals("a", variants.get(0).url);
+        assertEquals("d", variants.get(1).url);
+    }
+
+    @Test
+    public void testSelect_smallestCoveringTheDisplay() {
+        final VideoVariantSelector.DecoderSupport all = (mime, width, height) -> true;
+
+        assertEquals(HEVC_1080P, VideoVariantSelector.select(VARIANTS, all, 1080, 1920));
+        assertEquals(HEVC_4K, VideoVariantSelector.select(VARIANTS, all, 3840, 2160));
+        assertEquals(AVC_720P, VideoVariantSelector.select(VARIANTS, all, 1280, 720));
+    }
+
+    @Test
+    public void testSelect_onlyWhatTheDecodersSupport() {
+        final VideoVariantSelector.DecoderSupport avcUpTo1080p = (mime, width, height) ->
+                mime.equals("video/avc") && width * height <= 1920 * 1080;
+
+        assertEquals(AVC_1080P, VideoVariantSelector.select(VARIANTS, avcUpTo1080p, 1920, 1080));
+        // Closest to the display when none covers it.
+        assertEquals(AVC_1080P, VideoVariantSelector.select(VARIANTS, avcUpTo1080p, 3840, 2160));
+    }
+
+    @Test
+    public void testSelect_noneSupported() {
+        assertNull(VideoVariantSelector.select(VARIANTS, (mime, width, height) -> false,
+                1920, 1080));
+    }
+}